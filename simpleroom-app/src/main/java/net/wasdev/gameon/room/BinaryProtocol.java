@@ -0,0 +1,243 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The binary framing of the mediator protocol, version 2 in the list the room acks with.
+ *
+ * A mediator opts in by sending binary messages; from then on the room sends it binary ones
+ * too. Sessions whose mediator only sends text keep the text protocol.
+ *
+ * From the mediator, a message is
+ * <pre>
+ *   byte    routing: 1 roomHello, 2 room, 3 roomGoodbye
+ *   then, to the end of the message, any number of fields:
+ *   byte    tag: 1 userId, 2 username, 3 content, 4 bookmark (others are skipped)
+ *   varint  length of the value, in bytes
+ *   byte[]  the value, in UTF-8
+ * </pre>
+ * and from the room,
+ * <pre>
+ *   byte    routing: 1 player, 2 playerLocation
+ *   varint  length of the target (a userId, or * for everyone), in bytes
+ *   byte[]  the target, in UTF-8
+ *   varlong the bookmark plus one, or 0 if the message doesn't have one
+ *   byte[]  the json payload, in UTF-8, to the end of the message
+ * </pre>
+ * The payload is the same json the text protocol sends, which the mediator passes on to the
+ * player as it is; what it needs for itself (where the message goes, and its bookmark) is in the
+ * header, so it never has to look inside.
+ *
+ * So the two directions save different things. Messages from the mediator are smaller (about
+ * half the size of their text form, for chat) and are read without any json scanning. Messages
+ * from the room are about the same size as their text form, a few bytes smaller for dropping
+ * the routing text; what they save is the mediator's parsing of the routing and bookmark.
+ */
+final class BinaryProtocol {
+
+    /** The version the room acks with when it offers the binary framing. */
+    static final int VERSION = 2;
+
+    static final byte ROOM_HELLO = 1;
+    static final byte ROOM = 2;
+    static final byte ROOM_GOODBYE = 3;
+
+    static final byte USER_ID = 1;
+    static final byte USERNAME = 2;
+    static final byte CONTENT = 3;
+    static final byte BOOKMARK = 4;
+
+    static final byte PLAYER = 1;
+    static final byte PLAYER_LOCATION = 2;
+
+    /** The most the binary form of a message can be longer than its text. */
+    static final int HEADROOM = 10;
+
+    private static final byte[] PLAYER_PREFIX = "player".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PLAYER_LOCATION_PREFIX = "playerLocation".getBytes(StandardCharsets.US_ASCII);
+    private static final String BOOKMARK_KEY = "\"bookmark\":";
+
+    private BinaryProtocol() {
+    }
+
+    /**
+     * Read a message from the mediator into msg.
+     *
+     * @return false if the routing type is not one the room handles
+     * @throws IllegalArgumentException
+     *             if the message is malformed
+     */
+    static boolean read(ByteBuffer message, RoomMessage msg) {
+        ByteBuffer in = message.duplicate();
+        if (!in.hasRemaining()) {
+            return false;
+        }
+        switch (in.get()) {
+            case ROOM_HELLO:
+                msg.routing = RoomMessage.Routing.ROOM_HELLO;
+                break;
+            case ROOM:
+                msg.routing = RoomMessage.Routing.ROOM;
+                break;
+            case ROOM_GOODBYE:
+                msg.routing = RoomMessage.Routing.ROOM_GOODBYE;
+                break;
+            default:
+                return false;
+        }
+        while (in.hasRemaining()) {
+            byte tag = in.get();
+            int length = readVarint(in);
+            if (length > in.remaining()) {
+                throw new IllegalArgumentException("Field " + tag + " runs past the end of the message");
+            }
+            switch (tag) {
+                case USER_ID:
+                    msg.userId = readString(in, length);
+                    break;
+                case USERNAME:
+                    msg.username = readString(in, length);
+                    break;
+                case CONTENT:
+                    msg.content = readString(in, length);
+                    break;
+                case BOOKMARK:
+                    msg.bookmark = readString(in, length);
+                    break;
+                default:
+                    in.position(in.position() + length);
+            }
+        }
+        if (msg.routing == RoomMessage.Routing.ROOM && msg.content == null) {
+            msg.content = "";
+        }
+        return true;
+    }
+
+    /**
+     * Encode a message the room sends.
+     *
+     * @param text
+     *            The message as text
+     * @param utf8
+     *            The same message in UTF-8, from its position to its limit
+     * @param out
+     *            Where to put it, with room for the message and {@link #HEADROOM} more bytes
+     * @return false if it isn't a message that has a binary form, like the ack
+     */
+    static boolean write(String text, ByteBuffer utf8, ByteBuffer out) {
+        byte kind;
+        int start = utf8.position();
+        if (startsWith(utf8, PLAYER_LOCATION_PREFIX, ',')) {
+            kind = PLAYER_LOCATION;
+        } else if (startsWith(utf8, PLAYER_PREFIX, ',')) {
+            kind = PLAYER;
+        } else {
+            return false;
+        }
+        // commas are never part of a multi-byte character, so the target is between the first two.
+        int targetStart = start + (kind == PLAYER ? PLAYER_PREFIX.length : PLAYER_LOCATION_PREFIX.length) + 1;
+        int targetEnd = targetStart;
+        while (targetEnd < utf8.limit() && utf8.get(targetEnd) != ',') {
+            targetEnd++;
+        }
+        if (targetEnd == utf8.limit()) {
+            return false;
+        }
+
+        out.put(kind);
+        writeVarint(out, targetEnd - targetStart);
+        ByteBuffer target = utf8.duplicate();
+        target.position(targetStart).limit(targetEnd);
+        out.put(target);
+        writeVarint(out, bookmark(text) + 1);
+        ByteBuffer payload = utf8.duplicate();
+        payload.position(targetEnd + 1);
+        out.put(payload);
+        return true;
+    }
+
+    // the bookmark the room puts at the end of its payloads, or -1 if there isn't one.
+    private static long bookmark(String text) {
+        int end = text.length() - 1;
+        if (end < 0 || text.charAt(end) != '}') {
+            return -1;
+        }
+        int digits = end;
+        while (digits > 0 && Character.isDigit(text.charAt(digits - 1))) {
+            digits--;
+        }
+        if (digits == end || end - digits > 18 || !text.startsWith(BOOKMARK_KEY, digits - BOOKMARK_KEY.length())) {
+            return -1;
+        }
+        return Long.parseLong(text.substring(digits, end));
+    }
+
+    private static boolean startsWith(ByteBuffer b, byte[] prefix, char then) {
+        int p = b.position();
+        if (b.limit() - p <= prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (b.get(p + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return b.get(p + prefix.length) == then;
+    }
+
+    private static String readString(ByteBuffer in, int length) {
+        String s;
+        if (in.hasArray()) {
+            s = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        } else {
+            byte[] bytes = new byte[length];
+            in.duplicate().get(bytes);
+            s = new String(bytes, StandardCharsets.UTF_8);
+        }
+        in.position(in.position() + length);
+        return s;
+    }
+
+    static int readVarint(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (!in.hasRemaining()) {
+                throw new IllegalArgumentException("Message ends in the middle of a length");
+            }
+            byte b = in.get();
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                if (value < 0) {
+                    break;
+                }
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed length in message");
+    }
+
+    static void writeVarint(ByteBuffer out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+}
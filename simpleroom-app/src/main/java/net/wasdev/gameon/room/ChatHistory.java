@@ -0,0 +1,145 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+/**
+ * The room's recent chat and events, for players who have just arrived or want to see what
+ * they missed.
+ *
+ * Messages are kept as sent, already encoded, in a fixed-size ring of bytes, with a fixed number
+ * of slots recording where each one starts and how long it is. Adding a message overwrites the
+ * oldest ones once either runs out, so the memory used never changes however long the room
+ * runs, and nothing is allocated until a message is read back.
+ *
+ * Only messages to the whole room are kept, and without their {@code player,*,} routing, so
+ * they can be sent on to a single player.
+ *
+ * Belongs to the room's loop, like the rest of {@link RoomState}, so there is no locking.
+ */
+final class ChatHistory {
+
+    private static final byte[] TO_ALL = "player,*,".getBytes(StandardCharsets.UTF_8);
+
+    private final byte[] data;
+    // by slot: where each message starts, counting every byte ever written, and its length.
+    private final long[] starts;
+    private final int[] lengths;
+    private final int mask;
+
+    /** Bytes ever written. */
+    private long written;
+    /** The sequence number of the next message, and of the oldest still kept. */
+    private long next;
+    private long oldest;
+
+    /**
+     * @param messages
+     *            how many messages to keep, at most (rounded up to a power of two), or 0 to keep
+     *            none
+     * @param bytes
+     *            how many bytes of messages to keep, at most
+     */
+    ChatHistory(int messages, int bytes) {
+        int slots = messages <= 1 ? Math.max(messages, 0) : Integer.highestOneBit(messages - 1) << 1;
+        this.data = new byte[slots == 0 ? 0 : Math.max(bytes, 0)];
+        this.starts = new long[slots];
+        this.lengths = new int[slots];
+        this.mask = slots - 1;
+    }
+
+    /**
+     * Keep a message the room has sent, if it went to everybody.
+     *
+     * @param utf8
+     *            The message as sent, in UTF-8, from its position to its limit
+     */
+    void add(ByteBuffer utf8) {
+        int length = utf8.remaining() - TO_ALL.length;
+        if (length <= 0 || length > data.length || !toAll(utf8)) {
+            return;
+        }
+        // let go of the oldest messages until there are both a slot and the bytes for this one.
+        while (oldest < next
+                && (next - oldest > mask || written + length - starts[(int) oldest & mask] > data.length)) {
+            oldest++;
+        }
+        int slot = (int) next & mask;
+        starts[slot] = written;
+        lengths[slot] = length;
+
+        ByteBuffer src = utf8.duplicate();
+        src.position(src.position() + TO_ALL.length);
+        int at = (int) (written % data.length);
+        int first = Math.min(length, data.length - at);
+        src.get(data, at, first);
+        src.get(data, 0, length - first);
+        written += length;
+        next++;
+    }
+
+    /**
+     * Send on the most recent messages, oldest first, addressed to a single player.
+     *
+     * @param count
+     *            How many messages, at most
+     * @param userid
+     *            The player to address them to
+     * @return how many messages there were
+     */
+    int replay(int count, String userid, Consumer<String> sink) {
+        long from = Math.max(oldest, next - Math.max(count, 0));
+        String routing = "player," + userid + ",";
+        for (long seq = from; seq < next; seq++) {
+            int slot = (int) seq & mask;
+            int at = (int) (starts[slot] % data.length);
+            int length = lengths[slot];
+            String message;
+            if (at + length <= data.length) {
+                message = new String(data, at, length, StandardCharsets.UTF_8);
+            } else {
+                // wrapped around the end of the ring.
+                byte[] joined = new byte[length];
+                int first = data.length - at;
+                System.arraycopy(data, at, joined, 0, first);
+                System.arraycopy(data, 0, joined, first, length - first);
+                message = new String(joined, StandardCharsets.UTF_8);
+            }
+            sink.accept(routing.concat(message));
+        }
+        return (int) (next - from);
+    }
+
+    /**
+     * @return how many messages are kept
+     */
+    int size() {
+        return (int) (next - oldest);
+    }
+
+    private static boolean toAll(ByteBuffer utf8) {
+        int p = utf8.position();
+        for (int i = 0; i < TO_ALL.length; i++) {
+            if (utf8.get(p + i) != TO_ALL[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
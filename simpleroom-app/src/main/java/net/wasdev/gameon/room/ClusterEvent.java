@@ -0,0 +1,140 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Something that happened in a room, shared with the other nodes hosting it through the
+ * {@link RoomBus}: chat and events that go to the whole room, players arriving or leaving, and
+ * requests for who is in the room.
+ */
+final class ClusterEvent {
+
+    enum Kind {
+        /** Chat from a player, to the whole room. */
+        CHAT,
+        /** An event for the whole room, with a variant for the player it's about. */
+        EVENT,
+        /** A player arrived on the publishing node. */
+        JOIN,
+        /** A player left the publishing node. */
+        LEAVE,
+        /**
+         * The publishing node has just brought the room to life, or rejoined the cluster, and
+         * wants to know who is in it: every other node with the room live answers with a JOIN
+         * for each of its players.
+         */
+        SYNC
+    }
+
+    private static final Kind[] KINDS = Kind.values();
+
+    /** The longest string read off the wire. */
+    private static final int MAX_STRING = 1 << 20;
+
+    final Kind kind;
+    /** The node it happened on. */
+    final String origin;
+    final String roomId;
+    /** The publisher's next bookmark, which the event's sequence number won't be below. */
+    final long floor;
+    final String userid;
+    final String username;
+    /** Chat content, or the event for the room. */
+    final String text;
+    /** The event for the player, if there is one. */
+    final String forUser;
+
+    private ClusterEvent(Kind kind, String origin, String roomId, long floor, String userid, String username,
+            String text, String forUser) {
+        this.kind = kind;
+        this.origin = origin;
+        this.roomId = roomId;
+        this.floor = floor;
+        this.userid = userid;
+        this.username = username;
+        this.text = text;
+        this.forUser = forUser;
+    }
+
+    static ClusterEvent chat(String origin, String roomId, long floor, String userid, String username, String content) {
+        return new ClusterEvent(Kind.CHAT, origin, roomId, floor, userid, username, content, null);
+    }
+
+    static ClusterEvent event(String origin, String roomId, long floor, String userid, String forRoom, String forUser) {
+        return new ClusterEvent(Kind.EVENT, origin, roomId, floor, userid, null, forRoom, forUser);
+    }
+
+    static ClusterEvent join(String origin, String roomId, long floor, String userid) {
+        return new ClusterEvent(Kind.JOIN, origin, roomId, floor, userid, null, null, null);
+    }
+
+    static ClusterEvent leave(String origin, String roomId, long floor, String userid) {
+        return new ClusterEvent(Kind.LEAVE, origin, roomId, floor, userid, null, null, null);
+    }
+
+    static ClusterEvent sync(String origin, String roomId, long floor) {
+        return new ClusterEvent(Kind.SYNC, origin, roomId, floor, null, null, null, null);
+    }
+
+    void write(DataOutput out) throws IOException {
+        out.writeByte(kind.ordinal());
+        writeString(out, origin);
+        writeString(out, roomId);
+        out.writeLong(floor);
+        writeString(out, userid);
+        writeString(out, username);
+        writeString(out, text);
+        writeString(out, forUser);
+    }
+
+    static ClusterEvent read(DataInput in) throws IOException {
+        int kind = in.readUnsignedByte();
+        if (kind >= KINDS.length) {
+            throw new IOException("Unknown cluster event kind " + kind);
+        }
+        return new ClusterEvent(KINDS[kind], readString(in), readString(in), in.readLong(), readString(in),
+                readString(in), readString(in), readString(in));
+    }
+
+    // strings go as a length and UTF-8, as writeUTF can't manage more than 64K.
+    private static void writeString(DataOutput out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > MAX_STRING) {
+            throw new IOException("Cluster event string too long: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
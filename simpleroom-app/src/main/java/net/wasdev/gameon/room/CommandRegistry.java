@@ -0,0 +1,132 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+/**
+ * The room's commands, found by verb.
+ *
+ * A command is a slash, a verb, and whatever arguments follow it ({@code /go n}). Lookup reads
+ * the verb straight out of the message, case-insensitively, and finds its handler in an
+ * open-addressed table, so it takes the same time however many commands are registered, and
+ * doesn't copy or lowercase anything along the way.
+ *
+ * Commands are registered up front; lookups are safe from any thread once registration is done.
+ *
+ * @param <H>
+ *            What is registered for each verb
+ */
+final class CommandRegistry<H> {
+
+    private String[] verbs = new String[16];
+    private Object[] handlers = new Object[16];
+    private int size;
+
+    /**
+     * Register a command.
+     *
+     * @param verb
+     *            The verb, without the slash, matched ignoring case
+     * @param handler
+     *            What to find for it
+     */
+    void register(String verb, H handler) {
+        if (verb.isEmpty() || verbEnd(verb, 0) != verb.length()) {
+            throw new IllegalArgumentException("Not a valid verb: '" + verb + "'");
+        }
+        if ((size + 1) * 2 > verbs.length) {
+            resize(verbs.length * 2);
+        }
+        String key = verb.toLowerCase();
+        int slot = slot(verbs, key, 0, key.length());
+        if (verbs[slot] == null) {
+            size++;
+        }
+        verbs[slot] = key;
+        handlers[slot] = handler;
+    }
+
+    /**
+     * Find the handler for a command.
+     *
+     * @param content
+     *            What the player typed, starting with the slash
+     * @return the handler for its verb, or null if there isn't one
+     */
+    @SuppressWarnings("unchecked")
+    H find(String content) {
+        int end = verbEnd(content, 1);
+        return (H) handlers[slot(verbs, content, 1, end)];
+    }
+
+    /**
+     * @return the index of the first whitespace at or after from, or the length of the content
+     */
+    static int verbEnd(String content, int from) {
+        int i = from;
+        while (i < content.length() && !Character.isWhitespace(content.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * @return the index where the arguments to a command start, after the verb and any space
+     */
+    static int argStart(String content) {
+        int i = verbEnd(content, 1);
+        while (i < content.length() && Character.isWhitespace(content.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    // the slot holding the verb in content[from, to), or the empty slot it would go in.
+    private static int slot(String[] table, String content, int from, int to) {
+        int mask = table.length - 1;
+        int len = to - from;
+        int i = hash(content, from, to) & mask;
+        while (true) {
+            String key = table[i];
+            if (key == null || (key.length() == len && content.regionMatches(true, from, key, 0, len))) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    private static int hash(String s, int from, int to) {
+        int h = 0;
+        for (int i = from; i < to; i++) {
+            h = 31 * h + Character.toLowerCase(s.charAt(i));
+        }
+        // spread the bits, as the table is indexed by the low ones.
+        return h ^ (h >>> 16);
+    }
+
+    private void resize(int capacity) {
+        String[] oldVerbs = verbs;
+        Object[] oldHandlers = handlers;
+        verbs = new String[capacity];
+        handlers = new Object[capacity];
+        for (int i = 0; i < oldVerbs.length; i++) {
+            if (oldVerbs[i] != null) {
+                int slot = slot(verbs, oldVerbs[i], 0, oldVerbs[i].length());
+                verbs[slot] = oldVerbs[i];
+                handlers[slot] = oldHandlers[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,526 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * An append-only journal of the messages the room has sent, keyed by bookmark, so a mediator
+ * that reconnects can be sent whatever it missed.
+ *
+ * The journal is a directory of fixed-size segment files, each memory-mapped while the room is
+ * running, and named after the first bookmark written to it. Records are laid out as
+ * <pre>
+ *   int    length of the message, in bytes (0 marks the end of the segment)
+ *   long   bookmark
+ *   byte[] the message, as sent, in UTF-8
+ * </pre>
+ * When a record won't fit in the current segment a new one is started, and once there are more
+ * than the retention limit the oldest segment is deleted.
+ *
+ * A mapping would otherwise stay until the buffer is garbage collected, holding on to memory
+ * (and, on Windows, keeping the file from being deleted), so segments are unmapped as soon as
+ * nothing uses them: each is counted as used by the journal while it holds it, and by every
+ * {@link Snapshot} taken of it until that is released. A segment the journal has let go of is
+ * deleted once it has been unmapped.
+ *
+ * Not thread safe: it belongs to the room loop, like the rest of the room state. A
+ * {@link Snapshot} of it can be read from any thread, so a long catch-up needn't hold up the loop.
+ */
+final class EventJournal {
+
+    private static final String SUFFIX = ".journal";
+    private static final int HEADER = 4 + 8;
+
+    /** Bytes mapped by every journal, including segments only snapshots still use. */
+    private static final AtomicLong mappedTotal = new AtomicLong();
+
+    /** Unmaps a buffer there and then, or null if this JVM doesn't let us. */
+    private static final Consumer<ByteBuffer> unmapper = unmapper();
+
+    private final File dir;
+    private final int segmentSize;
+    private final int maxSegments;
+
+    /** Oldest first, the last one is being written. */
+    private final Deque<Segment> segments = new ArrayDeque<>();
+
+    private long nextBookmark;
+    /** Segments mapped, for whoever is keeping track of memory. */
+    private volatile int mapped;
+    private boolean closed;
+
+    /**
+     * Open (or create) the journal in the given directory, recovering whatever was written
+     * by a previous run.
+     *
+     * @param dir
+     *            Directory holding the segment files
+     * @param segmentSize
+     *            Size in bytes of each segment file
+     * @param maxSegments
+     *            Number of segments to keep
+     * @throws IOException
+     *             if the directory or segments can't be read or created
+     */
+    EventJournal(File dir, int segmentSize, int maxSegments) throws IOException {
+        if (maxSegments < 1) {
+            throw new IllegalArgumentException("The journal needs at least one segment, was " + maxSegments);
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create journal directory " + dir);
+        }
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+
+        File[] files = dir.listFiles((d, n) -> n.endsWith(SUFFIX));
+        Arrays.sort(files);
+        for (File f : files) {
+            Segment s = new Segment(f, segmentSize);
+            s.recover();
+            segments.add(s);
+            mapped = segments.size();
+            if (s.lastBookmark >= 0) {
+                nextBookmark = s.lastBookmark + 1;
+            }
+        }
+        trim();
+    }
+
+    /**
+     * @return how many bytes of segment files are mapped. Can be called from any thread.
+     */
+    long mappedBytes() {
+        return (long) mapped * segmentSize;
+    }
+
+    /**
+     * @return how many bytes of segment files every journal has mapped, counting those that
+     *         have been let go of but are still being read. Can be called from any thread.
+     */
+    static long mappedBytesTotal() {
+        return mappedTotal.get();
+    }
+
+    /**
+     * @return the bookmark after the last one recorded, so the room carries on where it left off
+     */
+    long nextBookmark() {
+        return nextBookmark;
+    }
+
+    /**
+     * Record a message sent by the room.
+     *
+     * @param bookmark
+     *            The bookmark of the message, which must be higher than anything already recorded
+     * @param message
+     *            The message as sent, including its routing prefix
+     */
+    void append(long bookmark, String message) {
+        append(bookmark, ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Record a message sent by the room, already encoded.
+     *
+     * @param bookmark
+     *            The bookmark of the message, which must be higher than anything already recorded
+     * @param utf8
+     *            The message as sent, in UTF-8, from its position to its limit
+     */
+    void append(long bookmark, ByteBuffer utf8) {
+        if (closed) {
+            return; // the room has been evicted, and it's no longer ours to write
+        }
+        int length = utf8.remaining();
+        if (HEADER + length + 4 > segmentSize) {
+            RoomLog.log(RoomLog.Level.WARN, RoomLog.Category.JOURNAL, "Message is too big for the journal, skipping it",
+                    null, null, bookmark, null, null);
+            return;
+        }
+        Segment current = segments.peekLast();
+        if (current == null || !current.fits(length)) {
+            try {
+                current = new Segment(new File(dir, String.format("%020d", bookmark) + SUFFIX), segmentSize);
+            } catch (IOException e) {
+                RoomLog.warn(RoomLog.Category.JOURNAL, "Unable to start a new journal segment", e);
+                return;
+            }
+            segments.add(current);
+            mapped = segments.size();
+            trim();
+        }
+        current.write(bookmark, utf8);
+        nextBookmark = bookmark + 1;
+    }
+
+    /**
+     * Take a view of everything recorded so far, which can be replayed from any thread while the
+     * room carries on appending after it. It keeps the segments it covers mapped until it is
+     * {@link Snapshot#release() released}.
+     *
+     * @return the view
+     */
+    Snapshot snapshot() {
+        return new Snapshot(segments.toArray(new Segment[segments.size()]));
+    }
+
+    /**
+     * Replay what has been recorded since a snapshot was taken that was addressed to everyone,
+     * or to the given user, in the order it was sent: what a replay of the snapshot, done off
+     * the loop, couldn't see.
+     *
+     * @param since
+     *            The snapshot that has been replayed already
+     * @param userid
+     *            The user to replay messages for
+     * @param sink
+     *            Receives each message, addressed to the user
+     */
+    void replaySince(Snapshot since, String userid, Consumer<String> sink) {
+        Target target = new Target(userid);
+        Segment last = since.segments.length == 0 ? null : since.segments[since.segments.length - 1];
+        for (Segment s : segments) {
+            int from;
+            if (last == null || s.firstBookmark > last.firstBookmark) {
+                from = 0; // started since
+            } else if (s == last) {
+                from = since.ends[since.ends.length - 1];
+            } else {
+                continue; // already in the snapshot
+            }
+            ByteBuffer reader = s.buffer.duplicate();
+            int end = s.buffer.position();
+            for (int pos = from; pos < end; pos += HEADER + reader.getInt(pos)) {
+                if (target.matches(reader, pos)) {
+                    sink.accept(target.message(reader, pos));
+                }
+            }
+        }
+    }
+
+    /**
+     * Flush what has been written to disk, and unmap the segments (once any snapshots of them
+     * have been released). The journal can't be used afterwards.
+     */
+    void close() {
+        closed = true;
+        for (Segment s : segments) {
+            s.buffer.force();
+            s.release();
+        }
+        segments.clear();
+        mapped = 0;
+    }
+
+    private void trim() {
+        while (segments.size() > maxSegments) {
+            Segment oldest = segments.removeFirst();
+            oldest.delete = true;
+            oldest.release();
+        }
+        mapped = segments.size();
+    }
+
+    // Buffers have no public way to be unmapped: on 9 and later it's Unsafe.invokeCleaner, and on
+    // 8 the buffer's own cleaner.
+    private static Consumer<ByteBuffer> unmapper() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            Object unsafe = theUnsafe.get(null);
+            return b -> invoke(invokeCleaner, unsafe, b);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // not 9 or later.
+        }
+        try {
+            Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+            Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            return b -> invoke(clean, invoke(cleaner, b));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            RoomLog.warn(RoomLog.Category.JOURNAL, "Journal segments can't be unmapped in this JVM, they stay mapped "
+                    + "until they are garbage collected (and can't be deleted on Windows until then): " + e);
+            return null;
+        }
+    }
+
+    private static Object invoke(Method method, Object target, Object... args) {
+        try {
+            return method.invoke(target, args);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Unable to unmap a journal segment", e);
+        }
+    }
+
+    /**
+     * One segment file, and its mapping.
+     */
+    private static final class Segment {
+        final File file;
+        final long firstBookmark;
+        final MappedByteBuffer buffer;
+        final int size;
+        long lastBookmark = -1;
+        /** The journal's use of the segment, and each snapshot's. */
+        private final AtomicInteger users = new AtomicInteger(1);
+        /** Set by the journal, before it lets go, if the file should go once it's unmapped. */
+        volatile boolean delete;
+
+        Segment(File file, int size) throws IOException {
+            this.file = file;
+            String n = file.getName();
+            this.firstBookmark = Long.parseLong(n.substring(0, n.length() - SUFFIX.length()));
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                if (raf.length() < size) {
+                    raf.setLength(size);
+                }
+                // the mapping outlives the channel.
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+            this.size = size;
+            mappedTotal.addAndGet(size);
+        }
+
+        /**
+         * Take another use of the segment, for a snapshot. Only called on the room loop, while
+         * the journal still holds it.
+         */
+        void acquire() {
+            users.incrementAndGet();
+        }
+
+        /**
+         * Give up a use of the segment. The last one unmaps it, and deletes the file if the
+         * journal asked for that.
+         */
+        void release() {
+            if (users.decrementAndGet() != 0) {
+                return;
+            }
+            if (unmapper != null) {
+                try {
+                    unmapper.accept(buffer);
+                } catch (RuntimeException e) {
+                    RoomLog.warn(RoomLog.Category.JOURNAL, "Unable to unmap journal segment " + file, e);
+                }
+            }
+            // without an unmapper it's left to the collector, and no longer ours to count.
+            mappedTotal.addAndGet(-size);
+            if (delete && !file.delete()) {
+                RoomLog.warn(RoomLog.Category.JOURNAL, "Unable to delete old journal segment " + file);
+            }
+        }
+
+        /**
+         * Find the end of what a previous run wrote, ready to append after it.
+         */
+        void recover() {
+            int pos = 0;
+            while (pos + HEADER <= buffer.capacity()) {
+                int length = buffer.getInt(pos);
+                if (length <= 0 || pos + HEADER + length > buffer.capacity()) {
+                    break;
+                }
+                lastBookmark = buffer.getLong(pos + 4);
+                pos += HEADER + length;
+            }
+            buffer.position(pos);
+        }
+
+        boolean fits(int length) {
+            // always leave room for the zero length that marks the end.
+            return buffer.position() + HEADER + length + 4 <= buffer.capacity();
+        }
+
+        void write(long bookmark, ByteBuffer bytes) {
+            int pos = buffer.position();
+            int length = bytes.remaining();
+            // body and bookmark first, so a torn write never leaves a length pointing at garbage.
+            buffer.putLong(pos + 4, bookmark);
+            buffer.position(pos + HEADER);
+            buffer.put(bytes);
+            buffer.putInt(buffer.position(), 0);
+            buffer.putInt(pos, length);
+            lastBookmark = bookmark;
+        }
+
+    }
+
+    /**
+     * What the journal held when {@link EventJournal#snapshot()} was called. The segments are
+     * only ever appended to, so nothing it covers changes while it's being read, and they stay
+     * mapped (even if the journal lets go of them) until the snapshot is released.
+     */
+    static final class Snapshot {
+        private final Segment[] segments;
+        /** Where each segment's records ended. */
+        private final int[] ends;
+        private final ByteBuffer[] readers;
+        private final AtomicInteger released = new AtomicInteger();
+
+        private Snapshot(Segment[] segments) {
+            this.segments = segments;
+            this.ends = new int[segments.length];
+            this.readers = new ByteBuffer[segments.length];
+            for (int i = 0; i < segments.length; i++) {
+                segments[i].acquire();
+                ends[i] = segments[i].buffer.position();
+                readers[i] = segments[i].buffer.duplicate();
+            }
+        }
+
+        /**
+         * Let go of the segments, which can't be replayed from here afterwards. Can be called
+         * from any thread, and more than once.
+         */
+        void release() {
+            if (released.getAndIncrement() == 0) {
+                for (Segment s : segments) {
+                    s.release();
+                }
+            }
+        }
+
+        /**
+         * Replay the latest messages recorded after a bookmark that were addressed to everyone,
+         * or to the given user, in the order they were sent. Only as many segments are read as
+         * it takes to find them, newest first.
+         *
+         * @param after
+         *            The last bookmark the user saw
+         * @param userid
+         *            The user to replay messages for
+         * @param max
+         *            The most messages to replay
+         * @param sink
+         *            Receives each message, addressed to the user
+         * @return -1 if everything was replayed, or the bookmark before the first message
+         *         replayed if there were more than {@code max} and the earlier ones were left out
+         */
+        long replay(long after, String userid, int max, Consumer<String> sink) {
+            if (released.get() != 0) {
+                throw new IllegalStateException("The journal snapshot has been released");
+            }
+            Target target = new Target(userid);
+            // by segment: where the latest matching records start, oldest first.
+            int[][] picked = new int[segments.length][];
+            int found = 0;
+            boolean truncated = false;
+            int oldest = segments.length;
+            while (oldest > 0 && found < max) {
+                int i = oldest - 1;
+                // the segments before one starting at or before the bookmark are all older.
+                if (i < segments.length - 1 && segments[i + 1].firstBookmark <= after + 1) {
+                    break;
+                }
+                oldest = i;
+                int room = max - found;
+                int[] ring = new int[room];
+                int seen = 0;
+                ByteBuffer reader = readers[i];
+                for (int pos = 0; pos < ends[i]; pos += HEADER + reader.getInt(pos)) {
+                    if (reader.getLong(pos + 4) > after && target.matches(reader, pos)) {
+                        ring[seen++ % room] = pos;
+                    }
+                }
+                int kept = Math.min(seen, room);
+                picked[i] = new int[kept];
+                for (int k = 0; k < kept; k++) {
+                    picked[i][k] = ring[(seen - kept + k) % room];
+                }
+                found += kept;
+                truncated |= seen > room;
+            }
+            if (found == max && oldest > 0 && oldest < segments.length && segments[oldest].firstBookmark > after + 1) {
+                truncated = true; // older segments that were never read may hold more.
+            }
+            long skippedTo = -1;
+            for (int i = oldest; i < segments.length; i++) {
+                for (int pos : picked[i]) {
+                    if (truncated && skippedTo < 0) {
+                        skippedTo = readers[i].getLong(pos + 4) - 1;
+                    }
+                    sink.accept(target.message(readers[i], pos));
+                }
+            }
+            return skippedTo;
+        }
+    }
+
+    /**
+     * Picks out the records for one user, and addresses them to just that user.
+     */
+    private static final class Target {
+        private static final byte[] TO_ALL = "player,*,".getBytes(StandardCharsets.UTF_8);
+
+        private final String routing;
+        private final byte[] toUser;
+
+        Target(String userid) {
+            this.routing = "player," + userid + ",";
+            this.toUser = routing.getBytes(StandardCharsets.UTF_8);
+        }
+
+        boolean matches(ByteBuffer reader, int pos) {
+            return startsWith(reader, pos, TO_ALL) || startsWith(reader, pos, toUser);
+        }
+
+        /**
+         * @return the record's message, with a message to everyone readdressed to the user, so
+         *         other players on the same connection aren't sent it twice
+         */
+        String message(ByteBuffer reader, int pos) {
+            int length = reader.getInt(pos);
+            int skip = startsWith(reader, pos, TO_ALL) ? TO_ALL.length : 0;
+            byte[] bytes = new byte[length - skip];
+            ByteBuffer body = reader.duplicate();
+            body.position(pos + HEADER + skip);
+            body.get(bytes);
+            String message = new String(bytes, StandardCharsets.UTF_8);
+            return skip == 0 ? message : routing.concat(message);
+        }
+
+        private static boolean startsWith(ByteBuffer reader, int pos, byte[] prefix) {
+            if (reader.getInt(pos) < prefix.length) {
+                return false;
+            }
+            for (int i = 0; i < prefix.length; i++) {
+                if (reader.get(pos + HEADER + i) != prefix[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
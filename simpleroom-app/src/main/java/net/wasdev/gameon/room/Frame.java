@@ -0,0 +1,92 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One outbound message, shared by every session it is sent to.
+ *
+ * A broadcast queues the same frame for every recipient rather than a copy each. The message is
+ * encoded to UTF-8 at most once, and every user of the frame reads it through its own read-only
+ * view. The buffers aren't pooled: a container may hold on to what it was given to send for as
+ * long as it likes (batching, or writing it asynchronously), so they're left to the garbage
+ * collector, which knows when nobody is using them any more.
+ *
+ * Sessions using the {@link BinaryProtocol} get the message in its binary form, which is
+ * likewise built at most once, from the UTF-8. Text sessions are handed {@link #text} instead:
+ * JSR-356 can't be given encoded bytes for a text message, so the container still encodes it for
+ * each of them, and the UTF-8 here only saves the room encoding it again for the journal and
+ * history.
+ */
+final class Frame {
+
+    final String text;
+
+    // guarded by this
+    private ByteBuffer utf8;
+    private ByteBuffer binary;
+    private boolean textOnly;
+
+    private Frame(String text) {
+        this.text = text;
+    }
+
+    /**
+     * @return a new frame for the message
+     */
+    static Frame of(String text) {
+        return new Frame(text);
+    }
+
+    /**
+     * The message encoded as UTF-8, encoded on first use and shared from then on.
+     *
+     * @return a read-only view of the encoded message, positioned at its start
+     */
+    ByteBuffer utf8() {
+        synchronized (this) {
+            if (utf8 == null) {
+                utf8 = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+            }
+            return utf8.asReadOnlyBuffer();
+        }
+    }
+
+    /**
+     * The message in the {@link BinaryProtocol}'s framing, built on first use and shared from
+     * then on.
+     *
+     * @return a read-only view of the binary message, positioned at its start, or null if the
+     *         message only has a text form
+     */
+    ByteBuffer binary() {
+        synchronized (this) {
+            if (binary == null && !textOnly) {
+                ByteBuffer u = utf8();
+                ByteBuffer b = ByteBuffer.allocate(u.remaining() + BinaryProtocol.HEADROOM);
+                if (BinaryProtocol.write(text, u, b)) {
+                    b.flip();
+                    binary = b;
+                } else {
+                    textOnly = true;
+                }
+            }
+            return binary == null ? null : binary.asReadOnlyBuffer();
+        }
+    }
+}
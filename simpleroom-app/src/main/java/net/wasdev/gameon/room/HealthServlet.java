@@ -0,0 +1,62 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.io.IOException;
+import java.util.Set;
+
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObjectBuilder;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Readiness for health checks: 200 once every hosted room is registered with the map, and 503
+ * (with the rooms still pending, or refused by the map) until then.
+ */
+@WebServlet("/health")
+public class HealthServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        boolean ready = VerySimpleRoom.isRegistered();
+        JsonObjectBuilder health = Json.createObjectBuilder();
+        health.add("status", ready ? "UP" : "DOWN");
+        if (!ready) {
+            health.add("pending", array(VerySimpleRoom.pendingRegistrations()));
+            health.add("failed", array(VerySimpleRoom.failedRegistrations()));
+        }
+
+        resp.setStatus(ready ? HttpServletResponse.SC_OK : HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        resp.setContentType("application/json");
+        resp.setCharacterEncoding("UTF-8");
+        resp.getWriter().write(health.build().toString());
+    }
+
+    private static JsonArrayBuilder array(Set<String> rooms) {
+        JsonArrayBuilder array = Json.createArrayBuilder();
+        for (String room : rooms) {
+            array.add(room);
+        }
+        return array;
+    }
+}
@@ -0,0 +1,248 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import javax.websocket.Session;
+
+/**
+ * Keeps an eye on whether each session is still there.
+ *
+ * Every session records when we last heard from it (a message or a pong). Sessions that have
+ * been quiet for a ping interval are sent a WebSocket ping, and those that stay quiet past the
+ * timeout (or that the container has closed without telling us) are handed to the reaper.
+ *
+ * Rather than a scheduled task per session, sessions sit in the buckets of a hashed timer wheel,
+ * each in the bucket for the tick it next needs looking at. One thread turns the wheel a tick at
+ * a time and only visits the sessions in the current bucket, so the cost of a tick depends on
+ * how many sessions are due, not how many there are. The wheel belongs to that thread: new
+ * sessions reach it through a queue, and cancelled ones are dropped the next time their bucket
+ * comes round. Pings and reaps go to the container, which can block, so they are handed to
+ * {@link RoomThreads#blocking()} and the wheel's thread only ever does the bookkeeping.
+ */
+final class Heartbeat {
+
+    /** What is sent in each ping, so pongs can be told apart from anything else. */
+    private static final ByteBuffer PING = ByteBuffer.wrap(new byte[] { 'g', 'o' }).asReadOnlyBuffer();
+
+    private final long tickMillis;
+    private final long pingMillis;
+    private final long timeoutMillis;
+    private final Consumer<Session> reaper;
+
+    // only touched by the timer thread
+    private final Entry[] wheel;
+    private final int mask;
+    private long tick;
+
+    private final Queue<Entry> added = new ConcurrentLinkedQueue<>();
+
+    private final LongAdder pings = new LongAdder();
+    private final LongAdder reaped = new LongAdder();
+
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "room-heartbeat");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * @param tickMillis
+     *            How often the wheel turns, which is how precise the timings are
+     * @param wheelSize
+     *            Buckets in the wheel, rounded up to a power of two
+     * @param pingMillis
+     *            How long a session can be quiet before it is pinged
+     * @param timeoutMillis
+     *            How long a session can be quiet before it is reaped
+     * @param reaper
+     *            Called, on one of the {@link RoomThreads#blocking()} threads, with each session
+     *            that has gone away
+     */
+    Heartbeat(long tickMillis, int wheelSize, long pingMillis, long timeoutMillis, Consumer<Session> reaper) {
+        if (tickMillis < 1 || pingMillis < tickMillis || timeoutMillis <= pingMillis) {
+            throw new IllegalArgumentException("Heartbeat needs tick <= ping interval < timeout, had " + tickMillis
+                    + "ms, " + pingMillis + "ms, " + timeoutMillis + "ms");
+        }
+        this.tickMillis = tickMillis;
+        this.pingMillis = pingMillis;
+        this.timeoutMillis = timeoutMillis;
+        this.reaper = reaper;
+        int size = Integer.highestOneBit(Math.max(2, wheelSize) * 2 - 1);
+        this.wheel = new Entry[size];
+        this.mask = size - 1;
+        timer.scheduleAtFixedRate(this::turn, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Start watching a session.
+     *
+     * @return the session's entry, to report activity on and to cancel once the session is gone
+     */
+    Entry track(Session session) {
+        Entry e = new Entry(session);
+        added.offer(e);
+        return e;
+    }
+
+    /**
+     * @return the number of pings sent
+     */
+    long pingCount() {
+        return pings.sum();
+    }
+
+    /**
+     * @return the number of sessions reaped for not answering
+     */
+    long reapedCount() {
+        return reaped.sum();
+    }
+
+    void shutdown() {
+        timer.shutdownNow();
+    }
+
+    // one tick of the wheel: everything in the current bucket is either due, or a lap early.
+    private void turn() {
+        try {
+            long now = System.currentTimeMillis();
+            Entry e;
+            while ((e = added.poll()) != null) {
+                schedule(e, e.lastActive + pingMillis, now);
+            }
+
+            int slot = (int) (tick & mask);
+            Entry due = wheel[slot];
+            wheel[slot] = null;
+            while (due != null) {
+                Entry next = due.next;
+                due.next = null;
+                if (due.rounds > 0) {
+                    due.rounds--;
+                    push(due, slot);
+                } else {
+                    check(due, now);
+                }
+                due = next;
+            }
+            tick++;
+        } catch (RuntimeException ex) {
+            // the timer would stop turning for good if we let this out.
+            RoomLog.error(RoomLog.Category.CONNECTION, "Heartbeat tick failed", ex);
+        }
+    }
+
+    private void check(Entry e, long now) {
+        if (e.cancelled.get()) {
+            return;
+        }
+        long idle = now - e.lastActive;
+        if (idle >= timeoutMillis || !e.session.isOpen()) {
+            reap(e, idle);
+            return;
+        }
+        if (idle < pingMillis) {
+            schedule(e, e.lastActive + pingMillis, now);
+            return;
+        }
+        RoomThreads.blocking().execute(() -> ping(e, idle));
+        schedule(e, Math.min(now + pingMillis, e.lastActive + timeoutMillis), now);
+    }
+
+    private void ping(Entry e, long idle) {
+        try {
+            e.session.getAsyncRemote().sendPing(PING.duplicate());
+            pings.increment();
+        } catch (IOException ex) {
+            reap(e, idle);
+        } catch (IllegalStateException ex) {
+            // the container is busy with the session, try again next time round.
+        }
+    }
+
+    private void reap(Entry e, long idle) {
+        if (e.cancelled.get()) {
+            return;
+        }
+        reaped.increment();
+        RoomLog.info(RoomLog.Category.CONNECTION, "Reaping a session that has been quiet for " + idle + "ms");
+        RoomThreads.blocking().execute(() -> reaper.accept(e.session));
+    }
+
+    // put an entry in the bucket for the first tick at or after the given time.
+    private void schedule(Entry e, long at, long now) {
+        long ticks = Math.max(1, (at - now + tickMillis - 1) / tickMillis);
+        // the current bucket has already been emptied, so ticks == wheel.length lands there a lap from now.
+        e.rounds = (ticks - 1) / wheel.length;
+        push(e, (int) ((tick + ticks) & mask));
+    }
+
+    private void push(Entry e, int slot) {
+        e.next = wheel[slot];
+        wheel[slot] = e;
+    }
+
+    /**
+     * One session being watched.
+     */
+    static final class Entry {
+        final Session session;
+        private volatile long lastActive = System.currentTimeMillis();
+        private final AtomicBoolean cancelled = new AtomicBoolean();
+
+        // only touched by the timer thread
+        private Entry next;
+        private long rounds;
+
+        private Entry(Session session) {
+            this.session = session;
+        }
+
+        /**
+         * We've heard from the session.
+         */
+        void touch() {
+            lastActive = System.currentTimeMillis();
+        }
+
+        /**
+         * Stop watching the session.
+         *
+         * @return true the first time, false if it was already cancelled
+         */
+        boolean cancel() {
+            return cancelled.compareAndSet(false, true);
+        }
+
+        /**
+         * @return true once the session has been let go of
+         */
+        boolean isCancelled() {
+            return cancelled.get();
+        }
+    }
+}
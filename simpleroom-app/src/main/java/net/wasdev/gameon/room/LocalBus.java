@@ -0,0 +1,88 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * One node's end of a bus between nodes in the same JVM. Publishing sequences the event and
+ * hands it straight to every node's delivery, on the publisher's thread.
+ *
+ * The nodes on a bus are the ones given the same {@link Hub}, which is only ever shared on
+ * purpose: each node of the app builds its own, so separate deployments (or classloaders) in a
+ * JVM are never clustered by accident.
+ */
+final class LocalBus implements RoomBus {
+
+    /**
+     * What the nodes on a local bus share: the sequencer, and every node's delivery.
+     */
+    static final class Hub {
+        private final Sequencer sequencer = new Sequencer();
+        private final List<Delivery> nodes = new CopyOnWriteArrayList<>();
+    }
+
+    private final Hub hub;
+    private final String node;
+    /** This node's delivery, while it is on the bus. */
+    private volatile Delivery delivery;
+    private volatile boolean closed;
+
+    LocalBus(Hub hub, String node) {
+        this.hub = hub;
+        this.node = node;
+    }
+
+    @Override
+    public void start(Delivery delivery) {
+        this.delivery = delivery;
+        hub.nodes.add(delivery);
+    }
+
+    @Override
+    public void publish(ClusterEvent event) {
+        if (closed) {
+            return; // the others have been told we've gone, and would only hear of us again
+        }
+        hub.sequencer.sequence(event, seq -> {
+            for (Delivery node : hub.nodes) {
+                node.deliver(event, seq);
+            }
+        });
+    }
+
+    @Override
+    public boolean isConnected() {
+        return true;
+    }
+
+    /**
+     * Take this node off the bus, leaving it to the others, which are told it has gone.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        Delivery leaving = delivery;
+        if (leaving == null || !hub.nodes.remove(leaving)) {
+            return;
+        }
+        delivery = null;
+        for (Delivery other : hub.nodes) {
+            other.nodeDown(node);
+        }
+    }
+}
@@ -0,0 +1,616 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.websocket.CloseReason;
+import javax.websocket.CloseReason.CloseCodes;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+
+/**
+ * Outbound message delivery for the room.
+ *
+ * Every session gets its own bounded queue, drained through {@link Session#getAsyncRemote()}
+ * with at most one message in flight at a time. That keeps messages to a session in the order
+ * they were queued, and means a slow mediator only ever backs up its own queue: the thread
+ * doing the broadcast just enqueues and moves on.
+ *
+ * When a queue is full the {@link OverflowPolicy} decides what happens to the slow session.
+ *
+ * A broadcast puts the same {@link Frame} on every queue, rather than a copy on each.
+ *
+ * Optionally, messages can be coalesced: each session's remote is switched to batching, so the
+ * container gathers the messages it is handed rather than writing each one out, and the batch
+ * is flushed once it has been open for the coalescing window, or holds enough characters,
+ * whichever comes first. Every message is still its own WebSocket frame, and still goes in queue
+ * order; there are just fewer, bigger writes. Containers that don't support batching report it
+ * as off, and their sessions carry on unbatched.
+ *
+ * A broadcast to a big enough room is split into chunks of sessions, queued in parallel on a
+ * fork/join pool of the outbound's own, so the last session in a room of thousands isn't left
+ * waiting for every one before it to be handed its message. The broadcasting thread waits for
+ * every chunk to finish, so the room is still done with the frame when the broadcast returns.
+ * Smaller rooms are queued in a plain loop on the broadcasting thread, where handing off would
+ * cost more than it saves. That wait holds up the room's loop for as long as the slowest chunk,
+ * so splitting is off unless it's asked for.
+ */
+final class Outbound {
+
+    /**
+     * What to do when a session's queue is full.
+     */
+    enum OverflowPolicy {
+        /** Discard the oldest queued message to make room for the new one. */
+        DROP_OLDEST,
+        /** Give up on the session, and close it with {@link CloseCodes#TRY_AGAIN_LATER}. */
+        DISCONNECT
+    }
+
+    private final ConcurrentMap<Session, SessionOutbox> outboxes = new ConcurrentHashMap<>();
+
+    private final int capacity;
+    private final OverflowPolicy policy;
+
+    /** How long a batch can be held open for, or 0 if messages aren't coalesced. */
+    private final long coalesceNanos;
+    /** How many characters a batch can hold before it is flushed regardless. */
+    private final int coalesceChars;
+    /** Flushes batches whose window has closed, when coalescing. */
+    private final ScheduledExecutorService flusher;
+
+    /** How many sessions a broadcast has to go to before it is split up, or 0 if it never is. */
+    private final int parallelThreshold;
+    /** Queues the chunks of a split broadcast, or null if broadcasts are never split. */
+    private final ForkJoinPool fanout;
+
+    /** Messages queued (but not yet handed to the container) across all sessions. */
+    private final LongAdder queued = new LongAdder();
+    /** Messages discarded by {@link OverflowPolicy#DROP_OLDEST}. */
+    private final LongAdder dropped = new LongAdder();
+    /** Sends the container reported as failed. */
+    private final LongAdder failed = new LongAdder();
+    /** Sessions closed by {@link OverflowPolicy#DISCONNECT}. */
+    private final LongAdder disconnected = new LongAdder();
+    /** Batches flushed, when coalescing. */
+    private final LongAdder flushes = new LongAdder();
+    /** Broadcasts split up and queued in parallel. */
+    private final LongAdder parallelBroadcasts = new LongAdder();
+
+    /** The fewest sessions a chunk of a split broadcast is given. */
+    private static final int MIN_CHUNK = 128;
+
+    Outbound(int capacity, OverflowPolicy policy) {
+        this(capacity, policy, 0, 0);
+    }
+
+    Outbound(int capacity, OverflowPolicy policy, long coalesceMicros, int coalesceChars) {
+        this(capacity, policy, coalesceMicros, coalesceChars, 0, 0);
+    }
+
+    /**
+     * @param coalesceMicros
+     *            how long a session's batch can be held open for, in microseconds, or 0 to send
+     *            every message as soon as it is queued
+     * @param coalesceChars
+     *            how many characters a batch can hold before it is flushed early, or 0 for no
+     *            limit other than the window
+     * @param parallelThreshold
+     *            how many sessions a broadcast has to go to before it is split up and queued in
+     *            parallel, or 0 to always queue it on the broadcasting thread
+     * @param parallelism
+     *            how many threads queue the chunks of a split broadcast, or 0 for one per
+     *            processor; broadcasts are never split when this comes to 1
+     */
+    Outbound(int capacity, OverflowPolicy policy, long coalesceMicros, int coalesceChars, int parallelThreshold,
+            int parallelism) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Outbound queue capacity must be at least 1, was " + capacity);
+        }
+        if (coalesceMicros < 0 || coalesceChars < 0) {
+            throw new IllegalArgumentException("Outbound coalescing window and size can't be negative");
+        }
+        if (parallelThreshold < 0 || parallelism < 0) {
+            throw new IllegalArgumentException("Outbound parallel threshold and parallelism can't be negative");
+        }
+        this.capacity = capacity;
+        this.policy = policy;
+        this.coalesceNanos = TimeUnit.MICROSECONDS.toNanos(coalesceMicros);
+        this.coalesceChars = coalesceChars == 0 ? Integer.MAX_VALUE : coalesceChars;
+        if (coalesceMicros > 0) {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+                Thread t = new Thread(r, "room-outbound-flush");
+                t.setDaemon(true);
+                return t;
+            });
+            executor.setRemoveOnCancelPolicy(true);
+            this.flusher = executor;
+        } else {
+            this.flusher = null;
+        }
+        this.parallelThreshold = parallelThreshold;
+        int threads = parallelism == 0 ? Runtime.getRuntime().availableProcessors() : parallelism;
+        if (parallelThreshold > 0 && threads > 1) {
+            this.fanout = new ForkJoinPool(threads, pool -> {
+                ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                t.setName("room-fanout-" + t.getPoolIndex());
+                return t;
+            }, null, false);
+        } else {
+            this.fanout = null;
+        }
+    }
+
+    /**
+     * Queue a message for a single session.
+     *
+     * @param session
+     *            Session to send the message on
+     * @param message
+     *            Message to send
+     * @return true if the message was queued, false if the session is closed (or was just closed
+     *         for being too slow)
+     */
+    boolean send(Session session, String message) {
+        return send(session, Frame.of(message));
+    }
+
+    /**
+     * Queue a frame for a single session.
+     *
+     * @param session
+     *            Session to send the frame on
+     * @param frame
+     *            Frame to send
+     * @return true if the frame was queued, false if the session is closed (or was just closed
+     *         for being too slow)
+     */
+    boolean send(Session session, Frame frame) {
+        if (!session.isOpen()) {
+            release(session);
+            return false;
+        }
+        SessionOutbox outbox = outboxes.get(session);
+        if (outbox == null) {
+            outbox = create(session);
+        }
+        return outbox.offer(frame);
+    }
+
+    /**
+     * Queue the same frame for every session, sharing it between them.
+     *
+     * @param sessions
+     *            Sessions to send the frame on
+     * @param frame
+     *            Frame to send
+     */
+    void broadcast(Collection<Session> sessions, Frame frame) {
+        if (fanout != null && sessions.size() >= parallelThreshold) {
+            Session[] targets = sessions.toArray(new Session[0]);
+            int chunk = Math.max(MIN_CHUNK, targets.length / (fanout.getParallelism() * 4));
+            parallelBroadcasts.increment();
+            fanout.invoke(new FanOut(targets, 0, targets.length, chunk, frame));
+            return;
+        }
+        for (Session s : sessions) {
+            send(s, frame);
+        }
+    }
+
+    /**
+     * Queues a frame for a range of sessions, splitting the range in two until it is no bigger
+     * than a chunk.
+     */
+    private final class FanOut extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Session[] targets;
+        private final int from;
+        private final int to;
+        private final int chunk;
+        private final Frame frame;
+
+        FanOut(Session[] targets, int from, int to, int chunk, Frame frame) {
+            this.targets = targets;
+            this.from = from;
+            this.to = to;
+            this.chunk = chunk;
+            this.frame = frame;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= chunk) {
+                for (int i = from; i < to; i++) {
+                    send(targets[i], frame);
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new FanOut(targets, from, middle, chunk, frame), new FanOut(targets, middle, to, chunk, frame));
+        }
+    }
+
+    /**
+     * Send everything from now on to a session in the {@link BinaryProtocol}'s framing, as its
+     * mediator has started using it. Messages without a binary form still go as text.
+     *
+     * @param session
+     *            Session to switch
+     */
+    void useBinary(Session session) {
+        if (!session.isOpen()) {
+            return;
+        }
+        SessionOutbox outbox = outboxes.get(session);
+        if (outbox == null) {
+            outbox = create(session);
+        }
+        outbox.binary = true;
+    }
+
+    // the session can close, and be released, between the check that it's open and its queue
+    // being created. Checking again afterwards makes sure a queue for a closed session doesn't
+    // outlive it: either the release comes after the queue was added, or the check sees it closed.
+    private SessionOutbox create(Session session) {
+        SessionOutbox outbox = outboxes.computeIfAbsent(session, s -> new SessionOutbox(s, this));
+        if (!session.isOpen()) {
+            release(session);
+        }
+        return outbox;
+    }
+
+    /**
+     * Forget about a session, discarding anything still queued for it. Called once the session
+     * has closed or failed.
+     *
+     * @param session
+     *            Session to release
+     */
+    void release(Session session) {
+        SessionOutbox outbox = outboxes.remove(session);
+        if (outbox != null) {
+            outbox.discard();
+        }
+    }
+
+    /**
+     * @return the number of sessions with a queue, which is every open session that has been
+     *         sent something
+     */
+    int sessionCount() {
+        return outboxes.size();
+    }
+
+    /**
+     * @return the number of messages waiting across all session queues
+     */
+    long queueDepth() {
+        return queued.sum();
+    }
+
+    /**
+     * @return the number of messages discarded because a session queue was full
+     */
+    long droppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return the number of sends that failed, each of which closed its session
+     */
+    long failedCount() {
+        return failed.sum();
+    }
+
+    /**
+     * @return the number of sessions closed because their queue was full
+     */
+    long disconnectedCount() {
+        return disconnected.sum();
+    }
+
+    /**
+     * @return the number of coalesced batches flushed
+     */
+    long flushCount() {
+        return flushes.sum();
+    }
+
+    /**
+     * @return the number of broadcasts split up and queued in parallel
+     */
+    long parallelBroadcastCount() {
+        return parallelBroadcasts.sum();
+    }
+
+    /**
+     * Stop the flusher and the fan-out pool, if there are any. Anything still batched is left for
+     * the container to write out as the sessions close.
+     */
+    void shutdown() {
+        if (flusher != null) {
+            flusher.shutdownNow();
+        }
+        if (fanout != null) {
+            fanout.shutdown();
+        }
+    }
+
+    private void close(Session session, CloseReason reason) {
+        release(session);
+        // closing can block on the very connection that is misbehaving, keep it off the
+        // thread that is delivering to everybody else.
+        RoomThreads.blocking().execute(() -> {
+            try {
+                session.close(reason);
+            } catch (IOException | IllegalStateException e) {
+                // nothing more we can do, the session is going away anyway (or, if the container
+                // says it's already closed, has gone).
+            }
+        });
+    }
+
+    /**
+     * The queue for a single session.
+     *
+     * The {@link SendHandler} callback for the message in flight pulls the next one off the
+     * queue, so only one async send is ever outstanding per session, as the WebSocket API
+     * requires.
+     *
+     * When coalescing, a flush takes the place of a send: it only happens while nothing is in
+     * flight, and nothing is sent until it is done. A flush that falls due mid-send waits for
+     * that send to complete, so a message is held back for at most the window plus one send.
+     */
+    private static final class SessionOutbox implements SendHandler {
+
+        private final Session session;
+        private final Outbound outbound;
+
+        // all guarded by this
+        private final ArrayDeque<Frame> pending = new ArrayDeque<>();
+        private Frame inFlight;
+        private boolean closed;
+
+        /** Set once the session's mediator is using the binary framing. */
+        volatile boolean binary;
+
+        // coalescing, also guarded by this
+        private final boolean batching;
+        /** Characters sent since the last flush. */
+        private int unflushed;
+        private boolean flushScheduled;
+        private boolean flushDue;
+        private boolean flushing;
+
+        SessionOutbox(Session session, Outbound outbound) {
+            this.session = session;
+            this.outbound = outbound;
+            this.batching = outbound.flusher != null && allowBatching(session);
+        }
+
+        private static boolean allowBatching(Session session) {
+            try {
+                session.getAsyncRemote().setBatchingAllowed(true);
+                return session.getAsyncRemote().getBatchingAllowed();
+            } catch (IOException | RuntimeException e) {
+                RoomLog.debug(RoomLog.Category.OUTBOUND, "Batching unavailable for session " + session.getId() + ": " + e);
+                return false;
+            }
+        }
+
+        /**
+         * Queue a frame.
+         */
+        boolean offer(Frame frame) {
+            Frame discarded = null;
+            boolean send = false;
+            boolean overflowed = false;
+            synchronized (this) {
+                if (closed) {
+                    discarded = frame;
+                } else if (inFlight == null && !flushing) {
+                    inFlight = frame;
+                    send = true;
+                } else if (pending.size() < outbound.capacity) {
+                    pending.add(frame);
+                    outbound.queued.increment();
+                    return true;
+                } else if (outbound.policy == OverflowPolicy.DROP_OLDEST) {
+                    discarded = pending.poll();
+                    pending.add(frame);
+                    outbound.dropped.increment();
+                } else {
+                    closed = true;
+                    overflowed = true;
+                    discarded = frame;
+                    outbound.queued.add(-pending.size());
+                    pending.clear();
+                }
+            }
+            if (overflowed) {
+                outbound.disconnected.increment();
+                RoomLog.warn(RoomLog.Category.OUTBOUND, "Outbound queue full, disconnecting slow session " + session.getId());
+                outbound.close(session, new CloseReason(CloseCodes.TRY_AGAIN_LATER, "Outbound queue full"));
+                return false;
+            }
+            if (send) {
+                write(frame);
+                return true;
+            }
+            // either the oldest was dropped to make room, or the session has already closed.
+            return discarded != frame;
+        }
+
+        @Override
+        public void onResult(SendResult result) {
+            Frame sent;
+            boolean schedule = false;
+            synchronized (this) {
+                sent = inFlight;
+                inFlight = null;
+                if (batching && sent != null && result.isOK()) {
+                    schedule = unflushed == 0 && !flushScheduled;
+                    unflushed += sent.text.length();
+                    if (unflushed >= outbound.coalesceChars) {
+                        flushDue = true;
+                    } else if (schedule) {
+                        flushScheduled = true;
+                    }
+                    schedule &= !flushDue;
+                }
+            }
+            if (!result.isOK()) {
+                fail(result.getException());
+                return;
+            }
+            if (schedule) {
+                // the batch has just been opened, it gets flushed by the end of the window.
+                try {
+                    outbound.flusher.schedule(this::windowClosed, outbound.coalesceNanos, TimeUnit.NANOSECONDS);
+                } catch (RuntimeException e) {
+                    // shutting down, flush as we go from here on.
+                    synchronized (this) {
+                        flushDue = true;
+                    }
+                }
+            }
+            next();
+        }
+
+        // the window for the open batch has closed: flush it now, or as soon as the send in
+        // flight completes.
+        private void windowClosed() {
+            synchronized (this) {
+                flushScheduled = false;
+                if (closed || unflushed == 0) {
+                    return;
+                }
+                if (inFlight != null || flushing) {
+                    flushDue = true;
+                    return;
+                }
+                flushing = true;
+            }
+            if (flush()) {
+                next();
+            }
+        }
+
+        // send the next queued frame, flushing first if that is due.
+        private void next() {
+            while (true) {
+                Frame next;
+                synchronized (this) {
+                    if (closed) {
+                        return;
+                    }
+                    if (flushDue) {
+                        flushDue = false;
+                        flushing = true;
+                        next = null;
+                    } else {
+                        next = pending.poll();
+                        if (next == null) {
+                            return;
+                        }
+                        inFlight = next;
+                    }
+                }
+                if (next == null) {
+                    if (!flush()) {
+                        return;
+                    }
+                    continue;
+                }
+                outbound.queued.decrement();
+                write(next);
+                return;
+            }
+        }
+
+        // write out the batch, with flushing already set. Returns false if the session failed.
+        private boolean flush() {
+            IOException failure = null;
+            try {
+                session.getAsyncRemote().flushBatch();
+                outbound.flushes.increment();
+            } catch (IOException e) {
+                failure = e;
+            } catch (RuntimeException e) {
+                failure = new IOException(e);
+            }
+            synchronized (this) {
+                flushing = false;
+                unflushed = 0;
+            }
+            if (failure != null) {
+                fail(failure);
+                return false;
+            }
+            return true;
+        }
+
+        private void fail(Throwable t) {
+            // a failed write suggests the connection is in a bad state.
+            outbound.failed.increment();
+            RoomLog.warn(RoomLog.Category.OUTBOUND, "Unexpected condition writing message", t);
+            synchronized (this) {
+                closed = true;
+            }
+            outbound.close(session,
+                    new CloseReason(CloseCodes.UNEXPECTED_CONDITION, VerySimpleRoom.trimReason(String.valueOf(t))));
+        }
+
+        void discard() {
+            synchronized (this) {
+                closed = true;
+                outbound.queued.add(-pending.size());
+                pending.clear();
+            }
+        }
+
+        private void write(Frame frame) {
+            try {
+                ByteBuffer b = binary ? frame.binary() : null;
+                if (b != null) {
+                    session.getAsyncRemote().sendBinary(b, this);
+                } else {
+                    session.getAsyncRemote().sendText(frame.text, this);
+                }
+            } catch (RuntimeException e) {
+                // the container refused the message outright (usually because the session has
+                // just been closed), treat it the same as a failed write.
+                onResult(new SendResult(e));
+            }
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+/**
+ * Writes the messages the room sends.
+ *
+ * Each message is a fixed template with a few variable fields (user id, username, content,
+ * bookmark), so rather than building a JSON tree for every one, the constant parts are kept
+ * already encoded and the variable fields are escaped straight into a buffer reused by the
+ * thread. The only allocation is the finished message. Responses that never change for a room
+ * (its location and description) are encoded once, when the room is created.
+ *
+ * The output is the same compact JSON, with the fields in the same order, that
+ * {@code JsonObjectBuilder} produced.
+ */
+final class OutboundEncoder {
+
+    /** Buffers that grow past this are dropped rather than kept for the thread. */
+    private static final int MAX_KEPT = 64 * 1024;
+
+    private static final ThreadLocal<StringBuilder> buffers = ThreadLocal.withInitial(() -> new StringBuilder(512));
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private OutboundEncoder() {
+    }
+
+    /**
+     * @return the location response for a room, without routing
+     */
+    static String location(String name, String fullName, String description) {
+        StringBuilder b = buffer();
+        b.append("{\"type\":\"location\",\"name\":");
+        quote(b, name);
+        b.append(",\"fullName\":");
+        quote(b, fullName);
+        b.append(",\"description\":");
+        quote(b, description);
+        b.append('}');
+        return finish(b);
+    }
+
+    /**
+     * @return the response to /look for a room, without routing
+     */
+    static String look(String name, String description) {
+        StringBuilder b = buffer();
+        b.append("{\"type\":\"location\",\"name\":");
+        quote(b, name);
+        b.append(",\"description\":");
+        quote(b, description);
+        b.append('}');
+        return finish(b);
+    }
+
+    /**
+     * @return a message already encoded as JSON, routed to one player
+     */
+    static String toPlayer(String userid, String json) {
+        StringBuilder b = buffer();
+        b.append("player,").append(userid).append(',').append(json);
+        return finish(b);
+    }
+
+    /**
+     * @return a chat message, routed to everybody in the room
+     */
+    static String chat(String username, String content, long bookmark) {
+        StringBuilder b = buffer();
+        b.append("player,*,{\"type\":\"chat\",\"username\":");
+        quote(b, username);
+        b.append(",\"content\":");
+        quote(b, content);
+        b.append(",\"bookmark\":").append(bookmark).append('}');
+        return finish(b);
+    }
+
+    /**
+     * @return an event, routed to everybody if there's a message for the room, or just to the
+     *         player otherwise
+     */
+    static String event(String userid, String messageForRoom, String messageForUser, long bookmark) {
+        StringBuilder b = buffer();
+        if (messageForRoom == null) {
+            b.append("player,").append(userid).append(',');
+        } else {
+            b.append("player,*,");
+        }
+        b.append("{\"type\":\"event\",\"content\":{");
+        if (messageForRoom != null) {
+            b.append("\"*\":");
+            quote(b, messageForRoom);
+        }
+        if (messageForUser != null) {
+            if (messageForRoom != null) {
+                b.append(',');
+            }
+            quote(b, userid);
+            b.append(':');
+            quote(b, messageForUser);
+        }
+        b.append("},\"bookmark\":").append(bookmark).append('}');
+        return finish(b);
+    }
+
+    /**
+     * @return an event for just one player, outside any room, so without a bookmark
+     */
+    static String notice(String userid, String messageForUser) {
+        StringBuilder b = buffer();
+        b.append("player,").append(userid).append(",{\"type\":\"event\",\"content\":{");
+        quote(b, userid);
+        b.append(':');
+        quote(b, messageForUser);
+        b.append("}}");
+        return finish(b);
+    }
+
+    /**
+     * @return the response to a player leaving by an exit
+     */
+    static String exit(String userid, String exitId, long bookmark) {
+        StringBuilder b = buffer();
+        b.append("playerLocation,").append(userid).append(",{\"type\":\"exit\",\"exitId\":");
+        quote(b, exitId);
+        b.append(",\"bookmark\":").append(bookmark).append(",\"content\":\"Run Away!\"}");
+        return finish(b);
+    }
+
+    /**
+     * Append a string as a quoted JSON string, escaping whatever needs it.
+     */
+    static void quote(StringBuilder b, String s) {
+        if (s == null) {
+            b.append("null");
+            return;
+        }
+        b.append('"');
+        int len = s.length();
+        int clean = 0;
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\') {
+                continue;
+            }
+            // copy the run that didn't need escaping in one go.
+            b.append(s, clean, i);
+            switch (c) {
+                case '"':
+                    b.append("\\\"");
+                    break;
+                case '\\':
+                    b.append("\\\\");
+                    break;
+                case '\b':
+                    b.append("\\b");
+                    break;
+                case '\f':
+                    b.append("\\f");
+                    break;
+                case '\n':
+                    b.append("\\n");
+                    break;
+                case '\r':
+                    b.append("\\r");
+                    break;
+                case '\t':
+                    b.append("\\t");
+                    break;
+                default:
+                    b.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xf]);
+            }
+            clean = i + 1;
+        }
+        b.append(s, clean, len);
+        b.append('"');
+    }
+
+    private static StringBuilder buffer() {
+        StringBuilder b = buffers.get();
+        b.setLength(0);
+        return b;
+    }
+
+    private static String finish(StringBuilder b) {
+        String s = b.toString();
+        if (b.capacity() > MAX_KEPT) {
+            buffers.remove();
+        }
+        return s;
+    }
+}
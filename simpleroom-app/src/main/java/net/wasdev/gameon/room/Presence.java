@@ -0,0 +1,310 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import javax.websocket.Session;
+
+/**
+ * Who is in a room, and which mediator session each of them is on.
+ *
+ * Each player in the room is interned to a small int handle, which indexes flat arrays holding
+ * their userId, their session, and where they sit in that session's list of players. Handles of
+ * players that leave are reused. The userId to handle lookup is an open-addressed table, and each
+ * session keeps the handles of its players in an array, so joining, leaving, finding a player's
+ * session and counting a session's players are all constant time, and a session that goes away
+ * only visits its own players.
+ *
+ * Belongs to the room's loop, like the rest of {@link RoomState}, so none of this is thread-safe.
+ */
+final class Presence {
+
+    private static final int NONE = -1;
+
+    // userId -> handle + 1, so 0 marks an empty slot.
+    private int[] table = new int[32];
+
+    // by handle
+    private String[] users = new String[16];
+    private Session[] sessions = new Session[16];
+    private int[] position = new int[16];
+
+    private int[] freeHandles = new int[16];
+    private int free;
+    private int nextHandle;
+    private int size;
+
+    private final Map<Session, Occupants> bySession = new HashMap<>();
+
+    /**
+     * Put a player in the room on a session, moving them over if they were already here on
+     * another one.
+     *
+     * @return true if the player wasn't already here
+     */
+    boolean join(String userid, Session session) {
+        int slot = slot(userid);
+        int h = table[slot] - 1;
+        if (h != NONE) {
+            if (sessions[h] != session) {
+                unlink(h);
+                link(h, session);
+            }
+            return false;
+        }
+
+        if ((size + 1) * 2 > table.length) {
+            rehash(table.length * 2);
+            slot = slot(userid);
+        }
+        h = allocate();
+        users[h] = userid;
+        table[slot] = h + 1;
+        link(h, session);
+        size++;
+        return true;
+    }
+
+    /**
+     * Take a player out of the room.
+     *
+     * @return true if they were here
+     */
+    boolean leave(String userid) {
+        int h = handleOf(userid);
+        if (h == NONE) {
+            return false;
+        }
+        remove(h);
+        return true;
+    }
+
+    /**
+     * Take every player on a session out of the room.
+     *
+     * @return how many players left
+     */
+    int leaveAll(Session session) {
+        Occupants o = bySession.remove(session);
+        if (o == null) {
+            return 0;
+        }
+        for (int i = 0; i < o.size; i++) {
+            // the session's list is going anyway, so there's no need to unlink from it.
+            sessions[o.handles[i]] = null;
+            remove(o.handles[i]);
+        }
+        return o.size;
+    }
+
+    /**
+     * @return the player's handle, or -1 if they aren't here
+     */
+    int handleOf(String userid) {
+        return table[slot(userid)] - 1;
+    }
+
+    /**
+     * @return the userId for a handle
+     */
+    String userOf(int handle) {
+        return users[handle];
+    }
+
+    /**
+     * @return the session carrying the player, or null if they aren't here
+     */
+    Session sessionOf(String userid) {
+        int h = handleOf(userid);
+        return h == NONE ? null : sessions[h];
+    }
+
+    /**
+     * @return true if the player is here
+     */
+    boolean contains(String userid) {
+        return handleOf(userid) != NONE;
+    }
+
+    /**
+     * @return how many players are on a session
+     */
+    int count(Session session) {
+        Occupants o = bySession.get(session);
+        return o == null ? 0 : o.size;
+    }
+
+    /**
+     * Visit each player on a session.
+     */
+    void forEachOn(Session session, Consumer<String> action) {
+        Occupants o = bySession.get(session);
+        if (o != null) {
+            for (int i = 0; i < o.size; i++) {
+                action.accept(users[o.handles[i]]);
+            }
+        }
+    }
+
+    /**
+     * Visit every player in the room.
+     */
+    void forEach(Consumer<String> action) {
+        for (int h = 0; h < nextHandle; h++) {
+            if (users[h] != null) {
+                action.accept(users[h]);
+            }
+        }
+    }
+
+    /**
+     * @return how many players are in the room
+     */
+    int size() {
+        return size;
+    }
+
+    private void link(int h, Session session) {
+        Occupants o = bySession.get(session);
+        if (o == null) {
+            o = new Occupants();
+            bySession.put(session, o);
+        }
+        sessions[h] = session;
+        position[h] = o.add(h);
+    }
+
+    // take a handle out of its session's list, moving the last one into its place.
+    private void unlink(int h) {
+        Session session = sessions[h];
+        Occupants o = bySession.get(session);
+        int moved = o.removeAt(position[h]);
+        if (moved != NONE) {
+            position[moved] = position[h];
+        }
+        if (o.size == 0) {
+            bySession.remove(session);
+        }
+        sessions[h] = null;
+    }
+
+    private void remove(int h) {
+        if (sessions[h] != null) {
+            unlink(h);
+        }
+        delete(slot(users[h]));
+        users[h] = null;
+        if (free == freeHandles.length) {
+            freeHandles = Arrays.copyOf(freeHandles, free * 2);
+        }
+        freeHandles[free++] = h;
+        size--;
+    }
+
+    private int allocate() {
+        if (free > 0) {
+            return freeHandles[--free];
+        }
+        int h = nextHandle++;
+        if (h == users.length) {
+            int capacity = h * 2;
+            users = Arrays.copyOf(users, capacity);
+            sessions = Arrays.copyOf(sessions, capacity);
+            position = Arrays.copyOf(position, capacity);
+        }
+        return h;
+    }
+
+    // the slot holding the userId, or the empty slot it would go in.
+    private int slot(String userid) {
+        int mask = table.length - 1;
+        int i = hash(userid) & mask;
+        while (true) {
+            int h = table[i] - 1;
+            if (h == NONE || users[h].equals(userid)) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    // empty a slot, shifting back any later entries that probed past it so lookups still find them.
+    private void delete(int slot) {
+        int mask = table.length - 1;
+        int hole = slot;
+        int i = slot;
+        while (true) {
+            i = (i + 1) & mask;
+            int h = table[i] - 1;
+            if (h == NONE) {
+                break;
+            }
+            int home = hash(users[h]) & mask;
+            // move it into the hole unless its home lies cyclically between the hole and where it is.
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                table[hole] = table[i];
+                hole = i;
+            }
+        }
+        table[hole] = 0;
+    }
+
+    private void rehash(int capacity) {
+        int[] old = table;
+        table = new int[capacity];
+        for (int entry : old) {
+            if (entry != 0) {
+                table[slot(users[entry - 1])] = entry;
+            }
+        }
+    }
+
+    private static int hash(String s) {
+        int h = s.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * The handles of the players on one session.
+     */
+    private static final class Occupants {
+        int[] handles = new int[2];
+        int size;
+
+        // returns where the handle went.
+        int add(int h) {
+            if (size == handles.length) {
+                handles = Arrays.copyOf(handles, size * 2);
+            }
+            handles[size] = h;
+            return size++;
+        }
+
+        // returns the handle moved into the gap, or NONE if the gap was at the end.
+        int removeAt(int i) {
+            int last = --size;
+            if (i == last) {
+                return NONE;
+            }
+            handles[i] = handles[last];
+            return handles[i];
+        }
+    }
+}
@@ -0,0 +1,223 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Token bucket rate limits, for one scope of sender (users, or sessions).
+ *
+ * Each sender has a bucket per {@link Category}, refilled at {@code room.limit.<scope>.<category>.perMinute}
+ * and holding up to {@code room.limit.<scope>.<category>.burst} tokens. A bucket is kept as a
+ * single number, the time at which it will next be full (the cell rate algorithm), so taking a
+ * token is one compare-and-set and there's nothing to refill in the background.
+ *
+ * Buckets for keyed senders are kept in a map; those that have filled up again are no different
+ * from a new one, so they're swept out as the map grows.
+ */
+final class RateLimiter {
+
+    /**
+     * What's being limited, each with its own rate.
+     */
+    enum Category {
+        CHAT("chat", 300, 10),
+        COMMAND("command", 600, 20),
+        HELLO("hello", 30, 5);
+
+        final String label;
+        final int perMinute;
+        final int burst;
+
+        Category(String label, int perMinute, int burst) {
+            this.label = label;
+            this.perMinute = perMinute;
+            this.burst = burst;
+        }
+    }
+
+    private static final Category[] CATEGORIES = Category.values();
+
+    /** Keyed senders allowed before the first sweep. */
+    private static final int SWEEP_AT = 1024;
+
+    /** Nanos per token for each category, or 0 if it isn't limited. */
+    private final long[] interval = new long[CATEGORIES.length];
+    /** How far ahead of now each category's bucket can get, which is the burst less one token. */
+    private final long[] tolerance = new long[CATEGORIES.length];
+
+    private final ConcurrentMap<String, Buckets> keyed = new ConcurrentHashMap<>();
+    private volatile int nextSweep = SWEEP_AT;
+
+    private final LongAdder limited = new LongAdder();
+
+    /**
+     * @param scope
+     *            What the limits apply to, for the config keys
+     * @param multiplier
+     *            Scales the default rates and bursts for this scope
+     */
+    RateLimiter(String scope, int multiplier) {
+        for (Category c : CATEGORIES) {
+            String key = "room.limit." + scope + "." + c.label;
+            int perMinute = RoomConfig.getInt(key + ".perMinute", c.perMinute * multiplier);
+            int burst = Math.max(1, RoomConfig.getInt(key + ".burst", c.burst * multiplier));
+            if (perMinute > 0) {
+                interval[c.ordinal()] = 60_000_000_000L / perMinute;
+                tolerance[c.ordinal()] = (burst - 1) * interval[c.ordinal()];
+            }
+        }
+    }
+
+    /**
+     * @return a full set of buckets, for a sender that keeps its own
+     */
+    Buckets newBuckets() {
+        return new Buckets();
+    }
+
+    /**
+     * Take a token for a keyed sender.
+     *
+     * @param key
+     *            Who is sending
+     * @param category
+     *            What they're sending
+     * @param now
+     *            {@link System#nanoTime()}
+     * @return true if they're within their limit
+     */
+    boolean tryAcquire(String key, Category category, long now) {
+        if (interval[category.ordinal()] == 0) {
+            return true;
+        }
+        return tryAcquire(buckets(key, now), category, now);
+    }
+
+    /**
+     * Get a keyed sender's buckets, creating them if need be.
+     *
+     * @param key
+     *            Who is sending
+     * @param now
+     *            {@link System#nanoTime()}
+     * @return the sender's buckets
+     */
+    Buckets buckets(String key, long now) {
+        Buckets b = keyed.get(key);
+        if (b == null) {
+            b = keyed.computeIfAbsent(key, k -> new Buckets());
+            if (keyed.size() > nextSweep) {
+                sweep(now);
+            }
+        }
+        return b;
+    }
+
+    /**
+     * Take a token from a sender's own buckets.
+     *
+     * @param buckets
+     *            The sender's buckets
+     * @param category
+     *            What they're sending
+     * @param now
+     *            {@link System#nanoTime()}
+     * @return true if they're within their limit
+     */
+    boolean tryAcquire(Buckets buckets, Category category, long now) {
+        int i = category.ordinal();
+        long step = interval[i];
+        if (step == 0) {
+            return true;
+        }
+        while (true) {
+            long full = buckets.full.get(i);
+            long start = full - now > 0 ? full : now;
+            if (start - now > tolerance[i]) {
+                limited.increment();
+                return false;
+            }
+            if (buckets.full.compareAndSet(i, full, start + step)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Give back a token taken by {@link #tryAcquire(Buckets, Category, long)}, for a message that
+     * was refused by another limit after all, so it only counts against senders it got past.
+     *
+     * @param buckets
+     *            The sender's buckets
+     * @param category
+     *            What they were sending
+     */
+    void refund(Buckets buckets, Category category) {
+        int i = category.ordinal();
+        long step = interval[i];
+        if (step != 0) {
+            buckets.full.getAndAdd(i, -step);
+        }
+    }
+
+    /**
+     * @return the number of messages refused for being over a limit
+     */
+    long limitedCount() {
+        return limited.sum();
+    }
+
+    // forget senders whose buckets have filled up again. One that sends while being swept out
+    // gets a fresh set of buckets, which is no more than it would have had a moment later.
+    private void sweep(long now) {
+        keyed.values().removeIf(b -> b.isFull(now));
+        nextSweep = Math.max(SWEEP_AT, keyed.size() * 2);
+    }
+
+    /**
+     * A sender's buckets, one per category.
+     */
+    static final class Buckets {
+        /** When each bucket will next be full, as a {@link System#nanoTime()}. */
+        private final AtomicLongArray full = new AtomicLongArray(CATEGORIES.length);
+
+        /**
+         * Whether the sender has been told they're being refused, so they're only told once. Only
+         * used for users, as a connection can carry several.
+         */
+        volatile boolean warned;
+
+        private Buckets() {
+            long now = System.nanoTime();
+            for (int i = 0; i < CATEGORIES.length; i++) {
+                full.set(i, now);
+            }
+        }
+
+        boolean isFull(long now) {
+            for (int i = 0; i < CATEGORIES.length; i++) {
+                if (full.get(i) - now > 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.LongConsumer;
+
+/**
+ * Carries room events between the nodes hosting the same rooms.
+ *
+ * Everything a node publishes is given a sequence number by the bus, one sequence per room, and
+ * delivered to every node (the publisher included) in sequence order. The sequence becomes the
+ * event's bookmark, so every node sends the room's chat and events in the same order, with the
+ * same bookmarks.
+ */
+interface RoomBus {
+
+    /**
+     * Where a node's deliveries go.
+     */
+    interface Delivery {
+        /**
+         * An event for a room, in sequence order for that room. Called on the bus's threads, so
+         * should hand off rather than do any real work.
+         */
+        void deliver(ClusterEvent event, long sequence);
+
+        /**
+         * A node has left the cluster.
+         */
+        void nodeDown(String node);
+
+        /**
+         * This node has joined the cluster, or rejoined it, and may have missed players arriving
+         * and leaving elsewhere in the meantime. Called on the bus's threads before anything is
+         * delivered from the cluster.
+         */
+        default void connected() {
+        }
+    }
+
+    /**
+     * Start delivering to this node.
+     */
+    void start(Delivery delivery);
+
+    /**
+     * Publish an event to every node, this one included.
+     */
+    void publish(ClusterEvent event);
+
+    /**
+     * @return true if this node is connected to the rest of the cluster
+     */
+    boolean isConnected();
+
+    /**
+     * @return how many events had to be delivered to this node alone, as the rest of the cluster
+     *         couldn't be reached
+     */
+    default long unreachableCount() {
+        return 0;
+    }
+
+    /**
+     * @return how many events were dropped, rather than published, as the cluster wasn't keeping up
+     */
+    default long droppedCount() {
+        return 0;
+    }
+
+    void close();
+
+    /**
+     * @param type
+     *            {@code local} for a bus in this JVM that only this node is on (which runs the
+     *            clustered paths, without a cluster), {@code tcp} for one between JVMs on this
+     *            machine, or anything else for none
+     * @return the bus, or null if the room isn't clustered
+     */
+    static RoomBus create(String type, String node) {
+        switch (type) {
+            case "local":
+                return new LocalBus(new LocalBus.Hub(), node);
+            case "tcp":
+                return new TcpBus(node, RoomConfig.get("room.cluster.host", "localhost"),
+                        RoomConfig.getInt("room.cluster.port", 7077));
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Hands out sequence numbers, for whichever node is doing the sequencing.
+     *
+     * A room's sequence never goes backwards, and never falls behind the floor a publisher puts
+     * on its events (the next bookmark it would have used by itself), so bookmarks keep rising
+     * on every node even when the sequencer is new, like after the node doing it went away.
+     */
+    final class Sequencer {
+        private final ConcurrentMap<String, long[]> next = new ConcurrentHashMap<>();
+
+        /**
+         * Give an event the next number in its room's sequence, and pass it on. Events for a room
+         * are passed on one at a time, in sequence order.
+         */
+        void sequence(ClusterEvent event, LongConsumer fanout) {
+            long[] n = next.computeIfAbsent(event.roomId, k -> new long[1]);
+            synchronized (n) {
+                long seq = Math.max(n[0], event.floor);
+                n[0] = seq + 1;
+                fanout.accept(seq);
+            }
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.util.function.BiConsumer;
+
+/**
+ * Tuning knobs for the room.
+ *
+ * A value is looked up as a JVM system property first (e.g. {@code -Droom.outbound.capacity=512}
+ * in the Liberty jvm.options), then as an environment variable with the dots replaced by
+ * underscores and upper-cased (e.g. {@code ROOM_OUTBOUND_CAPACITY=512} on the docker run).
+ * Anything missing or unparseable falls back to the supplied default, and unparseable values
+ * are logged as warnings.
+ */
+final class RoomConfig {
+
+    private RoomConfig() {
+    }
+
+    static String get(String key, String defaultValue) {
+        String value = System.getProperty(key);
+        if (value == null) {
+            value = System.getenv(key.replace('.', '_').toUpperCase());
+        }
+        return value == null || value.trim().isEmpty() ? defaultValue : value.trim();
+    }
+
+    static int getInt(String key, int defaultValue) {
+        return getInt(key, defaultValue, RoomConfig::ignoring);
+    }
+
+    /**
+     * Look up an int, handing any value that doesn't parse to the given callback rather than
+     * the log, for the log's own settings.
+     */
+    static int getInt(String key, int defaultValue, BiConsumer<String, String> badValue) {
+        String value = get(key, null);
+        if (value != null) {
+            try {
+                return Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                badValue.accept(key, value);
+            }
+        }
+        return defaultValue;
+    }
+
+    static <E extends Enum<E>> E getEnum(String key, E defaultValue) {
+        return getEnum(key, defaultValue, RoomConfig::ignoring);
+    }
+
+    /**
+     * Look up an enum constant, handing any value that isn't one to the given callback rather
+     * than the log, for the log's own settings.
+     */
+    static <E extends Enum<E>> E getEnum(String key, E defaultValue, BiConsumer<String, String> badValue) {
+        String value = get(key, null);
+        if (value != null) {
+            try {
+                return Enum.valueOf(defaultValue.getDeclaringClass(), value.toUpperCase());
+            } catch (IllegalArgumentException e) {
+                badValue.accept(key, value);
+            }
+        }
+        return defaultValue;
+    }
+
+    static void ignoring(String key, String value) {
+        RoomLog.warn(RoomLog.Category.CONFIG, "Ignoring bad value for " + key + ": " + value);
+    }
+}
@@ -0,0 +1,161 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The single writer for a room's state.
+ *
+ * Container threads hand work to the loop with {@link #execute(Runnable)}, which is just an
+ * offer onto a lock-free multi-producer queue. The queue is drained by one thread at a time,
+ * borrowed from a shared pool, so everything run on the loop sees the room state without any
+ * locking, in the order it was submitted. Handing the loop from one pool thread to the next goes
+ * through {@link #scheduled}, which gives successive drains a happens-before edge.
+ *
+ * The loop also owns the room's bookmark sequence: because only the loop hands them out,
+ * bookmarks are strictly increasing, and gap-free unless the room is clustered (when the
+ * {@link RoomBus} numbers what goes to the whole room, and the loop follows along).
+ */
+final class RoomEventLoop implements Executor {
+
+    /** Tasks run per turn on a pool thread, before giving other rooms a go. */
+    private static final int BATCH = 256;
+
+    /**
+     * The threads the loops take turns on: a fixed pool, or with virtual threads, a new one for
+     * each turn (a loop only ever has one turn going, so it still runs one task at a time).
+     */
+    private static final Executor SHARED = RoomThreads.isVirtual() ? RoomThreads.perTask("room-loop")
+            : Executors.newFixedThreadPool(
+                    RoomConfig.getInt("room.loop.threads", Runtime.getRuntime().availableProcessors()),
+                    RoomThreads.factory("room-loop"));
+
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final Executor executor;
+
+    // only touched on the loop
+    private long bookmark;
+
+    RoomEventLoop() {
+        this(SHARED, 0);
+    }
+
+    RoomEventLoop(long firstBookmark) {
+        this(SHARED, firstBookmark);
+    }
+
+    RoomEventLoop(Executor executor, long firstBookmark) {
+        this.executor = executor;
+        this.bookmark = firstBookmark;
+    }
+
+    /**
+     * Queue a task to run on the loop. Never blocks.
+     */
+    @Override
+    public void execute(Runnable task) {
+        tasks.offer(task);
+        schedule();
+    }
+
+    /**
+     * Hand out the next bookmark. Must only be called on the loop.
+     *
+     * @return the next bookmark for an outbound event
+     */
+    long nextBookmark() {
+        return bookmark++;
+    }
+
+    /**
+     * Take a bookmark handed out by the bus, moving the sequence on past it. Must only be called
+     * on the loop.
+     *
+     * @return the bookmark to use, which is the one given unless that would go backwards
+     */
+    long nextBookmark(long sequenced) {
+        bookmark = Math.max(bookmark, sequenced);
+        return bookmark++;
+    }
+
+    /**
+     * @return the bookmark that would be handed out next, without taking it. Must only be
+     *         called on the loop.
+     */
+    long peekBookmark() {
+        return bookmark;
+    }
+
+    /**
+     * Stop the threads the loops take turns on, once the turns they've already been given are
+     * over, waiting up to the timeout for them. Loops can't be given another turn afterwards, so
+     * anything queued on them from then on is dropped.
+     */
+    static void shutdown(long timeout, TimeUnit unit) {
+        if (!(SHARED instanceof ExecutorService)) {
+            return; // a thread per turn, which ends with it
+        }
+        ExecutorService pool = (ExecutorService) SHARED;
+        pool.shutdown();
+        try {
+            if (!pool.awaitTermination(timeout, unit)) {
+                pool.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                // shut down: this loop won't get another turn, so it stays scheduled for good.
+                tasks.clear();
+            }
+        }
+    }
+
+    private void drain() {
+        try {
+            Runnable task;
+            for (int i = 0; i < BATCH && (task = tasks.poll()) != null; i++) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    RoomLog.error(RoomLog.Category.ROOMS, "Room task failed", e);
+                }
+            }
+        } finally {
+            scheduled.set(false);
+            // anything queued after our last poll (or left over from the batch) needs another turn.
+            if (!tasks.isEmpty()) {
+                schedule();
+            }
+        }
+    }
+}
@@ -0,0 +1,367 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The room's log.
+ *
+ * Logging a line never blocks the caller: entries are claimed from a fixed ring of preallocated
+ * slots with a single compare-and-set, and a background thread formats them and writes them to
+ * stdout a batch at a time. If the writer falls so far behind that the ring is full, new entries
+ * are dropped (and counted) rather than making the caller wait, so however much is logged it can
+ * never hold up the room.
+ *
+ * Each entry is written as one line of JSON, with the structured fields (user id, routing type,
+ * bookmark) kept separate from the message so the log forwarder can index them. Every
+ * {@link Category} has its own level, and debug and info entries can be sampled, keeping one in
+ * every N:
+ * <pre>
+ *   room.log.level            level for every category (default info)
+ *   room.log.command.level    level for one category
+ *   room.log.command.sample   keep one in this many debug/info entries (default 1, all of them)
+ *   room.log.bufferSize       entries the ring holds (default 8192)
+ * </pre>
+ */
+final class RoomLog {
+
+    enum Level {
+        DEBUG,
+        INFO,
+        WARN,
+        ERROR
+    }
+
+    /**
+     * What an entry is about.
+     */
+    enum Category {
+        /** Connections opening, closing and failing. */
+        CONNECTION,
+        /** Commands and chat from players. */
+        COMMAND,
+        /** Delivery of outbound messages. */
+        OUTBOUND,
+        /** The event journal. */
+        JOURNAL,
+        /** Rooms being created and evicted, and the loops they run on. */
+        ROOMS,
+        /** Registration with the map. */
+        REGISTRATION,
+        /** Settings that couldn't be used. */
+        CONFIG;
+
+        final String label = name().toLowerCase();
+    }
+
+    private static final Category[] CATEGORIES = Category.values();
+
+    private static final Level[] levels = new Level[CATEGORIES.length];
+    private static final int[] samples = new int[CATEGORIES.length];
+
+    /**
+     * Bad values for the log's own settings, which can't be logged until the log is running, as
+     * logging them while it reads its settings would use the log half made.
+     */
+    private static final Map<String, String> badSettings = new LinkedHashMap<>();
+
+    static {
+        Level level = RoomConfig.getEnum("room.log.level", Level.INFO, badSettings::put);
+        for (Category c : CATEGORIES) {
+            levels[c.ordinal()] = RoomConfig.getEnum("room.log." + c.label + ".level", level, badSettings::put);
+            samples[c.ordinal()] = Math.max(1,
+                    RoomConfig.getInt("room.log." + c.label + ".sample", 1, badSettings::put));
+        }
+    }
+
+    private static final Entry[] ring;
+    private static final int mask;
+
+    static {
+        int wanted = RoomConfig.getInt("room.log.bufferSize", 8192, badSettings::put);
+        int size = Integer.highestOneBit(Math.max(2, wanted - 1)) << 1;
+        ring = new Entry[size];
+        for (int i = 0; i < size; i++) {
+            ring[i] = new Entry();
+        }
+        mask = size - 1;
+    }
+
+    /** The next sequence to be claimed by a producer. */
+    private static final AtomicLong head = new AtomicLong();
+    /** The next sequence the writer will read, only ever advanced by the writer. */
+    private static volatile long tail;
+    /** Set once the room is shutting down, for the writer to finish once it has caught up. */
+    private static volatile boolean stopping;
+
+    private static final LongAdder dropped = new LongAdder();
+
+    private static final Thread writer = new Thread(RoomLog::write, "room-log");
+
+    static {
+        writer.setDaemon(true);
+        writer.start();
+        badSettings.forEach(RoomConfig::ignoring);
+    }
+
+    private RoomLog() {
+    }
+
+    /**
+     * @return true if entries at this level would be kept for the category, before sampling
+     */
+    static boolean isEnabled(Level level, Category category) {
+        return level.compareTo(levels[category.ordinal()]) >= 0;
+    }
+
+    static void debug(Category category, String message) {
+        log(Level.DEBUG, category, message, null, null, -1, null, null);
+    }
+
+    static void info(Category category, String message) {
+        log(Level.INFO, category, message, null, null, -1, null, null);
+    }
+
+    static void warn(Category category, String message) {
+        log(Level.WARN, category, message, null, null, -1, null, null);
+    }
+
+    static void warn(Category category, String message, Throwable thrown) {
+        log(Level.WARN, category, message, null, null, -1, null, thrown);
+    }
+
+    static void error(Category category, String message, Throwable thrown) {
+        log(Level.ERROR, category, message, null, null, -1, null, thrown);
+    }
+
+    /**
+     * Log an entry. Never blocks, and allocates nothing unless the entry is kept.
+     *
+     * @param level
+     *            How important the entry is
+     * @param category
+     *            What the entry is about
+     * @param message
+     *            What happened
+     * @param userId
+     *            The player concerned, or null
+     * @param routing
+     *            The type of message concerned, or null
+     * @param bookmark
+     *            The bookmark concerned, or -1
+     * @param detail
+     *            Anything else worth knowing (the text of a command, say), or null
+     * @param thrown
+     *            What went wrong, or null
+     */
+    static void log(Level level, Category category, String message, String userId, RoomMessage.Routing routing,
+            long bookmark, String detail, Throwable thrown) {
+        if (!isEnabled(level, category)) {
+            return;
+        }
+        int sample = samples[category.ordinal()];
+        if (sample > 1 && level.compareTo(Level.WARN) < 0 && ThreadLocalRandom.current().nextInt(sample) != 0) {
+            return;
+        }
+
+        long seq;
+        do {
+            seq = head.get();
+            if (seq - tail >= ring.length) {
+                dropped.increment();
+                return;
+            }
+        } while (!head.compareAndSet(seq, seq + 1));
+
+        Entry e = ring[(int) (seq & mask)];
+        e.time = System.currentTimeMillis();
+        e.level = level;
+        e.category = category;
+        e.message = message;
+        e.userId = userId;
+        e.routing = routing;
+        e.bookmark = bookmark;
+        e.detail = detail;
+        e.thrown = thrown;
+        e.thread = Thread.currentThread().getName();
+        // publish, the writer won't touch the slot until it sees this.
+        e.sequence = seq + 1;
+    }
+
+    /**
+     * @return the number of entries dropped because the writer couldn't keep up
+     */
+    static long droppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * Write out everything logged so far and stop the writer, waiting up to the timeout for it,
+     * for when the room is shutting down. Anything logged afterwards is dropped.
+     */
+    static void stop(long timeout, TimeUnit unit) {
+        stopping = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(Math.max(1, unit.toMillis(timeout)));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void write() {
+        StringBuilder out = new StringBuilder(8192);
+        long reportedDrops = 0;
+        while (true) {
+            long seq = tail;
+            Entry e = ring[(int) (seq & mask)];
+            if (e.sequence != seq + 1) {
+                // caught up, write out what we have, then wait for more.
+                long drops = dropped.sum();
+                if (drops != reportedDrops) {
+                    format(out, System.currentTimeMillis(), Level.WARN, Category.ROOMS,
+                            "Log buffer full, dropped " + (drops - reportedDrops) + " entries", null, null, -1, null,
+                            null, Thread.currentThread().getName());
+                    reportedDrops = drops;
+                }
+                if (out.length() > 0) {
+                    System.out.print(out);
+                    System.out.flush();
+                    out.setLength(0);
+                }
+                // an entry claimed but not yet filled in is still worth waiting for.
+                if (stopping && head.get() == seq) {
+                    return;
+                }
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+                continue;
+            }
+            format(out, e.time, e.level, e.category, e.message, e.userId, e.routing, e.bookmark, e.detail, e.thrown,
+                    e.thread);
+            e.clear();
+            tail = seq + 1;
+            if (out.length() >= 8192) {
+                System.out.print(out);
+                out.setLength(0);
+            }
+        }
+    }
+
+    private static void format(StringBuilder out, long time, Level level, Category category, String message,
+            String userId, RoomMessage.Routing routing, long bookmark, String detail, Throwable thrown,
+            String thread) {
+        out.append("{\"time\":\"").append(Instant.ofEpochMilli(time)).append('"');
+        out.append(",\"level\":\"").append(level).append('"');
+        out.append(",\"category\":\"").append(category.label).append('"');
+        out.append(",\"thread\":");
+        quote(out, thread);
+        out.append(",\"message\":");
+        quote(out, message);
+        if (userId != null) {
+            out.append(",\"userId\":");
+            quote(out, userId);
+        }
+        if (routing != null) {
+            out.append(",\"routing\":\"").append(routing.prefix).append('"');
+        }
+        if (bookmark >= 0) {
+            out.append(",\"bookmark\":").append(bookmark);
+        }
+        if (detail != null) {
+            out.append(",\"detail\":");
+            quote(out, detail);
+        }
+        if (thrown != null) {
+            StringWriter trace = new StringWriter();
+            thrown.printStackTrace(new PrintWriter(trace));
+            out.append(",\"exception\":");
+            quote(out, trace.toString());
+        }
+        out.append("}\n");
+    }
+
+    private static void quote(StringBuilder out, String s) {
+        if (s == null) {
+            out.append("null");
+            return;
+        }
+        out.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        out.append('"');
+    }
+
+    /**
+     * One slot in the ring. The fields are written by the producer that claimed the slot, and
+     * become visible to the writer through the volatile write of {@link #sequence}.
+     */
+    private static final class Entry {
+        volatile long sequence = -1;
+
+        long time;
+        Level level;
+        Category category;
+        String message;
+        String userId;
+        RoomMessage.Routing routing;
+        long bookmark;
+        String detail;
+        Throwable thrown;
+        String thread;
+
+        void clear() {
+            message = null;
+            userId = null;
+            detail = null;
+            thrown = null;
+            thread = null;
+        }
+    }
+}
@@ -0,0 +1,367 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An inbound message from the mediator, e.g.
+ * {@code room,VerySimpleRoom,{"username":"bob","userId":"github:1234","content":"hi"}}
+ *
+ * Parsing is a single pass over the message: the routing prefix is matched in place, and the
+ * json payload is scanned for just the fields the room uses (userId, username, content
+ * and bookmark), skipping everything else. Nothing is
+ * allocated other than the field values themselves, and the {@code RoomMessage} holding them is
+ * reused by each thread, so the values must be read before the thread parses another message.
+ */
+final class RoomMessage {
+
+    /**
+     * The routing types the room understands.
+     */
+    enum Routing {
+        ROOM_HELLO("roomHello"),
+        ROOM("room"),
+        ROOM_GOODBYE("roomGoodbye");
+
+        final String prefix;
+
+        Routing(String prefix) {
+            this.prefix = prefix;
+        }
+    }
+
+    private static final String USERNAME = "username";
+    private static final String USERID = "userId";
+    private static final String CONTENT = "content";
+    private static final String BOOKMARK = "bookmark";
+
+    private static final Routing[] ROUTINGS = Routing.values();
+
+    private static final ThreadLocal<RoomMessage> PER_THREAD = ThreadLocal.withInitial(RoomMessage::new);
+
+    Routing routing;
+    String userId;
+    String username;
+    /** Never null for a room message, which without any content has an empty one. */
+    String content;
+    String bookmark;
+
+    // scratch space for keys, and for values that contain escapes
+    private final StringBuilder scratch = new StringBuilder(64);
+    private String json;
+    private int pos;
+
+    private RoomMessage() {
+    }
+
+    /**
+     * Parse a message using this thread's {@code RoomMessage}.
+     *
+     * @param message
+     *            The message as received from the mediator
+     * @return the parsed message, or null if the routing type is not one the room handles
+     * @throws IllegalArgumentException
+     *             if the json payload is malformed
+     */
+    static RoomMessage parse(String message) {
+        RoomMessage msg = PER_THREAD.get();
+        return msg.read(message) ? msg : null;
+    }
+
+    /**
+     * Parse a message in the {@link BinaryProtocol}'s framing using this thread's
+     * {@code RoomMessage}.
+     *
+     * @param message
+     *            The message as received from the mediator, from its position to its limit
+     * @return the parsed message, or null if the routing type is not one the room handles
+     * @throws IllegalArgumentException
+     *             if the message is malformed
+     */
+    static RoomMessage parse(ByteBuffer message) {
+        RoomMessage msg = PER_THREAD.get();
+        msg.clear();
+        return BinaryProtocol.read(message, msg) ? msg : null;
+    }
+
+    private void clear() {
+        routing = null;
+        userId = null;
+        username = null;
+        content = null;
+        bookmark = null;
+    }
+
+    private boolean read(String message) {
+        clear();
+
+        int comma = message.indexOf(',');
+        if (comma < 0) {
+            return false;
+        }
+        for (Routing r : ROUTINGS) {
+            if (r.prefix.length() == comma && message.startsWith(r.prefix)) {
+                routing = r;
+                break;
+            }
+        }
+        if (routing == null) {
+            return false;
+        }
+
+        // the payload follows the remaining routing fields (the room id), starting at the first brace.
+        int brace = message.indexOf('{', comma);
+        if (brace < 0) {
+            throw new IllegalArgumentException("Missing payload in " + routing.prefix + " message");
+        }
+        json = message;
+        pos = brace;
+        try {
+            readObject();
+        } finally {
+            json = null;
+        }
+        // a room message without content is handled as an empty one, as it is in binary.
+        if (routing == Routing.ROOM && content == null) {
+            content = "";
+        }
+        return true;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    // Json scanning..
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    private void readObject() {
+        expect('{');
+        skipWhitespace();
+        if (peek() == '}') {
+            pos++;
+            return;
+        }
+        while (true) {
+            skipWhitespace();
+            readKey();
+            skipWhitespace();
+            expect(':');
+            skipWhitespace();
+            if (USERID.contentEquals(scratch)) {
+                userId = readValue();
+            } else if (USERNAME.contentEquals(scratch)) {
+                username = readValue();
+            } else if (CONTENT.contentEquals(scratch)) {
+                content = readValue();
+            } else if (BOOKMARK.contentEquals(scratch)) {
+                bookmark = readValue();
+            } else {
+                skipValue();
+            }
+            skipWhitespace();
+            char c = next();
+            if (c == '}') {
+                return;
+            }
+            if (c != ',') {
+                throw malformed("expected ',' or '}'");
+            }
+        }
+    }
+
+    private void readKey() {
+        expect('"');
+        scratch.setLength(0);
+        int end = plainStringEnd();
+        if (end >= 0) {
+            scratch.append(json, pos, end);
+            pos = end + 1;
+        } else {
+            unescape();
+        }
+    }
+
+    /**
+     * Read the value of a field we care about. Strings are unescaped, anything else is
+     * returned as its json text (as {@code JsonValue.toString()} would).
+     */
+    private String readValue() {
+        if (peek() == '"') {
+            pos++;
+            int start = pos;
+            int end = plainStringEnd();
+            if (end >= 0) {
+                pos = end + 1;
+                return json.substring(start, end);
+            }
+            scratch.setLength(0);
+            unescape();
+            return scratch.toString();
+        }
+        int start = pos;
+        skipValue();
+        return json.substring(start, pos);
+    }
+
+    /**
+     * @return the index of the closing quote of the string starting at pos, or -1 if the string
+     *         contains escapes and has to be unescaped
+     */
+    private int plainStringEnd() {
+        for (int i = pos; i < json.length(); i++) {
+            char c = json.charAt(i);
+            if (c == '"') {
+                return i;
+            }
+            if (c == '\\') {
+                return -1;
+            }
+        }
+        throw malformed("unterminated string");
+    }
+
+    /**
+     * Unescape the rest of a string (pos is just after its opening quote) into scratch.
+     */
+    private void unescape() {
+        while (true) {
+            char c = next();
+            if (c == '"') {
+                return;
+            }
+            if (c != '\\') {
+                scratch.append(c);
+                continue;
+            }
+            c = next();
+            switch (c) {
+                case '"':
+                case '\\':
+                case '/':
+                    scratch.append(c);
+                    break;
+                case 'b':
+                    scratch.append('\b');
+                    break;
+                case 'f':
+                    scratch.append('\f');
+                    break;
+                case 'n':
+                    scratch.append('\n');
+                    break;
+                case 'r':
+                    scratch.append('\r');
+                    break;
+                case 't':
+                    scratch.append('\t');
+                    break;
+                case 'u':
+                    if (pos + 4 > json.length()) {
+                        throw malformed("truncated unicode escape");
+                    }
+                    int cp = 0;
+                    for (int i = 0; i < 4; i++) {
+                        int digit = Character.digit(json.charAt(pos++), 16);
+                        if (digit < 0) {
+                            throw malformed("bad unicode escape");
+                        }
+                        cp = (cp << 4) | digit;
+                    }
+                    scratch.append((char) cp);
+                    break;
+                default:
+                    throw malformed("bad escape");
+            }
+        }
+    }
+
+    private void skipValue() {
+        char c = peek();
+        if (c == '"') {
+            pos++;
+            skipString();
+        } else if (c == '{' || c == '[') {
+            int depth = 0;
+            do {
+                c = next();
+                if (c == '"') {
+                    skipString();
+                } else if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    depth--;
+                }
+            } while (depth > 0);
+        } else {
+            // number, true, false or null
+            int start = pos;
+            while (pos < json.length()) {
+                c = json.charAt(pos);
+                if (c == ',' || c == '}' || c == ']' || isWhitespace(c)) {
+                    break;
+                }
+                pos++;
+            }
+            if (pos == start) {
+                throw malformed("expected a value");
+            }
+        }
+    }
+
+    private void skipString() {
+        while (true) {
+            char c = next();
+            if (c == '"') {
+                return;
+            }
+            if (c == '\\') {
+                next();
+            }
+        }
+    }
+
+    private void skipWhitespace() {
+        while (pos < json.length() && isWhitespace(json.charAt(pos))) {
+            pos++;
+        }
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+    }
+
+    private void expect(char c) {
+        if (next() != c) {
+            throw malformed("expected '" + c + "'");
+        }
+    }
+
+    private char peek() {
+        if (pos >= json.length()) {
+            throw malformed("unexpected end of message");
+        }
+        return json.charAt(pos);
+    }
+
+    private char next() {
+        char c = peek();
+        pos++;
+        return c;
+    }
+
+    private IllegalArgumentException malformed(String problem) {
+        return new IllegalArgumentException("Malformed " + routing.prefix + " payload, " + problem + " at offset " + pos);
+    }
+}
@@ -0,0 +1,204 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters, gauges and latency histograms for the room, written out in the Prometheus text
+ * format by {@link MetricsServlet}.
+ *
+ * Everything is recorded into preallocated {@link LongAdder}s, so recording doesn't allocate or
+ * contend, and is cheap enough to leave on permanently. Histograms use fixed power-of-two
+ * buckets, from 1 microsecond up to about 17 seconds.
+ */
+final class RoomMetrics {
+
+    /**
+     * The kinds of command a player can send.
+     */
+    enum Command {
+        LOOK("/look"),
+        GO("/go"),
+        HISTORY("/history"),
+        CHAT("chat"),
+        UNKNOWN("unknown");
+
+        final String label;
+
+        Command(String label) {
+            this.label = label;
+        }
+    }
+
+    private static final RoomMessage.Routing[] ROUTINGS = RoomMessage.Routing.values();
+    private static final Command[] COMMANDS = Command.values();
+
+    private final LongAdder[] messages = adders(ROUTINGS.length);
+    private final Histogram[] messageLatency = histograms(ROUTINGS.length);
+    private final LongAdder[] commands = adders(COMMANDS.length);
+    private final Histogram[] commandLatency = histograms(COMMANDS.length);
+    private final Histogram fanout = new Histogram();
+
+    private final List<Gauge> gauges = new ArrayList<>();
+
+    /**
+     * Count an inbound message, and how long it took from arriving to being handled by the room.
+     */
+    void message(RoomMessage.Routing routing, long elapsedNanos) {
+        messages[routing.ordinal()].increment();
+        messageLatency[routing.ordinal()].observe(elapsedNanos);
+    }
+
+    /**
+     * Count a command, and how long the room took to process it.
+     */
+    void command(Command command, long elapsedNanos) {
+        commands[command.ordinal()].increment();
+        commandLatency[command.ordinal()].observe(elapsedNanos);
+    }
+
+    /**
+     * Record how long it took to queue a broadcast for every session in a room.
+     */
+    void fanout(long elapsedNanos) {
+        fanout.observe(elapsedNanos);
+    }
+
+    /**
+     * Add a value that is read when the metrics are written out. Counters that live elsewhere
+     * (like the outbound failure counts) are added this way too.
+     */
+    void gauge(String name, String help, boolean counter, LongSupplier value) {
+        synchronized (gauges) {
+            gauges.add(new Gauge(name, help, counter, value));
+        }
+    }
+
+    /**
+     * Write everything out in the Prometheus text exposition format. Lines always end in a bare
+     * newline, as the format requires, whatever the platform's line separator is.
+     */
+    void write(PrintWriter out) {
+        header(out, "room_messages_total", "Inbound messages, by routing type.", "counter");
+        for (RoomMessage.Routing r : ROUTINGS) {
+            out.append("room_messages_total{type=\"").append(r.prefix).append("\"} ")
+                    .append(String.valueOf(messages[r.ordinal()].sum())).append('\n');
+        }
+        header(out, "room_message_seconds", "Time from a message arriving to the room having handled it.", "histogram");
+        for (RoomMessage.Routing r : ROUTINGS) {
+            messageLatency[r.ordinal()].write(out, "room_message_seconds", "type=\"" + r.prefix + "\"");
+        }
+
+        header(out, "room_commands_total", "Commands processed, by command.", "counter");
+        for (Command c : COMMANDS) {
+            out.append("room_commands_total{command=\"").append(c.label).append("\"} ")
+                    .append(String.valueOf(commands[c.ordinal()].sum())).append('\n');
+        }
+        header(out, "room_command_seconds", "Time taken to process a command.", "histogram");
+        for (Command c : COMMANDS) {
+            commandLatency[c.ordinal()].write(out, "room_command_seconds", "command=\"" + c.label + "\"");
+        }
+
+        header(out, "room_broadcast_seconds", "Time taken to queue a broadcast for every session in a room.", "histogram");
+        fanout.write(out, "room_broadcast_seconds", null);
+
+        List<Gauge> snapshot;
+        synchronized (gauges) {
+            snapshot = new ArrayList<>(gauges);
+        }
+        for (Gauge g : snapshot) {
+            header(out, g.name, g.help, g.counter ? "counter" : "gauge");
+            out.append(g.name).append(' ').append(String.valueOf(g.value.getAsLong())).append('\n');
+        }
+    }
+
+    private static void header(PrintWriter out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static LongAdder[] adders(int n) {
+        LongAdder[] a = new LongAdder[n];
+        for (int i = 0; i < n; i++) {
+            a[i] = new LongAdder();
+        }
+        return a;
+    }
+
+    private static Histogram[] histograms(int n) {
+        Histogram[] h = new Histogram[n];
+        for (int i = 0; i < n; i++) {
+            h[i] = new Histogram();
+        }
+        return h;
+    }
+
+    /**
+     * A latency histogram with buckets at 1us, 2us, 4us ... 2^24us (about 17s), plus one for
+     * everything slower.
+     */
+    static final class Histogram {
+        private static final int BUCKETS = 25;
+
+        private final LongAdder[] buckets = adders(BUCKETS + 1);
+        private final LongAdder sumNanos = new LongAdder();
+
+        void observe(long nanos) {
+            // rounded up, so nothing lands in a bucket whose bound is below it.
+            long micros = (nanos + 999) / 1000;
+            // smallest bucket whose bound (2^i us) holds the value.
+            int i = micros <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(micros - 1);
+            buckets[Math.min(i, BUCKETS)].increment();
+            sumNanos.add(nanos);
+        }
+
+        void write(PrintWriter out, String name, String labels) {
+            String prefix = labels == null ? "{" : "{" + labels + ",";
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                cumulative += buckets[i].sum();
+                out.append(name).append("_bucket").append(prefix).append("le=\"")
+                        .append(Double.toString((1L << i) / 1e6)).append("\"} ")
+                        .append(String.valueOf(cumulative)).append('\n');
+            }
+            cumulative += buckets[BUCKETS].sum();
+            out.append(name).append("_bucket").append(prefix).append("le=\"+Inf\"} ")
+                    .append(String.valueOf(cumulative)).append('\n');
+            String suffix = labels == null ? " " : "{" + labels + "} ";
+            out.append(name).append("_sum").append(suffix).append(String.valueOf(sumNanos.sum() / 1e9)).append('\n');
+            out.append(name).append("_count").append(suffix).append(String.valueOf(cumulative)).append('\n');
+        }
+    }
+
+    private static final class Gauge {
+        final String name;
+        final String help;
+        final boolean counter;
+        final LongSupplier value;
+
+        Gauge(String name, String help, boolean counter, LongSupplier value) {
+            this.name = name;
+            this.help = help;
+            this.counter = counter;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * The rooms hosted by this server.
+ *
+ * The set of hosted room ids is fixed (they are what we register with the map), but the state
+ * for a room is only created when a player first says hello to it, and is evicted again once
+ * the room has had no sessions for a while. If more rooms are live than the budget allows, or
+ * their journals map more memory than it allows, the least recently used idle rooms are evicted
+ * early. An evicted room isn't opened again until it has finished closing its journal, as the
+ * new one would open the same files, and it carries on from the bookmark it got to, which the
+ * journal alone doesn't know (if there is one at all).
+ */
+final class RoomRegistry {
+
+    /** A room is never evicted to meet the budget within this long of its last message. */
+    private static final long GRACE_MILLIS = 5000;
+
+    private final Set<String> hosted;
+    private final BiFunction<String, Long, RoomState> factory;
+    private final Consumer<RoomState> opened;
+    private final ConcurrentMap<String, RoomState> live = new ConcurrentHashMap<>();
+    /** Evicted rooms that haven't finished closing, by id, each with its next bookmark once it has. */
+    private final ConcurrentMap<String, CompletableFuture<Long>> closing = new ConcurrentHashMap<>();
+    /** The next bookmark of every room that has been evicted, by id. */
+    private final ConcurrentMap<String, Long> floors = new ConcurrentHashMap<>();
+
+    private final long idleTimeoutMillis;
+    private final int maxLiveRooms;
+    private final long maxJournalBytes;
+
+    private final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "room-sweeper");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * @param hosted
+     *            Ids of the rooms hosted here
+     * @param factory
+     *            Creates the state for a room when it is needed, given the first bookmark it
+     *            may hand out: 0, or where it got to before it was last evicted
+     * @param opened
+     *            Told about each room that comes to life, once it can be found here
+     * @param idleTimeoutMillis
+     *            How long a room with no sessions is kept around
+     * @param maxLiveRooms
+     *            How many rooms can be live at once before idle ones are evicted early
+     * @param maxJournalBytes
+     *            How many bytes of journal can be mapped (by the live rooms, and by catch-ups still
+     *            reading evicted rooms' journals) before idle rooms are evicted early
+     */
+    RoomRegistry(Collection<String> hosted, BiFunction<String, Long, RoomState> factory, Consumer<RoomState> opened,
+            long idleTimeoutMillis, int maxLiveRooms, long maxJournalBytes) {
+        this.hosted = Collections.unmodifiableSet(new LinkedHashSet<>(hosted));
+        this.factory = factory;
+        this.opened = opened;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.maxLiveRooms = maxLiveRooms;
+        this.maxJournalBytes = maxJournalBytes;
+        long sweep = Math.max(1000, Math.min(idleTimeoutMillis / 2, 30000));
+        sweeper.scheduleWithFixedDelay(this::sweep, sweep, sweep, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the ids of every hosted room, live or not
+     */
+    Set<String> hosted() {
+        return hosted;
+    }
+
+    boolean isHosted(String roomId) {
+        return hosted.contains(roomId);
+    }
+
+    /**
+     * Get the state for a room, creating it if need be. Marks the room as active, so it won't
+     * be evicted while the caller is using it.
+     *
+     * @param roomId
+     *            Id of the room
+     * @return the room's state, or null if we don't host that room
+     */
+    RoomState open(String roomId) {
+        if (!hosted.contains(roomId)) {
+            return null;
+        }
+        RoomState[] created = new RoomState[1];
+        RoomState open;
+        do {
+            // an evicted room is waited for outside the map, as a bin of its lock is shared with
+            // other rooms, and they mustn't be held up while the journal is closed.
+            CompletableFuture<Long> closed = closing.get(roomId);
+            if (closed != null) {
+                closed.join();
+            }
+            open = live.compute(roomId, (id, room) -> {
+                if (room == null) {
+                    CompletableFuture<Long> evicted = closing.get(id);
+                    if (evicted != null && !evicted.isDone()) {
+                        return null; // evicted again since, so wait for that too
+                    }
+                    long floor = floors.getOrDefault(id, 0L);
+                    if (evicted != null) {
+                        floor = Math.max(floor, evicted.join());
+                    }
+                    room = factory.apply(id, floor);
+                    created[0] = room;
+                }
+                room.lastActive = System.currentTimeMillis();
+                return room;
+            });
+        } while (open == null);
+        if (created[0] != null) {
+            opened.accept(open);
+        }
+        return open;
+    }
+
+    /**
+     * Get the state for a room, if it is live.
+     *
+     * @param roomId
+     *            Id of the room
+     * @return the room's state, or null if it isn't live
+     */
+    RoomState get(String roomId) {
+        RoomState room = live.get(roomId);
+        if (room != null) {
+            room.lastActive = System.currentTimeMillis();
+        }
+        return room;
+    }
+
+    /**
+     * @return the next bookmark of each room that has been evicted and isn't live now, by id
+     */
+    Map<String, Long> evictedBookmarks() {
+        Map<String, Long> evicted = new HashMap<>(floors);
+        evicted.keySet().removeAll(live.keySet());
+        return evicted;
+    }
+
+    /**
+     * @return the rooms that are currently live
+     */
+    Collection<RoomState> live() {
+        return live.values();
+    }
+
+    /**
+     * Let go of every room, waiting up to the timeout for their journals to be closed (along with
+     * those of any rooms evicted earlier that are still closing).
+     */
+    void shutdown(long timeout, TimeUnit unit) {
+        sweeper.shutdownNow();
+        List<CompletableFuture<Long>> closes = new ArrayList<>(closing.values());
+        for (String id : live.keySet()) {
+            RoomState room = live.remove(id);
+            if (room != null) {
+                closes.add(room.close());
+            }
+        }
+        try {
+            CompletableFuture.allOf(closes.toArray(new CompletableFuture<?>[closes.size()])).get(timeout, unit);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            RoomLog.warn(RoomLog.Category.ROOMS, "Not every room's journal was closed before shutting down", e);
+        }
+    }
+
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        for (String id : live.keySet()) {
+            evictIf(id, room -> now - room.lastActive > idleTimeoutMillis);
+        }
+
+        int excess = live.size() - maxLiveRooms;
+        // counting what evicted rooms' catch-ups still have mapped, which only goes once they're done.
+        long mapped = EventJournal.mappedBytesTotal();
+        if (excess > 0 || mapped > maxJournalBytes) {
+            List<RoomState> idle = new ArrayList<>();
+            for (RoomState room : live.values()) {
+                if (room.sessionCount == 0 && now - room.lastActive > GRACE_MILLIS) {
+                    idle.add(room);
+                }
+            }
+            idle.sort(Comparator.comparingLong(room -> room.lastActive));
+            for (int i = 0; i < idle.size() && (excess > 0 || mapped > maxJournalBytes); i++) {
+                RoomState candidate = idle.get(i);
+                long bytes = candidate.mappedBytes();
+                if (evictIf(candidate.id, room -> room == candidate && now - room.lastActive > GRACE_MILLIS)) {
+                    excess--;
+                    mapped -= bytes;
+                }
+            }
+        }
+    }
+
+    private boolean evictIf(String id, Predicate<RoomState> test) {
+        RoomState[] evicted = new RoomState[1];
+        // the check and removal are atomic with respect to open(), so a room can't be evicted
+        // out from under a hello that has just arrived for it.
+        live.computeIfPresent(id, (key, room) -> {
+            if (room.sessionCount == 0 && test.test(room)) {
+                evicted[0] = room;
+                // closing starts before the room can be opened again, so that waits for it.
+                CompletableFuture<Long> closed = room.close();
+                closing.put(key, closed);
+                closed.thenAccept(next -> {
+                    floors.merge(key, next, Math::max);
+                    closing.remove(key, closed);
+                });
+                return null;
+            }
+            return room;
+        });
+        if (evicted[0] != null) {
+            RoomLog.info(RoomLog.Category.ROOMS, "Evicting idle room " + id);
+            return true;
+        }
+        return false;
+    }
+}
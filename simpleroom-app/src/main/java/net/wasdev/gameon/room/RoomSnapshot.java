@@ -0,0 +1,168 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * What the server needs to pick up where it left off after a restart: for each live room, the
+ * next bookmark it would have handed out and the players that were in it, and the map's site id
+ * for each registered room.
+ *
+ * It is written to a small binary file, replacing the previous one in a single rename so a
+ * reader never sees half of it, with a checksum at the end in case the disk let us down anyway.
+ */
+final class RoomSnapshot {
+
+    private static final int MAGIC = 0x47535250; // GSRP
+    private static final int VERSION = 1;
+
+    /**
+     * One room, as it was when the snapshot was taken.
+     */
+    static final class Room {
+        final String id;
+        final long nextBookmark;
+        final List<String> players;
+
+        Room(String id, long nextBookmark, List<String> players) {
+            this.id = id;
+            this.nextBookmark = nextBookmark;
+            this.players = players;
+        }
+    }
+
+    /** When the snapshot was taken, in millis. */
+    final long takenAt;
+    /** The map's site id for each registered room, by room id. */
+    final Map<String, String> registered;
+    final Map<String, Room> rooms;
+
+    RoomSnapshot(long takenAt, Map<String, String> registered, Map<String, Room> rooms) {
+        this.takenAt = takenAt;
+        this.registered = registered;
+        this.rooms = rooms;
+    }
+
+    /**
+     * Write the snapshot to a file, replacing whatever was there.
+     *
+     * @throws IOException
+     *             if the snapshot couldn't be written, in which case the old file is untouched
+     */
+    void write(File file) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create snapshot directory " + dir);
+        }
+        File temp = new File(dir, file.getName() + ".tmp");
+        CRC32 crc = new CRC32();
+        try (FileOutputStream fos = new FileOutputStream(temp)) {
+            DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(fos), crc));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(takenAt);
+            out.writeInt(registered.size());
+            for (Map.Entry<String, String> r : registered.entrySet()) {
+                out.writeUTF(r.getKey());
+                out.writeUTF(r.getValue());
+            }
+            out.writeInt(rooms.size());
+            for (Room room : rooms.values()) {
+                out.writeUTF(room.id);
+                out.writeLong(room.nextBookmark);
+                out.writeInt(room.players.size());
+                for (String player : room.players) {
+                    out.writeUTF(player);
+                }
+            }
+            // the checksum covers everything before it, so it isn't written through the checker.
+            out.flush();
+            DataOutputStream trailer = new DataOutputStream(fos);
+            trailer.writeLong(crc.getValue());
+            fos.getFD().sync();
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Read a snapshot back.
+     *
+     * @return the snapshot, or null if there isn't one (or it can't be trusted)
+     */
+    static RoomSnapshot read(File file) {
+        CRC32 crc = new CRC32();
+        try (FileInputStream fis = new FileInputStream(file)) {
+            DataInputStream in = new DataInputStream(new CheckedInputStream(new BufferedInputStream(fis), crc));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                RoomLog.warn(RoomLog.Category.ROOMS, "Ignoring " + file + ", it isn't a room snapshot we understand");
+                return null;
+            }
+            long takenAt = in.readLong();
+            int count = in.readInt();
+            Map<String, String> registered = new LinkedHashMap<>();
+            for (int i = 0; i < count; i++) {
+                registered.put(in.readUTF(), in.readUTF());
+            }
+            count = in.readInt();
+            Map<String, Room> rooms = new LinkedHashMap<>();
+            for (int i = 0; i < count; i++) {
+                String id = in.readUTF();
+                long nextBookmark = in.readLong();
+                int players = in.readInt();
+                List<String> ids = new ArrayList<>(Math.min(players, 1024));
+                for (int p = 0; p < players; p++) {
+                    ids.add(in.readUTF());
+                }
+                rooms.put(id, new Room(id, nextBookmark, Collections.unmodifiableList(ids)));
+            }
+            // the checksum of everything read so far, before reading the one that was written.
+            long expected = crc.getValue();
+            if (in.readLong() != expected) {
+                RoomLog.warn(RoomLog.Category.ROOMS, "Ignoring " + file + ", its checksum doesn't match");
+                return null;
+            }
+            return new RoomSnapshot(takenAt, registered, rooms);
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (EOFException e) {
+            RoomLog.warn(RoomLog.Category.ROOMS, "Ignoring " + file + ", it has been cut short");
+            return null;
+        } catch (IOException | RuntimeException e) {
+            RoomLog.warn(RoomLog.Category.ROOMS, "Unable to read the room snapshot " + file, e);
+            return null;
+        }
+    }
+}
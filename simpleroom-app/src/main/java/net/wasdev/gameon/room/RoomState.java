@@ -0,0 +1,282 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import javax.websocket.Session;
+
+/**
+ * Everything one hosted room knows about itself.
+ *
+ * The room's behaviour lives in {@link VerySimpleRoom}; this is just its state, most of which
+ * belongs to the room's {@link RoomEventLoop} and must only be touched by tasks run there. The
+ * few fields read from other threads (to decide when an idle room can be evicted, and for the
+ * metrics) are volatile.
+ */
+final class RoomState {
+
+    final String id;
+    final String fullName;
+    final String description;
+
+    // the room's responses that never change, already encoded.
+    final String locationJson;
+    final String lookJson;
+
+    final EventJournal journal;
+    final RoomEventLoop loop;
+    /** The room's recent chat and events, kept in memory. */
+    final ChatHistory history = new ChatHistory(RoomConfig.getInt("room.history.messages", 64),
+            RoomConfig.getInt("room.history.bytes", 32 * 1024));
+
+    // only touched on the room loop
+    final Presence presence = new Presence();
+    final Set<Session> sessions = new LinkedHashSet<Session>();
+    /** When clustered, the players on other nodes, with the node each is on. */
+    final Map<String, String> remotePlayers = new HashMap<String, String>();
+    /**
+     * Players whose connection went away without a goodbye, or who were here when the server
+     * last stopped, with when they went, oldest first. They're expected back.
+     */
+    private final LinkedHashMap<String, Long> away = new LinkedHashMap<String, Long>();
+    private final long awayMillis;
+
+    /** How many sessions have said hello, and not yet left. */
+    volatile int sessionCount;
+    /** How many players are in the room. */
+    volatile int playerCount;
+    /** How many players are in the room on other nodes. */
+    volatile int remotePlayerCount;
+    /** When a message for this room last arrived, in millis. */
+    volatile long lastActive = System.currentTimeMillis();
+
+    RoomState(String id, String fullName, String description, File journalDir) {
+        this(id, fullName, description, journalDir, null, 0, 0);
+    }
+
+    /**
+     * @param journalDir
+     *            where the room's journal is kept, or null to keep none
+     * @param restored
+     *            the room as it was when the server last stopped, or null
+     * @param floor
+     *            the first bookmark the room may hand out, at least: where it got to before it
+     *            was last evicted
+     * @param awayMillis
+     *            how long a player who left without a goodbye (or was here when the server
+     *            stopped) is expected back for
+     */
+    RoomState(String id, String fullName, String description, File journalDir, RoomSnapshot.Room restored,
+            long floor, long awayMillis) {
+        this.id = id;
+        this.fullName = fullName;
+        this.description = description;
+        this.locationJson = OutboundEncoder.location(id, fullName, description);
+        this.lookJson = OutboundEncoder.look(id, description);
+        this.journal = journalDir == null ? null : openJournal(new File(journalDir, id));
+        // without a journal, or with private bookmarks it doesn't keep, only the floor says how
+        // far the room got before it was evicted.
+        long firstBookmark = Math.max(floor, journal == null ? 0 : journal.nextBookmark());
+        this.awayMillis = awayMillis;
+        if (restored != null) {
+            // bookmarks that weren't journalled (private ones when clustered, or all of them
+            // without a journal) still mustn't be handed out again.
+            firstBookmark = Math.max(firstBookmark, restored.nextBookmark);
+            Long now = System.currentTimeMillis();
+            for (String player : restored.players) {
+                away.put(player, now);
+            }
+        }
+        this.loop = new RoomEventLoop(firstBookmark);
+    }
+
+    /**
+     * Add a session to the room. Must be called on the room loop.
+     */
+    void addSession(Session session) {
+        if (sessions.add(session)) {
+            sessionCount = sessions.size();
+        }
+    }
+
+    /**
+     * Remove a session from the room, along with any players that arrived on it and haven't
+     * since turned up on another. Must be called on the room loop.
+     *
+     * @return how many players were removed
+     */
+    int removeSession(Session session) {
+        if (sessions.remove(session)) {
+            sessionCount = sessions.size();
+        }
+        if (awayMillis > 0) {
+            Long now = System.currentTimeMillis();
+            presence.forEachOn(session, userid -> {
+                // moved to the end, to keep the oldest first.
+                away.remove(userid);
+                away.put(userid, now);
+            });
+            expireAway(now);
+        }
+        int removed = presence.leaveAll(session);
+        playerCount = presence.size();
+        return removed;
+    }
+
+    /**
+     * Note a player saying hello, to see whether they're coming back from a dropped connection
+     * or a restart, in which case the room has no need to hear about them arriving. Must be
+     * called on the room loop.
+     *
+     * @return true if the player was expected back
+     */
+    boolean returned(String userid) {
+        expireAway(System.currentTimeMillis());
+        return away.remove(userid) != null;
+    }
+
+    /**
+     * Capture the room for a snapshot: the next bookmark, and everyone here or expected back.
+     * Must be called on the room loop.
+     */
+    RoomSnapshot.Room snapshot() {
+        expireAway(System.currentTimeMillis());
+        List<String> players = new ArrayList<>(presence.size() + away.size());
+        presence.forEach(players::add);
+        for (String userid : away.keySet()) {
+            if (!presence.contains(userid)) {
+                players.add(userid);
+            }
+        }
+        return new RoomSnapshot.Room(id, loop.peekBookmark(), players);
+    }
+
+    // forget the players who haven't come back in time, oldest first.
+    private void expireAway(long now) {
+        for (Iterator<Long> i = away.values().iterator(); i.hasNext();) {
+            if (now - i.next() < awayMillis) {
+                break;
+            }
+            i.remove();
+        }
+    }
+
+    /**
+     * Add a player to the room, on the session they said hello on. Must be called on the room
+     * loop.
+     *
+     * @return true if the player wasn't already here
+     */
+    boolean addPlayer(String userid, Session session) {
+        boolean added = presence.join(userid, session);
+        playerCount = presence.size();
+        return added;
+    }
+
+    /**
+     * Remove a player from the room. Must be called on the room loop.
+     */
+    void removePlayer(String userid) {
+        away.remove(userid);
+        presence.leave(userid);
+        playerCount = presence.size();
+    }
+
+    /**
+     * Note a player arriving on another node. Must be called on the room loop.
+     */
+    void addRemotePlayer(String userid, String node) {
+        remotePlayers.put(userid, node);
+        remotePlayerCount = remotePlayers.size();
+    }
+
+    /**
+     * Note a player leaving another node, unless they've since turned up on a different one.
+     * Must be called on the room loop.
+     */
+    void removeRemotePlayer(String userid, String node) {
+        remotePlayers.remove(userid, node);
+        remotePlayerCount = remotePlayers.size();
+    }
+
+    /**
+     * Forget every player on other nodes, before asking them again. Must be called on the room
+     * loop.
+     */
+    void clearRemotePlayers() {
+        remotePlayers.clear();
+        remotePlayerCount = 0;
+    }
+
+    /**
+     * Forget every player on a node that has left the cluster. Must be called on the room loop.
+     */
+    void removeNode(String node) {
+        remotePlayers.values().removeIf(node::equals);
+        remotePlayerCount = remotePlayers.size();
+    }
+
+    /**
+     * @return how many bytes of journal the room has mapped. Can be called from any thread.
+     */
+    long mappedBytes() {
+        return journal == null ? 0 : journal.mappedBytes();
+    }
+
+    /**
+     * Let go of the room, once it has been evicted.
+     *
+     * @return completes once the journal has been closed, after whatever the loop was already
+     *         doing with it, so the room can be opened again from the same files, with the next
+     *         bookmark the room would have handed out
+     */
+    CompletableFuture<Long> close() {
+        CompletableFuture<Long> closed = new CompletableFuture<>();
+        loop.execute(() -> {
+            try {
+                if (journal != null) {
+                    journal.close();
+                }
+            } finally {
+                closed.complete(loop.peekBookmark());
+            }
+        });
+        return closed;
+    }
+
+    private static EventJournal openJournal(File dir) {
+        try {
+            return new EventJournal(dir,
+                    RoomConfig.getInt("room.journal.segmentSize", 8 * 1024 * 1024),
+                    RoomConfig.getInt("room.journal.segments", 8));
+        } catch (IOException e) {
+            RoomLog.warn(RoomLog.Category.JOURNAL,
+                    "Unable to open the event journal in " + dir + ", players won't be caught up on reconnect", e);
+            return null;
+        }
+    }
+}
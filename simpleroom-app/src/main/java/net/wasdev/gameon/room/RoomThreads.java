@@ -0,0 +1,118 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Where the room's own threads come from.
+ *
+ * By default they are ordinary daemon threads. With {@code room.threads=virtual}, on Java 21 or
+ * later, they are virtual threads instead: the room loops then get a fresh virtual thread for
+ * each turn rather than borrowing from a fixed pool, and registration and session closes (which
+ * block on the network) no longer tie up a platform thread each. Virtual threads are found
+ * reflectively, so the app still builds for, and runs on, Java 8; asking for them on an older
+ * JVM logs a warning and carries on with platform threads.
+ *
+ * Nothing run on these threads blocks while holding a monitor (the locks in {@link Outbound},
+ * {@link Frame} and the bus's sequencer only guard in-memory state), so a virtual thread is
+ * never pinned to its carrier for longer than a queue operation.
+ */
+final class RoomThreads {
+
+    private static final boolean virtual = virtual(RoomConfig.get("room.threads", "platform"));
+
+    private static final Executor BLOCKING = virtual ? perTask("room-blocking") : ForkJoinPool.commonPool();
+
+    private RoomThreads() {
+    }
+
+    /**
+     * @return true if the room's threads are virtual
+     */
+    static boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * @param name
+     *            prefix for the threads' names, which are numbered from 1
+     * @return a factory for daemon threads, virtual ones if they're in use
+     */
+    static ThreadFactory factory(String name) {
+        if (virtual) {
+            ThreadFactory virtual = virtualFactory(name);
+            if (virtual != null) {
+                return virtual;
+            }
+        }
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /**
+     * @return an executor that starts a new thread, from {@link #factory(String)}, for each task
+     */
+    static Executor perTask(String name) {
+        ThreadFactory factory = factory(name);
+        return r -> factory.newThread(r).start();
+    }
+
+    /**
+     * @return an executor for work that blocks, like closing a session: a new virtual thread for
+     *         each task, or the common pool
+     */
+    static Executor blocking() {
+        return BLOCKING;
+    }
+
+    private static boolean virtual(String mode) {
+        if (!"virtual".equalsIgnoreCase(mode)) {
+            return false;
+        }
+        try {
+            Thread.class.getMethod("ofVirtual");
+            RoomLog.info(RoomLog.Category.ROOMS, "Using virtual threads for the room loops, registration and closes");
+            return true;
+        } catch (NoSuchMethodException e) {
+            RoomLog.warn(RoomLog.Category.ROOMS,
+                    "room.threads=virtual needs Java 21 or later, using platform threads on " + System.getProperty("java.version"));
+            return false;
+        }
+    }
+
+    private static ThreadFactory virtualFactory(String name) {
+        try {
+            // Thread.ofVirtual().name(name + "-", 1).factory()
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> type = Class.forName("java.lang.Thread$Builder");
+            builder = type.getMethod("name", String.class, long.class).invoke(builder, name + "-", 1L);
+            Method factory = type.getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            RoomLog.warn(RoomLog.Category.ROOMS, "Couldn't create virtual threads for " + name + ", using platform threads", e);
+            return null;
+        }
+    }
+}
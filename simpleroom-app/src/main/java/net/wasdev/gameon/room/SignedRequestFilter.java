@@ -0,0 +1,172 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.annotation.WebFilter;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Refuses requests to the rooms that aren't signed by the mediator, when room.signature.verify
+ * is set.
+ *
+ * It is mapped to the rooms' WebSocket path, so it covers their handshakes (the upgrade request
+ * goes through the container's filters like any other), and a mediator that can't sign never gets
+ * as far as saying roomHello or roomGoodbye. Everything else the app serves, the landing page
+ * that browsers load and the health and metrics endpoints the platform polls, is left open.
+ *
+ * The headers are checked before anything is read, and a body is only read (to check its hash)
+ * up to room.signature.maxBodyBytes, so an unsigned or oversized request can't make the room
+ * buffer it.
+ */
+@WebFilter("/room/*")
+public class SignedRequestFilter implements Filter {
+
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        HttpServletRequest req = (HttpServletRequest) request;
+        if (!SignedRequests.enabled) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        boolean hasBody = hasBody(req);
+        String problem = SignedRequests.verifyHeaders(req.getHeader("gameon-id"), req.getHeader("gameon-date"),
+                req.getHeader("gameon-sig-body"), hasBody, req.getHeader("gameon-signature"));
+        if (problem != null) {
+            refuse(req, response, HttpServletResponse.SC_FORBIDDEN, problem);
+            return;
+        }
+        byte[] body = null;
+        if (hasBody) {
+            body = req.getContentLengthLong() > SignedRequests.maxBodyBytes ? null : readBody(req);
+            if (body == null) {
+                refuse(req, response, HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+                        "Body is bigger than " + SignedRequests.maxBodyBytes + " bytes");
+                return;
+            }
+        }
+        problem = SignedRequests.verify(req.getHeader("gameon-id"), req.getHeader("gameon-date"),
+                req.getHeader("gameon-sig-body"), body, req.getHeader("gameon-signature"));
+        if (problem != null) {
+            refuse(req, response, HttpServletResponse.SC_FORBIDDEN, problem);
+            return;
+        }
+        chain.doFilter(body == null ? request : new ReadBodyRequest(req, body), response);
+    }
+
+    @Override
+    public void destroy() {
+    }
+
+    private static void refuse(HttpServletRequest req, ServletResponse response, int status, String problem)
+            throws IOException {
+        RoomLog.info(RoomLog.Category.CONNECTION,
+                "Refusing " + req.getMethod() + " " + req.getRequestURI() + ": " + problem);
+        ((HttpServletResponse) response).sendError(status, problem);
+    }
+
+    private static boolean hasBody(HttpServletRequest req) {
+        return req.getContentLength() > 0 || req.getHeader("Transfer-Encoding") != null;
+    }
+
+    // read the body, or return null as soon as it turns out to be too big (a chunked body
+    // doesn't say how big it is up front).
+    private static byte[] readBody(HttpServletRequest req) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(Math.max(32, req.getContentLength()));
+        try (InputStream in = req.getInputStream()) {
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                if (body.size() + n > SignedRequests.maxBodyBytes) {
+                    return null;
+                }
+                body.write(buffer, 0, n);
+            }
+        }
+        return body.toByteArray();
+    }
+
+    /**
+     * A request whose body has already been read (to check its hash), so it can be read again.
+     */
+    private static final class ReadBodyRequest extends HttpServletRequestWrapper {
+        private final byte[] body;
+
+        ReadBodyRequest(HttpServletRequest request, byte[] body) {
+            super(request);
+            this.body = body;
+        }
+
+        @Override
+        public ServletInputStream getInputStream() {
+            ByteArrayInputStream in = new ByteArrayInputStream(body);
+            return new ServletInputStream() {
+                @Override
+                public int read() {
+                    return in.read();
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) {
+                    return in.read(b, off, len);
+                }
+
+                @Override
+                public boolean isFinished() {
+                    return in.available() == 0;
+                }
+
+                @Override
+                public boolean isReady() {
+                    return true;
+                }
+
+                @Override
+                public void setReadListener(ReadListener readListener) {
+                    throw new IllegalStateException("The body has already been read");
+                }
+            };
+        }
+
+        @Override
+        public BufferedReader getReader() throws IOException {
+            String encoding = getCharacterEncoding();
+            return new BufferedReader(new InputStreamReader(getInputStream(), encoding == null ? "UTF-8" : encoding));
+        }
+    }
+}
@@ -0,0 +1,293 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Checks the gameon signatures on requests made to us, the same way the map checks the ones we
+ * put on our registration requests:
+ * <pre>
+ *   gameon-id          who is calling
+ *   gameon-date        when they signed the request, as an ISO-8601 instant
+ *   gameon-sig-body    base64 SHA-256 of the request body, if it has one
+ *   gameon-signature   base64 HmacSHA256 of id + date (+ sig-body), keyed with the shared secret
+ * </pre>
+ * A request is refused if the signature doesn't match, if it was signed too long ago (or too far
+ * in the future), or if the same signature has been seen before.
+ *
+ * Each thread keeps its own {@link Mac}, already initialised with the key, along with the
+ * scratch buffers the check needs, so verifying a signature doesn't create any crypto objects or
+ * intermediate strings and allocates next to nothing.
+ */
+final class SignedRequests {
+
+    /** Whether requests must be signed at all; off unless room.signature.verify is set. */
+    static final boolean enabled = Boolean.parseBoolean(RoomConfig.get("room.signature.verify", "false"));
+
+    private static final byte[] secret = RoomConfig.get("room.signature.key", VerySimpleRoom.key)
+            .getBytes(StandardCharsets.UTF_8);
+    private static final long maxAgeMillis = RoomConfig.getInt("room.signature.maxAgeSeconds", 300) * 1000L;
+
+    /** The biggest request body that will be read to check its hash; bigger ones are refused. */
+    static final int maxBodyBytes = RoomConfig.getInt("room.signature.maxBodyBytes", 64 * 1024);
+
+    private static final ReplayCache seen = new ReplayCache(
+            Math.max(1, RoomConfig.getInt("room.signature.replayCacheSize", 10000)));
+
+    private static final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+    private static final LongAdder rejected = new LongAdder();
+
+    private SignedRequests() {
+    }
+
+    /**
+     * Check what can be checked of a request's signature from its headers alone, before its
+     * body is read: that they are all there, and that it wasn't signed too long ago.
+     *
+     * @param id
+     *            The gameon-id header
+     * @param date
+     *            The gameon-date header
+     * @param bodyHash
+     *            The gameon-sig-body header, or null if the request has no body
+     * @param hasBody
+     *            Whether the request has a body
+     * @param signature
+     *            The gameon-signature header
+     * @return a description of what is wrong with the headers, or null if they will do
+     */
+    static String verifyHeaders(String id, String date, String bodyHash, boolean hasBody, String signature) {
+        String problem = checkHeaders(id, date, bodyHash, hasBody, signature);
+        if (problem != null) {
+            rejected.increment();
+        }
+        return problem;
+    }
+
+    /**
+     * Check a request's signature.
+     *
+     * @param id
+     *            The gameon-id header
+     * @param date
+     *            The gameon-date header
+     * @param bodyHash
+     *            The gameon-sig-body header, or null if the request has no body
+     * @param body
+     *            The request body, or null if it has none
+     * @param signature
+     *            The gameon-signature header
+     * @return a description of what is wrong with the signature, or null if it's good
+     */
+    static String verify(String id, String date, String bodyHash, byte[] body, String signature) {
+        String problem = check(id, date, bodyHash, body, signature);
+        if (problem != null) {
+            rejected.increment();
+        }
+        return problem;
+    }
+
+    /**
+     * @return the number of requests refused because of a bad signature
+     */
+    static long rejectedCount() {
+        return rejected.sum();
+    }
+
+    private static String checkHeaders(String id, String date, String bodyHash, boolean hasBody,
+            String signature) {
+        if (id == null || date == null || signature == null) {
+            return "Missing signature headers";
+        }
+        long signed;
+        try {
+            signed = Instant.parse(date).toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return "Unreadable gameon-date";
+        }
+        if (Math.abs(System.currentTimeMillis() - signed) > maxAgeMillis) {
+            return "Signature has expired";
+        }
+        if (hasBody && bodyHash == null) {
+            return "Missing gameon-sig-body";
+        }
+        return null;
+    }
+
+    private static String check(String id, String date, String bodyHash, byte[] body, String signature) {
+        String problem = checkHeaders(id, date, bodyHash, body != null, signature);
+        if (problem != null) {
+            return problem;
+        }
+        long signed = Instant.parse(date).toEpochMilli();
+        long now = System.currentTimeMillis();
+
+        Scratch s = scratch.get();
+        if (body != null) {
+            s.digest.update(body);
+            if (!s.matches(s.digest, bodyHash)) {
+                return "Body does not match gameon-sig-body";
+            }
+        }
+
+        s.update(id);
+        s.update(date);
+        if (bodyHash != null) {
+            s.update(bodyHash);
+        }
+        if (!s.matches(s.mac, signature)) {
+            return "Signature does not match";
+        }
+
+        // only remember signatures that were good, so garbage can't push real ones out.
+        if (!seen.add(signature, signed, now)) {
+            return "Signature has already been used";
+        }
+        return null;
+    }
+
+    /**
+     * Per-thread crypto and buffers.
+     */
+    private static final class Scratch {
+        final Mac mac;
+        final MessageDigest digest;
+        /** Characters of a header on their way into the mac. */
+        final byte[] in = new byte[256];
+        /** A mac or digest result, then its base64 form. */
+        final byte[] out = new byte[32];
+        final byte[] encoded = new byte[44];
+
+        Scratch() {
+            try {
+                mac = Mac.getInstance("HmacSHA256");
+                mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+                throw new IllegalStateException("Unable to set up signature checking", e);
+            }
+        }
+
+        /**
+         * Feed a header into the mac as UTF-8, a buffer at a time.
+         */
+        void update(String value) {
+            int n = value.length();
+            int i = 0;
+            while (i < n) {
+                int len = 0;
+                char c = 0;
+                while (i < n && len < in.length && (c = value.charAt(i)) < 0x80) {
+                    in[len++] = (byte) c;
+                    i++;
+                }
+                mac.update(in, 0, len);
+                if (i < n && c >= 0x80) {
+                    // headers are ascii, so there's no need to be clever about anything else.
+                    mac.update(value.substring(i).getBytes(StandardCharsets.UTF_8));
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Finish the mac, and compare it with the expected base64 value in constant time.
+         */
+        boolean matches(Mac m, String expected) {
+            try {
+                m.doFinal(out, 0);
+            } catch (ShortBufferException e) {
+                throw new IllegalStateException(e);
+            }
+            return matches(expected);
+        }
+
+        /**
+         * Finish the digest, and compare it with the expected base64 value in constant time.
+         */
+        boolean matches(MessageDigest d, String expected) {
+            try {
+                d.digest(out, 0, out.length);
+            } catch (DigestException e) {
+                throw new IllegalStateException(e);
+            }
+            return matches(expected);
+        }
+
+        private boolean matches(String expected) {
+            int len = Base64.getEncoder().encode(out, encoded);
+            if (expected.length() != len) {
+                return false;
+            }
+            int diff = 0;
+            for (int i = 0; i < len; i++) {
+                diff |= encoded[i] ^ expected.charAt(i);
+            }
+            return diff == 0;
+        }
+    }
+
+    /**
+     * The signatures seen recently. A signature covers the date it was made, so keying on the
+     * signature alone keys on both; entries are dropped once the date is too old to pass the
+     * expiry check anyway, or when the cache is full, oldest first.
+     */
+    private static final class ReplayCache {
+        private final int capacity;
+        private final LinkedHashMap<String, Long> signatures = new LinkedHashMap<>();
+
+        ReplayCache(int capacity) {
+            this.capacity = capacity;
+        }
+
+        /**
+         * @return true if the signature hasn't been seen before
+         */
+        synchronized boolean add(String signature, long signed, long now) {
+            if (signatures.containsKey(signature)) {
+                return false;
+            }
+            signatures.put(signature, signed);
+            Iterator<Map.Entry<String, Long>> it = signatures.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Long> oldest = it.next();
+                if (signatures.size() > capacity || now - oldest.getValue() > maxAgeMillis) {
+                    it.remove();
+                } else {
+                    break;
+                }
+            }
+            return true;
+        }
+    }
+}
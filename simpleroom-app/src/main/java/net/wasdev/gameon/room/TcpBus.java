@@ -0,0 +1,399 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bus between JVMs on one machine, over TCP.
+ *
+ * Whichever node first manages to listen on the cluster port becomes the hub: it sequences every
+ * event, its own included, and sends each one on to every connected node. The rest connect to it
+ * and publish through it. If the hub goes away the others race to take over, and the new hub's
+ * sequences carry on from the floors on the events it is sent, so bookmarks keep rising.
+ *
+ * While a node can't reach the cluster (between losing one hub and finding the next) it carries
+ * on alone, delivering its own events straight to itself.
+ *
+ * Each connection has a writer thread draining a queue, so the hub's fan-out never waits on a
+ * socket. A node that lets its queue fill up is too far behind to be caught up, so the hub drops
+ * its connection, and it reconnects and starts over. Publishing is called on a room's loop, so it
+ * never waits either: an event for a hub whose queue is full is dropped, along with the
+ * connection. Delivering the event here alone would show this node's players something nobody
+ * else sees, under a bookmark the hub will hand out again.
+ */
+final class TcpBus implements RoomBus {
+
+    private static final byte HELLO = 0;
+    private static final byte PUBLISH = 1;
+    private static final byte DELIVER = 2;
+    private static final byte NODE_DOWN = 3;
+
+    /** Frames that can be waiting to be written to one connection. */
+    private static final int QUEUED = 65536;
+
+    private final String node;
+    private final InetSocketAddress address;
+    private final Sequencer sequencer = new Sequencer();
+
+    private volatile Delivery delivery;
+    private volatile boolean closed;
+
+    // at most one of these is set: the hub we're connected to, or the nodes connected to us.
+    private volatile Link hub;
+    private volatile List<Link> peers;
+    private volatile ServerSocket listening;
+
+    /** Events delivered locally because the cluster couldn't be reached. */
+    private final LongAdder unreachable = new LongAdder();
+    /** Events dropped because the hub wasn't keeping up. */
+    private final LongAdder dropped = new LongAdder();
+
+    TcpBus(String node, String host, int port) {
+        this.node = node;
+        this.address = new InetSocketAddress(host, port);
+    }
+
+    @Override
+    public void start(Delivery delivery) {
+        this.delivery = delivery;
+        Thread t = new Thread(this::run, "room-cluster");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    @Override
+    public void publish(ClusterEvent event) {
+        List<Link> p = peers;
+        if (p != null) {
+            sequence(p, event);
+            return;
+        }
+        Link h = hub;
+        if (h != null) {
+            if (!h.send(frame(PUBLISH, 0, event))) {
+                // the link has been dropped (and said so), so this is one of many.
+                dropped.increment();
+                RoomLog.debug(RoomLog.Category.ROOMS, "Dropped a " + event.kind + " for room " + event.roomId
+                        + " as the cluster hub isn't keeping up");
+            }
+            return;
+        }
+        // nobody to sequence it, carry on alone until the cluster is back.
+        unreachable.increment();
+        delivery.deliver(event, event.floor);
+    }
+
+    @Override
+    public boolean isConnected() {
+        return peers != null || hub != null;
+    }
+
+    @Override
+    public long unreachableCount() {
+        return unreachable.sum();
+    }
+
+    @Override
+    public long droppedCount() {
+        return dropped.sum();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        Link h = hub;
+        if (h != null) {
+            h.close();
+        }
+        ServerSocket s = listening;
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+        }
+    }
+
+    // find the hub, or become it, for as long as we're running.
+    private void run() {
+        int failures = 0;
+        while (!closed) {
+            try (Socket socket = new Socket()) {
+                socket.connect(address, 1000);
+                failures = 0;
+                follow(socket);
+            } catch (ConnectException e) {
+                try (ServerSocket server = new ServerSocket()) {
+                    server.setReuseAddress(true);
+                    server.bind(address);
+                    failures = 0;
+                    lead(server);
+                } catch (BindException b) {
+                    // someone else got there first, go and find them.
+                } catch (IOException b) {
+                    RoomLog.warn(RoomLog.Category.ROOMS, "Cluster hub failed", b);
+                }
+            } catch (IOException e) {
+                RoomLog.warn(RoomLog.Category.ROOMS, "Lost the connection to the cluster hub", e);
+            }
+            if (!closed) {
+                sleep(Math.min(5000, 50L << Math.min(failures++, 10)));
+            }
+        }
+    }
+
+    // connected to the hub: publish through it, and deliver what it sends, until it goes away.
+    private void follow(Socket socket) throws IOException {
+        socket.setTcpNoDelay(true);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        Link link = new Link(socket, "room-cluster-hub");
+        link.send(hello());
+        String hubNode = null;
+        hub = link;
+        RoomLog.info(RoomLog.Category.ROOMS, "Joined the cluster at " + address + " as " + node);
+        delivery.connected();
+        try {
+            while (!closed) {
+                byte type = in.readByte();
+                if (type == HELLO) {
+                    hubNode = in.readUTF();
+                } else if (type == DELIVER) {
+                    long seq = in.readLong();
+                    delivery.deliver(ClusterEvent.read(in), seq);
+                } else if (type == NODE_DOWN) {
+                    delivery.nodeDown(in.readUTF());
+                } else {
+                    throw new IOException("Unexpected frame type " + type + " from the cluster hub");
+                }
+            }
+        } finally {
+            hub = null;
+            link.close();
+            if (hubNode != null) {
+                delivery.nodeDown(hubNode);
+            }
+        }
+    }
+
+    // we're the hub: sequence everything, for as long as the server socket is open.
+    private void lead(ServerSocket server) throws IOException {
+        List<Link> connected = new CopyOnWriteArrayList<>();
+        listening = server;
+        peers = connected;
+        RoomLog.info(RoomLog.Category.ROOMS, "Leading the cluster at " + address + " as " + node);
+        delivery.connected();
+        try {
+            while (!closed) {
+                Socket socket = server.accept();
+                socket.setTcpNoDelay(true);
+                Thread reader = new Thread(() -> serve(socket, connected), "room-cluster-peer");
+                reader.setDaemon(true);
+                reader.start();
+            }
+        } finally {
+            peers = null;
+            listening = null;
+            for (Link l : connected) {
+                l.close();
+            }
+        }
+    }
+
+    // one node connected to us: sequence what it publishes, until it goes.
+    private void serve(Socket socket, List<Link> connected) {
+        String peer = null;
+        Link link = null;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            if (in.readByte() != HELLO) {
+                throw new IOException("Expected a hello from a new cluster node");
+            }
+            peer = in.readUTF();
+            link = new Link(socket, "room-cluster-" + peer);
+            link.send(hello());
+            connected.add(link);
+            RoomLog.info(RoomLog.Category.ROOMS, "Cluster node " + peer + " has joined");
+            while (true) {
+                if (in.readByte() != PUBLISH) {
+                    throw new IOException("Unexpected frame from cluster node " + peer);
+                }
+                in.readLong();
+                sequence(connected, ClusterEvent.read(in));
+            }
+        } catch (IOException e) {
+            // gone
+        } finally {
+            if (link != null) {
+                connected.remove(link);
+                link.close();
+            } else {
+                closeQuietly(socket);
+            }
+            if (peer != null && !closed) {
+                RoomLog.info(RoomLog.Category.ROOMS, "Cluster node " + peer + " has left");
+                byte[] down = nodeDown(peer);
+                for (Link l : connected) {
+                    l.send(down);
+                }
+                delivery.nodeDown(peer);
+            }
+        }
+    }
+
+    // as the hub: number the event, and send it to every node, this one included.
+    private void sequence(List<Link> connected, ClusterEvent event) {
+        sequencer.sequence(event, seq -> {
+            // encoded once, whoever it's going to.
+            byte[] frame = frame(DELIVER, seq, event);
+            for (Link l : connected) {
+                l.send(frame);
+            }
+            delivery.deliver(event, seq);
+        });
+    }
+
+    private byte[] hello() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(HELLO);
+            out.writeUTF(node);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] nodeDown(String peer) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(NODE_DOWN);
+            out.writeUTF(peer);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] frame(byte type, long seq, ClusterEvent event) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(type);
+            out.writeLong(seq);
+            event.write(out);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis / 2 + ThreadLocalRandom.current().nextLong(millis / 2 + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // closing anyway
+        }
+    }
+
+    /**
+     * The sending side of a connection: frames are queued, and written by the link's own thread.
+     */
+    private static final class Link {
+        private final Socket socket;
+        private final String name;
+        private final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>(QUEUED);
+        private volatile boolean closed;
+
+        Link(Socket socket, String name) throws IOException {
+            this.socket = socket;
+            this.name = name;
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            Thread writer = new Thread(() -> write(out), name);
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        /**
+         * Queue a frame, closing the link if it is too far behind to take it: the other end has
+         * missed something it can't get back, so it had better reconnect and start over.
+         *
+         * @return false if the frame couldn't be queued, because the link is closed or too far behind
+         */
+        boolean send(byte[] frame) {
+            if (closed) {
+                return false;
+            }
+            if (queue.offer(frame)) {
+                return true;
+            }
+            if (!closed) {
+                RoomLog.warn(RoomLog.Category.ROOMS, "Cluster connection " + name + " is too far behind, dropping it");
+                close();
+            }
+            return false;
+        }
+
+        void close() {
+            closed = true;
+            closeQuietly(socket);
+        }
+
+        private void write(DataOutputStream out) {
+            try {
+                while (!closed) {
+                    byte[] frame = queue.poll(1, TimeUnit.SECONDS);
+                    if (frame == null) {
+                        continue;
+                    }
+                    out.write(frame);
+                    // batch up whatever else is already waiting before flushing.
+                    while ((frame = queue.poll()) != null) {
+                        out.write(frame);
+                    }
+                    out.flush();
+                }
+            } catch (IOException | InterruptedException e) {
+                close();
+            }
+        }
+    }
+}
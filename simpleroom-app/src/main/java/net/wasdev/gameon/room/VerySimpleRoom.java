@@ -17,26 +17,42 @@ package net.wasdev.gameon.room;
 
 import java.io.BufferedReader;
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.StringReader;
-import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.security.InvalidKeyException;
 import java.security.KeyManagementException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.time.Instant;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Base64;
-import java.util.Collections;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
 
 import javax.crypto.Mac;
@@ -45,13 +61,14 @@ import javax.json.Json;
 import javax.json.JsonArray;
 import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
-import javax.json.JsonString;
+import javax.json.JsonReader;
+import javax.json.JsonStructure;
 import javax.json.JsonValue;
-import javax.json.JsonValue.ValueType;
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
 import javax.servlet.ServletContext;
@@ -60,14 +77,15 @@ import javax.servlet.ServletContextListener;
 import javax.servlet.annotation.WebListener;
 import javax.websocket.CloseReason;
 import javax.websocket.CloseReason.CloseCodes;
-import javax.websocket.EncodeException;
 import javax.websocket.EndpointConfig;
 import javax.websocket.OnClose;
 import javax.websocket.OnError;
 import javax.websocket.OnMessage;
 import javax.websocket.OnOpen;
-import javax.websocket.RemoteEndpoint.Basic;
+import javax.websocket.PongMessage;
+import javax.websocket.RemoteEndpoint.Async;
 import javax.websocket.Session;
+import javax.websocket.server.PathParam;
 import javax.websocket.server.ServerEndpoint;
 
 /**
@@ -78,72 +96,404 @@ import javax.websocket.server.ServerEndpoint;
  * gameon (WebSockets, Json)
  *
  * Although it would be trivial to refactor out into multiple classes, doing so can make it
- * harder to see 'everything' needed for a room in one go.
+ * harder to see 'everything' needed for a room in one go. The plumbing that a room doesn't need
+ * to think about (parsing, outbound delivery, the event loop the room runs on) lives in its own
+ * package-private classes alongside this one.
  */
-@ServerEndpoint("/room")
+@ServerEndpoint("/room/{roomId}")
 @WebListener
 public class VerySimpleRoom implements ServletContextListener {
 
     private final static String USERNAME = "username";
-    private final static String USERID = "userId";
-    private final static String BOOKMARK = "bookmark";
-    private final static String CONTENT = "content";
-    private final static String LOCATION = "location";
-    private final static String TYPE = "type";
-    private final static String NAME = "name";
-    private final static String EXIT = "exit";
-    private final static String EXIT_ID = "exitId";
-    private final static String FULLNAME = "fullName";
-    private final static String DESCRIPTION = "description";
-
-    private Set<String> playersInRoom = Collections.synchronizedSet(new HashSet<String>());
 
+    private static final String ROOM = "room";
+    private static final String LIVENESS = "liveness";
+    private static final String LIMITS = "limits";
+    private static final String BINARY = "binary";
+    private static final String NODE = "node";
+
+    // the room we've always been, and the description every other hosted room starts from.
     private static final String name = "VerySimpleRoom";
     private static final String fullName = "A Very Simple Room.";
     private static final String description = "You are in the worlds most simple room, there is nothing to do here.";
 
-    List<String> directions = Arrays.asList( "n", "s", "e", "w", "u", "d");
+    /**
+     * The ways out of the room, and what each door looks like from the other side.
+     */
+    enum Exit {
+        N("A Large doorway to the south"),
+        S("A winding path leading off to the north"),
+        E("An overgrown road, covered in brambles"),
+        W("A shiny metal door, with a bright red handle"),
+        U("A tunnel, leading down into the earth"),
+        D("A spiral set of stairs, leading upward into the ceiling");
+
+        final String id = name().toLowerCase();
+        final String door;
+
+        Exit(String door) {
+            this.door = door;
+        }
+
+        /**
+         * @return the exit named by the text from the given index (ignoring case and trailing
+         *         space), or null if it doesn't name one
+         */
+        static Exit parse(String text, int from) {
+            int end = text.length();
+            while (end > from && Character.isWhitespace(text.charAt(end - 1))) {
+                end--;
+            }
+            if (end - from != 1) {
+                return null;
+            }
+            switch (text.charAt(from)) {
+                case 'n': case 'N': return N;
+                case 's': case 'S': return S;
+                case 'e': case 'E': return E;
+                case 'w': case 'W': return W;
+                case 'u': case 'U': return U;
+                case 'd': case 'D': return D;
+                default: return null;
+            }
+        }
+    }
+
+    /**
+     * Handles one of the room's commands.
+     */
+    interface CommandHandler {
+        /**
+         * @param args
+         *            Where the command's arguments start in the content
+         */
+        void handle(VerySimpleRoom endpoint, RoomState room, Session session, String userid, String username,
+                String content, int args);
+    }
+
+    /** A command, and what it's counted as in the metrics. */
+    private static final class RoomCommand {
+        final RoomMetrics.Command metric;
+        final CommandHandler handler;
+
+        RoomCommand(RoomMetrics.Command metric, CommandHandler handler) {
+            this.metric = metric;
+            this.handler = handler;
+        }
+    }
+
+    /** Every command players can use, by verb. Add new ones here. */
+    private static final CommandRegistry<RoomCommand> commands = new CommandRegistry<>();
+
+    static {
+        commands.register("look", new RoomCommand(RoomMetrics.Command.LOOK, VerySimpleRoom::look));
+        commands.register("go", new RoomCommand(RoomMetrics.Command.GO, VerySimpleRoom::go));
+        commands.register("history", new RoomCommand(RoomMetrics.Command.HISTORY, VerySimpleRoom::history));
+    }
+
+    private static final File journalDir = new File(RoomConfig.get("room.journal.dir",
+            new File(System.getProperty("java.io.tmpdir"), "simpleroom-journal").getPath()));
+
+    /** Where the rooms are saved, so the next start can pick up where this one left off. */
+    private static final File snapshotFile = new File(RoomConfig.get("room.snapshot.file",
+            new File(journalDir, "rooms.snapshot").getPath()));
+    private static final long snapshotIntervalSeconds = RoomConfig.getInt("room.snapshot.intervalSeconds", 30);
+
+    /**
+     * How long a player whose connection went away without a goodbye (or who was here when the
+     * server stopped) is expected back for. One who comes back in time isn't announced again.
+     */
+    private static final long awayMillis = RoomConfig.getInt("room.snapshot.graceSeconds", 60) * 1000L;
+
+    /** Whether mediators are offered the {@link BinaryProtocol}. */
+    private static final boolean binaryOffered = Boolean.parseBoolean(RoomConfig.get("room.protocol.binary", "true"));
+    /** The ack sent to every new connection, with the protocol versions we speak. */
+    private static final String ACK = binaryOffered ? "ack,{\"version\":[1," + BinaryProtocol.VERSION + "]}"
+            : "ack,{\"version\":[1]}";
+
+    /**
+     * The most messages a returning player is sent from the journal, the latest of what they
+     * missed. Kept under the outbound capacity, so the catch-up isn't dropped from their queue.
+     */
+    private static final int journalReplayMax = Math.max(1, Math.min(
+            RoomConfig.getInt("room.journal.replayMax", 128), RoomConfig.getInt("room.outbound.capacity", 256) / 2));
+
+    /** How many recent messages a new arrival is sent, from the room's history. */
+    private static final int historyOnHello = RoomConfig.getInt("room.history.onHello", 0);
+
+    /** What the last run left behind, read before any room is created. */
+    private static final RoomSnapshot restored = restore();
+    /** Rooms from the snapshot that haven't come back to life yet, by room id. */
+    private static final Map<String, RoomSnapshot.Room> restoredRooms = new ConcurrentHashMap<>(
+            restored == null ? new HashMap<>() : restored.rooms);
+
+    /** Saves the rooms every room.snapshot.intervalSeconds. */
+    private static final ScheduledExecutorService snapshotter = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "room-snapshot");
+        t.setDaemon(true);
+        return t;
+    });
 
-    private static long bookmark = 0;
+    /**
+     * Delivers everything we send, shared by every endpoint instance as the container creates
+     * one of those per connection.
+     */
+    private static final Outbound outbound = new Outbound(
+            RoomConfig.getInt("room.outbound.capacity", 256),
+            RoomConfig.getEnum("room.outbound.overflow", Outbound.OverflowPolicy.DROP_OLDEST),
+            RoomConfig.getInt("room.outbound.coalesceMicros", 0),
+            RoomConfig.getInt("room.outbound.coalesceChars", 16384),
+            RoomConfig.getInt("room.outbound.parallelThreshold", 0),
+            RoomConfig.getInt("room.outbound.parallelism", 0));
+
+    /**
+     * Pings sessions that have gone quiet, and reaps the ones that stop answering, as a
+     * connection can vanish without the container ever telling us it closed.
+     */
+    private static final Heartbeat heartbeat = new Heartbeat(
+            RoomConfig.getInt("room.heartbeat.tickMillis", 1000),
+            RoomConfig.getInt("room.heartbeat.wheelSize", 512),
+            RoomConfig.getInt("room.heartbeat.pingSeconds", 30) * 1000L,
+            RoomConfig.getInt("room.heartbeat.timeoutSeconds", 90) * 1000L,
+            VerySimpleRoom::reap);
+
+    /**
+     * How fast each player, and each mediator connection, may chat, send commands and say hello.
+     * A connection normally carries one player, so its limits default to a few players' worth.
+     */
+    private static final RateLimiter userLimits = new RateLimiter("user", 1);
+    private static final RateLimiter sessionLimits = new RateLimiter("session", 4);
+
+    /**
+     * Once this many messages are waiting to go out across all sessions, chat and hellos (which
+     * are broadcast to the room) are turned away until the queues drain. Commands, which are only
+     * answered to the sender, and goodbyes are still let through.
+     */
+    private static final long admissionMaxQueued = RoomConfig.getInt("room.admission.maxQueued", 100000);
+    private static final LongAdder shed = new LongAdder();
 
-    private final Set<Session> sessions = new CopyOnWriteArraySet<Session>();
+    private static final String SLOW_DOWN = "Whoa, slow down! Try again in a moment.";
+    private static final String BUSY = "The room is very busy right now. Try again in a moment.";
+
+    /**
+     * One node hosting the rooms: its name in the cluster, the bus it shares them with the other
+     * nodes over, and the rooms live on it.
+     *
+     * The app is a single node, built from the config, whose registry is shared by every endpoint
+     * instance, as the container creates one of those per connection. Each node keeps its own
+     * rooms, so more than one can share a JVM (as the tests do, over a {@link LocalBus}) and
+     * still act as separate nodes.
+     */
+    static final class Node {
+        /** This node's name in the cluster. */
+        final String name;
+        /**
+         * Shares the rooms with the other nodes hosting them, or null if this node has them to
+         * itself. Clustered, chat and events for the whole room are published on the bus rather
+         * than sent straight away, and sent by every node (this one included) when the bus
+         * delivers them, in the bus's order and with its bookmarks.
+         */
+        final RoomBus bus;
+        /**
+         * The rooms we host. Each room's state lives on its own event loop, and is only ever read
+         * or changed by tasks run on that loop.
+         */
+        final RoomRegistry rooms;
+        private final File journalDir;
+        private final Map<String, RoomSnapshot.Room> restored;
+
+        /**
+         * @param bus
+         *            the bus to the other nodes, or null if this node isn't clustered
+         * @param journalDir
+         *            where the rooms' journals are kept, or null to keep none
+         * @param restored
+         *            rooms from a snapshot that haven't come back to life yet, taken from as
+         *            they do
+         */
+        Node(String name, RoomBus bus, File journalDir, Map<String, RoomSnapshot.Room> restored) {
+            this.name = name;
+            this.bus = bus;
+            this.journalDir = journalDir;
+            this.restored = restored;
+            this.rooms = new RoomRegistry(
+                    Arrays.asList(RoomConfig.get("room.ids", VerySimpleRoom.name).split("\\s*,\\s*")),
+                    (roomId, floor) -> describe(this, roomId, floor),
+                    this::opened,
+                    RoomConfig.getInt("room.idleTimeoutSeconds", 600) * 1000L,
+                    RoomConfig.getInt("room.maxLiveRooms", 1000),
+                    RoomConfig.getInt("room.maxJournalMegabytes", 1024) * 1024L * 1024L);
+        }
+
+        // a room has come to life here. The other nodes' players arrived while it wasn't, so
+        // ask for them, now that it can be found to tell.
+        private void opened(RoomState room) {
+            if (bus != null) {
+                room.loop.execute(() -> bus.publish(ClusterEvent.sync(name, room.id, room.loop.peekBookmark())));
+            }
+        }
+
+        /**
+         * Start taking deliveries from the bus, if there is one.
+         */
+        Node start() {
+            if (bus != null) {
+                bus.start(new ClusterDelivery(this));
+            }
+            return this;
+        }
+    }
+
+    /** The node the app is, which the container's endpoints all belong to. */
+    private static final Node node = appNode();
+
+    private static Node appNode() {
+        String name = RoomConfig.get("room.cluster.node", ManagementFactory.getRuntimeMXBean().getName());
+        return new Node(name, RoomBus.create(RoomConfig.get("room.cluster.bus", "none"), name), journalDir,
+                restoredRooms);
+    }
+
+    /** Connections currently open, whether or not they have said hello yet. */
+    private static final AtomicInteger openSessions = new AtomicInteger();
+
+    /** What the room has been up to, served at /metrics by {@link MetricsServlet}. */
+    static final RoomMetrics metrics = new RoomMetrics();
+
+    static {
+        metrics.gauge("room_open_sessions", "WebSocket connections currently open.", false, openSessions::get);
+        metrics.gauge("room_players", "Players in all live rooms.", false, () -> {
+            long players = 0;
+            for (RoomState room : node.rooms.live()) {
+                players += room.playerCount;
+            }
+            return players;
+        });
+        metrics.gauge("room_remote_players", "Players in live rooms on other nodes of the cluster.", false, () -> {
+            long players = 0;
+            for (RoomState room : node.rooms.live()) {
+                players += room.remotePlayerCount;
+            }
+            return players;
+        });
+        metrics.gauge("room_live_rooms", "Rooms with live state.", false, () -> node.rooms.live().size());
+        metrics.gauge("room_outbound_sessions", "Sessions with an outbound queue.", false,
+                outbound::sessionCount);
+        metrics.gauge("room_outbound_queue_depth", "Messages waiting to be sent, across all sessions.", false,
+                outbound::queueDepth);
+        metrics.gauge("room_outbound_dropped_total", "Messages discarded because a session's queue was full.", true,
+                outbound::droppedCount);
+        metrics.gauge("room_outbound_failed_total", "Sends that failed, closing the session.", true,
+                outbound::failedCount);
+        metrics.gauge("room_outbound_disconnected_total", "Sessions closed because their queue was full.", true,
+                outbound::disconnectedCount);
+        metrics.gauge("room_outbound_flushes_total", "Coalesced batches of messages flushed to sessions.", true,
+                outbound::flushCount);
+        metrics.gauge("room_outbound_parallel_broadcasts_total", "Broadcasts to big rooms queued in parallel.", true,
+                outbound::parallelBroadcastCount);
+        metrics.gauge("room_heartbeat_pings_total", "Pings sent to sessions that had gone quiet.", true,
+                heartbeat::pingCount);
+        metrics.gauge("room_sessions_reaped_total", "Sessions dropped for not answering pings.", true,
+                heartbeat::reapedCount);
+        metrics.gauge("room_rate_limited_total", "Messages refused because the sender was over a rate limit.", true,
+                () -> userLimits.limitedCount() + sessionLimits.limitedCount());
+        metrics.gauge("room_admission_shed_total", "Messages turned away because the outbound queues were full.", true,
+                shed::sum);
+        metrics.gauge("room_signature_rejected_total", "Requests refused because of a bad gameon signature.", true,
+                SignedRequests::rejectedCount);
+        metrics.gauge("room_log_dropped_total", "Log entries dropped because the log writer couldn't keep up.", true,
+                RoomLog::droppedCount);
+        RoomBus bus = node.bus;
+        if (bus != null) {
+            metrics.gauge("room_cluster_connected", "1 if this node is connected to the rest of the cluster.", false,
+                    () -> bus.isConnected() ? 1 : 0);
+            metrics.gauge("room_cluster_unreachable_total",
+                    "Events this node delivered only to itself, as the cluster couldn't be reached.", true,
+                    bus::unreachableCount);
+            metrics.gauge("room_cluster_dropped_total",
+                    "Events this node dropped, as the cluster hub wasn't keeping up with them.", true,
+                    bus::droppedCount);
+        }
+        node.start();
+    }
 
     ///////////////////////////////////////////////////////////////////////////////////////////////////////////////
     // Room registration
     ///////////////////////////////////////////////////////////////////////////////////////////////////////////////
 
+    // for running against the real remote gameon.
+    //   room.registrationUrl = "https://game-on.org/map/v1/sites";
+    //   room.endpointUrl = "ws://<ip and port of host that gameon can reach>/rooms/room";
+
+    // for when running in a docker container with game-on all running
+    // locally. Each hosted room is registered at endpointUrl/<room id>
+    private static final String registrationUrl = RoomConfig.get("room.registrationUrl", "http://map:9080/map/v1/sites");
+    private static final String endPointUrl = RoomConfig.get("room.endpointUrl", "ws://simpleroom:9080/rooms/room");
+
+    // credentials, obtained from the gameon instance to connect to.
+    private static final String userId = "dummy.DevUser";
+    static final String key = "sfP8wMcjTPyt8I71Gl6o0j+wnMdwxEQ3r0VaybsSn0c=";
+
+    /** The map's site id for each room we know is registered, by room id. */
+    private static final Map<String, String> registeredRooms = new ConcurrentHashMap<>();
+    /** Rooms the map refused to register, which we've given up on. */
+    private static final Set<String> failedRooms = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Runs registration in the background, with up to room.registration.batchSize rooms being
+     * registered at a time, and schedules the retries when the map can't be reached.
+     */
+    private static final ScheduledExecutorService registrar = Executors.newScheduledThreadPool(
+            Math.max(1, RoomConfig.getInt("room.registration.batchSize", 16)), RoomThreads.factory("room-registration"));
+
+    private static final long retryBaseMillis = Math.max(1,
+            RoomConfig.getInt("room.registration.retryBaseMillis", 1000));
+    private static final long retryMaxMillis = Math.max(retryBaseMillis,
+            RoomConfig.getInt("room.registration.retryMaxMillis", 60000));
+
+    /** Trusts everyone, only used for our connections to the map. */
+    private static volatile SSLSocketFactory sslSocketFactory;
+
+    // signing is done for every registration request, so each thread keeps its own Mac (already
+    // initialised with our key) and digest rather than looking them up every time.
+    private static final ThreadLocal<Mac> hmacs = ThreadLocal.withInitial(() -> {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+            return mac;
+        } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+            throw new IllegalStateException("Unable to create HmacSHA256 signer", e);
+        }
+    });
+    private static final ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Unable to create SHA-256 digest", e);
+        }
+    });
+
     /**
      * The gameon-signature method requires a hmac hash, this method calculates it.
-     * @param stuffToHash List of string values to apply to the hmac
-     * @param key The key to init the hmac with
+     * @param stuffToHash List of string values to apply to the hmac, keyed with our key
      * @return The hmac as a base64 encoded string.
-     * @throws NoSuchAlgorithmException if HmacSHA256 is not found
-     * @throws InvalidKeyException Should not be thrown unless there are internal hmac issues.
-     * @throws UnsupportedEncodingException If the keystring or hash string are not UTF-8
      */
-    private String buildHmac(List<String> stuffToHash, String key) throws NoSuchAlgorithmException, InvalidKeyException, UnsupportedEncodingException{
-        Mac mac = Mac.getInstance("HmacSHA256");
-        mac.init(new SecretKeySpec(key.getBytes("UTF-8"), "HmacSHA256"));
-
-        StringBuffer hashData = new StringBuffer();
+    static String buildHmac(List<String> stuffToHash) {
+        Mac mac = hmacs.get();
         for(String s: stuffToHash){
-            hashData.append(s);
+            mac.update(s.getBytes(StandardCharsets.UTF_8));
         }
-
-        return Base64.getEncoder().encodeToString( mac.doFinal(hashData.toString().getBytes("UTF-8")) );
+        // doFinal leaves the mac ready for the next use.
+        return Base64.getEncoder().encodeToString( mac.doFinal() );
     }
 
     /**
      * The gameon-sig-body header requires the sha256 hash of the body content. This method calculates it.
      * @param data The string to hash
      * @return the sha256 hash as a base64 encoded string
-     * @throws NoSuchAlgorithmException If SHA-256 is not found
-     * @throws UnsupportedEncodingException If the String is not UTF-8
      */
-    private String buildHash(String data) throws NoSuchAlgorithmException, UnsupportedEncodingException{
-        MessageDigest md = MessageDigest.getInstance("SHA-256");
-        md.update(data.getBytes("UTF-8"));
-        byte[] digest = md.digest();
+    static String buildHash(String data) {
+        MessageDigest md = digests.get();
+        byte[] digest = md.digest(data.getBytes(StandardCharsets.UTF_8));
         return Base64.getEncoder().encodeToString( digest );
     }
 
@@ -167,422 +517,1089 @@ public class VerySimpleRoom implements ServletContextListener {
     }
 
     /**
-     * Entry point at application start, we use this to test for & perform room registration.
+     * Entry point at application start, we use this to kick off room registration.
+     *
+     * Registration happens in the background, so a slow or unavailable map doesn't hold up (or
+     * fail) startup; until every room is registered, /health reports that we aren't ready.
      */
     @Override
     public final void contextInitialized(final ServletContextEvent e) {
+        TrustManager[] trustManager = new TrustManager[] {new TheVeryTrustingTrustManager()};
 
-        // for running against the real remote gameon.
-        //String registrationUrl = "https://game-on.org/map/v1/sites";
-        //String endPointUrl = "ws://<ip and port of host that gameon can reach>/rooms/simpleRoom
+        // We don't want to worry about importing the game-on cert into
+        // the jvm trust store.. so instead, we'll create an ssl config
+        // that no longer cares, and use it for our own connections to the map.
+        // This is handy for testing, but for production you'd probably
+        // want to goto the effort of setting up a truststore correctly.
+        try {
+            SSLContext sslContext = SSLContext.getInstance("SSL");
+            sslContext.init(null, trustManager, new java.security.SecureRandom());
+            sslSocketFactory = sslContext.getSocketFactory();
+        } catch (NoSuchAlgorithmException ex) {
+            RoomLog.error(RoomLog.Category.REGISTRATION, "Error, unable to get algo SSL", ex);
+        }catch (KeyManagementException ex) {
+            RoomLog.error(RoomLog.Category.REGISTRATION, "Key management exception!! ", ex);
+        }
+
+        // the map already knows about the rooms the last run registered, unless it was asked to
+        // deregister them on the way out (in which case the snapshot won't list any).
+        if (restored != null) {
+            for (String roomId : node.rooms.hosted()) {
+                String siteId = restored.registered.get(roomId);
+                if (siteId != null) {
+                    registeredRooms.put(roomId, siteId);
+                }
+            }
+        }
+        if (registeredRooms.keySet().containsAll(node.rooms.hosted())) {
+            RoomLog.info(RoomLog.Category.REGISTRATION,
+                    "Every room was registered when the server last stopped, there is no need to register them");
+        } else {
+            registrar.execute(() -> retry("Query for registered rooms", this::registerRooms, 0));
+        }
 
-        // for when running in a docker container with game-on all running
-        // locally.
-        String registrationUrl = "http://map:9080/map/v1/sites";
-        String endPointUrl = "ws://simpleroom:9080/rooms/simpleRoom";
+        if (snapshotIntervalSeconds > 0) {
+            snapshotter.scheduleWithFixedDelay(() -> saveSnapshot(false), snapshotIntervalSeconds,
+                    snapshotIntervalSeconds, TimeUnit.SECONDS);
+        }
+    }
 
-        // credentials, obtained from the gameon instance to connect to.
-        String userId = "dummy.DevUser";
-        String key = "sfP8wMcjTPyt8I71Gl6o0j+wnMdwxEQ3r0VaybsSn0c=";
+    // read the snapshot the last run left, if there is one.
+    private static RoomSnapshot restore() {
+        RoomSnapshot snapshot = RoomSnapshot.read(snapshotFile);
+        if (snapshot == null) {
+            return null;
+        }
+        long age = System.currentTimeMillis() - snapshot.takenAt;
+        if (age > RoomConfig.getInt("room.snapshot.maxAgeSeconds", 600) * 1000L) {
+            // the bookmarks and registrations still hold, but nobody is coming back after this long.
+            Map<String, RoomSnapshot.Room> empty = new LinkedHashMap<>();
+            for (RoomSnapshot.Room room : snapshot.rooms.values()) {
+                empty.put(room.id, new RoomSnapshot.Room(room.id, room.nextBookmark, new ArrayList<>()));
+            }
+            snapshot = new RoomSnapshot(snapshot.takenAt, snapshot.registered, empty);
+        }
+        RoomLog.info(RoomLog.Category.ROOMS, "Restored " + snapshot.rooms.size() + " rooms from " + snapshotFile
+                + ", saved " + age + "ms ago");
+        return snapshot;
+    }
 
+    /**
+     * Save the live rooms, and our registrations, for the next start. Each room is captured on
+     * its own loop; a room that can't be captured within a couple of seconds is left as it was
+     * in the last snapshot.
+     *
+     * @param deregistering
+     *            true if our rooms are about to be removed from the map
+     */
+    private static void saveSnapshot(boolean deregistering) {
+        Map<String, RoomSnapshot.Room> saved = new LinkedHashMap<>();
+        // rooms that haven't come back to life since the restart only keep their bookmarks.
+        for (RoomSnapshot.Room room : restoredRooms.values()) {
+            saved.put(room.id, new RoomSnapshot.Room(room.id, room.nextBookmark, new ArrayList<>()));
+        }
+        // and nor do rooms that have been evicted since.
+        for (Map.Entry<String, Long> evicted : node.rooms.evictedBookmarks().entrySet()) {
+            saved.put(evicted.getKey(), new RoomSnapshot.Room(evicted.getKey(), evicted.getValue(), new ArrayList<>()));
+        }
+        List<CompletableFuture<RoomSnapshot.Room>> captures = new ArrayList<>();
+        for (RoomState room : node.rooms.live()) {
+            CompletableFuture<RoomSnapshot.Room> capture = new CompletableFuture<>();
+            room.loop.execute(() -> capture.complete(room.snapshot()));
+            captures.add(capture);
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        for (CompletableFuture<RoomSnapshot.Room> capture : captures) {
+            try {
+                RoomSnapshot.Room room = capture.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                saved.put(room.id, room);
+            } catch (TimeoutException | ExecutionException e) {
+                RoomLog.warn(RoomLog.Category.ROOMS, "A room couldn't be captured for the snapshot in time");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
 
-        // check if we are already registered..
+        Map<String, String> registered = deregistering ? new HashMap<>() : new HashMap<>(registeredRooms);
         try {
-            // build the query request.
-            String queryParams = "name=" + name + "&owner=" + userId;
-
-            TrustManager[] trustManager = new TrustManager[] {new TheVeryTrustingTrustManager()};
+            new RoomSnapshot(System.currentTimeMillis(), registered, saved).write(snapshotFile);
+            RoomLog.debug(RoomLog.Category.ROOMS, "Saved " + saved.size() + " rooms to " + snapshotFile);
+        } catch (IOException e) {
+            RoomLog.warn(RoomLog.Category.ROOMS, "Unable to save the room snapshot to " + snapshotFile, e);
+        }
+    }
 
-            // We don't want to worry about importing the game-on cert into
-            // the jvm trust store.. so instead, we'll create an ssl config
-            // that no longer cares.
-            // This is handy for testing, but for production you'd probably
-            // want to goto the effort of setting up a truststore correctly.
-            SSLContext sslContext = null;
-            try {
-                sslContext = SSLContext.getInstance("SSL");
-                sslContext.init(null, trustManager, new java.security.SecureRandom());
-            } catch (NoSuchAlgorithmException ex) {
-                System.out.println("Error, unable to get algo SSL");
-            }catch (KeyManagementException ex) {
-                System.out.println("Key management exception!! ");
-            }
-
-            HttpsURLConnection.setDefaultSSLSocketFactory(sslContext.getSocketFactory());
-
-            // build the complete query url..
-            System.out.println("Querying room registration using url " + registrationUrl);
-
-            URL u = new URL(registrationUrl + "?" + queryParams );
-            HttpsURLConnection con = (HttpsURLConnection) u.openConnection();
-            con.setHostnameVerifier(new TheNotVerySensibleHostnameVerifier());
-            con.setDoOutput(true);
-            con.setDoInput(true);
-            con.setRequestProperty("Content-Type", "application/json;");
-            con.setRequestProperty("Accept", "application/json,text/plain");
-            con.setRequestProperty("Method", "GET");
-
-            //initiate the request.
-            int httpResult = con.getResponseCode();
-            if (httpResult == HttpURLConnection.HTTP_OK ) {
-                //if the result was 200, then we found a room with this id & owner..
+    /**
+     * Check which of our rooms are already registered, and start registering the rest.
+     *
+     * @return true once the query has been answered
+     */
+    private boolean registerRooms() throws IOException {
+        // one query for everything we own, rather than one per hosted room.
+        Map<String, String> existing = queryRegisteredRooms();
+        registeredRooms.putAll(existing);
+
+        for (String roomId : node.rooms.hosted()) {
+            if (existing.containsKey(roomId)) {
+                //we found a room with this name & owner..
                 //which is either a previous registration by us, or another room with
                 //the same owner & roomname
                 //We won't register our room in this case, although we _could_ choose
-                //do do an update instead.. (we'd need to parse the json response, and
-                //collect the room id, then do a PUT request with our new data.. )
-                System.out.println("We are already registered, there is no need to register this room");
+                //do do an update instead.. (we'd need to do a PUT request with our new data.. )
+                RoomLog.info(RoomLog.Category.REGISTRATION,
+                        "Room " + roomId + " is already registered, there is no need to register it");
             } else {
-                System.out.println("Beginning registration.");
-
-                // build the registration payload (post data)
-                JsonObjectBuilder registrationPayload = Json.createObjectBuilder();
-                // add the basic room info.
-                registrationPayload.add("name", name);
-                registrationPayload.add("fullName", fullName);
-                registrationPayload.add("description", description);
-                
-                // add the doorway descriptions we'd like the game to use if it
-                // wires us to other rooms.
-                // Note: we're describing what the outside of the doors look like..
-                // our north door as seen coming south from another room... 
-                JsonObjectBuilder doors = Json.createObjectBuilder();
-                doors.add("n", "A Large doorway to the south");
-                doors.add("s", "A winding path leading off to the north");
-                doors.add("e", "An overgrown road, covered in brambles");
-                doors.add("w", "A shiny metal door, with a bright red handle");
-                doors.add("u", "A tunnel, leading down into the earth");
-                doors.add("d", "A spiral set of stairs, leading upward into the ceiling");
-                registrationPayload.add("doors", doors.build());
-
-                // add the connection info for the room to connect back to us..
-                JsonObjectBuilder connInfo = Json.createObjectBuilder();
-                connInfo.add("type", "websocket"); // the only current supported
-                                                   // type.
-                connInfo.add("target", endPointUrl);
-                registrationPayload.add("connectionDetails", connInfo.build());
-
-                String registrationPayloadString = registrationPayload.build().toString();
-
-                Instant now = Instant.now();
-                String dateValue = now.toString();
-
-                String bodyHash = buildHash(registrationPayloadString);
-
-                System.out.println("Building hmac with "+userId+dateValue+bodyHash);
-                String hmac = buildHmac(Arrays.asList(new String[] {
-                                           userId,
-                                           dateValue,
-                                           bodyHash
-                                       }),key);
-
-
-                // build the complete registration url..
-                System.out.println("Beginning registration using url " + registrationUrl);
-                u = new URL(registrationUrl);
-                con = (HttpsURLConnection) u.openConnection();
-                con.setHostnameVerifier(new TheNotVerySensibleHostnameVerifier());
-                con.setDoOutput(true);
-                con.setDoInput(true);
-                con.setRequestProperty("Content-Type", "application/json;");
-                con.setRequestProperty("Accept", "application/json,text/plain");
-                con.setRequestProperty("Method", "POST");
+                registrar.execute(() -> retry("Registration of " + roomId, () -> registerRoom(roomId), 0));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Make an attempt at something, and if it doesn't succeed, schedule another go after a
+     * backoff: exponential up to room.registration.retryMaxMillis, with jitter so a fleet of
+     * rooms restarting together doesn't retry in lockstep.
+     *
+     * @param what
+     *            What's being attempted, for the log
+     * @param attempt
+     *            Returns true when there's no need to try again
+     * @param failures
+     *            How many attempts have failed so far
+     */
+    private void retry(String what, Callable<Boolean> attempt, int failures) {
+        boolean done;
+        try {
+            done = attempt.call();
+        } catch (Exception ex) {
+            RoomLog.warn(RoomLog.Category.REGISTRATION, what + " failed", ex);
+            done = false;
+        }
+        if (done || registrar.isShutdown()) {
+            return;
+        }
+        long ceiling = Math.min(retryMaxMillis, retryBaseMillis << Math.min(failures, 20));
+        long delay = ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+        RoomLog.info(RoomLog.Category.REGISTRATION, what + " will be retried in " + delay + "ms");
+        try {
+            registrar.schedule(() -> retry(what, attempt, failures + 1), delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+            // shutting down.
+        }
+    }
+
+    /**
+     * Ask the map for every room registered by this owner.
+     *
+     * @return the site id of each registered room, keyed by room name
+     * @throws IOException if the map can't be reached, or doesn't give us an answer
+     */
+    private Map<String, String> queryRegisteredRooms() throws IOException {
+        Map<String, String> found = new HashMap<>();
+
+        // build the complete query url..
+        RoomLog.info(RoomLog.Category.REGISTRATION, "Querying room registration using url " + registrationUrl);
+
+        URL u = new URL(registrationUrl + "?owner=" + userId);
+        HttpURLConnection con = openConnection(u);
+        con.setDoInput(true);
+        con.setRequestProperty("Content-Type", "application/json;");
+        con.setRequestProperty("Accept", "application/json,text/plain");
+        con.setRequestMethod("GET");
+
+        //initiate the request.
+        int httpResult = con.getResponseCode();
+        if (httpResult != HttpURLConnection.HTTP_OK) {
+            String status = httpResult + " " + con.getResponseMessage();
+            readError(con);
+            throw new IOException("Query for registered rooms gave http code: " + status);
+        }
+        try (JsonReader reader = Json.createReader(new InputStreamReader(con.getInputStream(), "UTF-8"))) {
+            JsonStructure sites = reader.read();
+            if (sites instanceof JsonArray) {
+                for (JsonValue site : (JsonArray) sites) {
+                    addSite(found, site);
+                }
+            } else {
+                addSite(found, sites);
+            }
+        }
+        return found;
+    }
+
+    private static void addSite(Map<String, String> found, JsonValue site) {
+        if (site instanceof JsonObject) {
+            JsonObject info = ((JsonObject) site).getJsonObject("info");
+            String id = ((JsonObject) site).getString("_id", null);
+            if (info != null && id != null) {
+                found.put(info.getString("name", ""), id);
+            }
+        }
+    }
+
+    /**
+     * Register one room with the map.
+     *
+     * @return true if we're done, either because the room is registered or because the map
+     *         refused it in a way that retrying won't fix
+     */
+    private boolean registerRoom(String roomId) throws IOException {
+        // build the registration payload (post data)
+        JsonObjectBuilder registrationPayload = Json.createObjectBuilder();
+        // add the basic room info.
+        registrationPayload.add("name", roomId);
+        registrationPayload.add("fullName", fullName(roomId));
+        registrationPayload.add("description", description);
+
+        // add the doorway descriptions we'd like the game to use if it
+        // wires us to other rooms.
+        // Note: we're describing what the outside of the doors look like..
+        // our north door as seen coming south from another room...
+        JsonObjectBuilder doors = Json.createObjectBuilder();
+        for (Exit exit : Exit.values()) {
+            doors.add(exit.id, exit.door);
+        }
+        registrationPayload.add("doors", doors.build());
+
+        // add the connection info for the room to connect back to us..
+        JsonObjectBuilder connInfo = Json.createObjectBuilder();
+        connInfo.add("type", "websocket"); // the only current supported
+                                           // type.
+        connInfo.add("target", endPointUrl + "/" + roomId);
+        registrationPayload.add("connectionDetails", connInfo.build());
+
+        String registrationPayloadString = registrationPayload.build().toString();
+
+        Instant now = Instant.now();
+        String dateValue = now.toString();
+
+        String bodyHash = buildHash(registrationPayloadString);
+
+        String hmac = buildHmac(Arrays.asList(new String[] {
+                                   userId,
+                                   dateValue,
+                                   bodyHash
+                               }));
+
+        RoomLog.info(RoomLog.Category.REGISTRATION,
+                "Beginning registration of " + roomId + " using url " + registrationUrl);
+
+        HttpURLConnection con = openConnection(new URL(registrationUrl));
+        con.setDoOutput(true);
+        con.setDoInput(true);
+        con.setRequestMethod("POST");
+        con.setRequestProperty("Content-Type", "application/json;");
+        con.setRequestProperty("Accept", "application/json,text/plain");
+        con.setRequestProperty("gameon-id", userId);
+        con.setRequestProperty("gameon-date", dateValue);
+        con.setRequestProperty("gameon-sig-body", bodyHash);
+        con.setRequestProperty("gameon-signature", hmac);
+        try (OutputStream os = con.getOutputStream()) {
+            os.write(registrationPayloadString.getBytes("UTF-8"));
+        }
+
+        int httpResult = con.getResponseCode();
+        if (httpResult == HttpURLConnection.HTTP_OK || httpResult == HttpURLConnection.HTTP_CREATED) {
+            try (JsonReader reader = Json.createReader(new InputStreamReader(con.getInputStream(), "UTF-8"))) {
+                JsonObject response = reader.readObject();
+                RoomLog.log(RoomLog.Level.INFO, RoomLog.Category.REGISTRATION,
+                        "Registration of " + roomId + " reports success.", null, null, -1, response.toString(), null);
+                // remember the id we were given, so we can deregister later.
+                String siteId = response.getString("_id", null);
+                registeredRooms.put(roomId, siteId == null ? "" : siteId);
+                // here we should remember the exits we're told about,
+                // so we can
+                // use them when the user does /go direction
+                // But we're not dealing with exits here (yet)..
+                // user's will have to /sos out of us .. (bad, but ok
+                // for now)
+            }
+            return true;
+        }
+
+        String status = httpResult + " " + con.getResponseMessage();
+        // registration sends payload with info why registration
+        // failed.
+        String response = readError(con);
+        RoomLog.log(RoomLog.Level.WARN, RoomLog.Category.REGISTRATION,
+                "Registration of " + roomId + " gave http code: " + status, null, null, -1, response, null);
+
+        // the map being unavailable or busy is worth waiting out, anything else is down to us.
+        boolean retry = httpResult >= 500 || httpResult == 429 || httpResult == HttpURLConnection.HTTP_CLIENT_TIMEOUT;
+        if (!retry) {
+            failedRooms.add(roomId);
+            RoomLog.warn(RoomLog.Category.REGISTRATION,
+                    "Room Registration FAILED .. room " + roomId + " has NOT been registered");
+        }
+        return !retry;
+    }
+
+    /**
+     * @return true once every hosted room is registered with the map
+     */
+    static boolean isRegistered() {
+        return registeredRooms.keySet().containsAll(node.rooms.hosted());
+    }
+
+    /**
+     * @return the hosted rooms that aren't registered yet, and that we're still trying to register
+     */
+    static Set<String> pendingRegistrations() {
+        Set<String> pending = new TreeSet<>(node.rooms.hosted());
+        pending.removeAll(registeredRooms.keySet());
+        pending.removeAll(failedRooms);
+        return pending;
+    }
+
+    /**
+     * @return the hosted rooms the map refused to register
+     */
+    static Set<String> failedRegistrations() {
+        return new TreeSet<>(failedRooms);
+    }
+
+    /**
+     * @return the state of a room, or null if it isn't live
+     */
+    static RoomState liveRoom(String roomId) {
+        return node.rooms.get(roomId);
+    }
+
+    /**
+     * @return how many connections are open, whether or not they've said hello
+     */
+    static int openSessionCount() {
+        return openSessions.get();
+    }
+
+    /**
+     * @return how many sessions have an outbound queue
+     */
+    static int outboundSessionCount() {
+        return outbound.sessionCount();
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent sce) {
+        registrar.shutdownNow();
+        heartbeat.shutdown();
+        outbound.shutdown();
+        snapshotter.shutdownNow();
+        if (node.bus != null) {
+            node.bus.close();
+        }
+
+        // Rooms stay registered across restarts unless we're asked to remove them.
+        boolean deregister = Boolean.parseBoolean(RoomConfig.get("room.registration.deregisterOnShutdown", "false"));
+        // saved before the rooms are let go, so the next start picks up where we leave off.
+        saveSnapshot(deregister);
+        node.rooms.shutdown(5, TimeUnit.SECONDS);
+        if (deregister) {
+            deregisterRooms();
+        }
+        // the journals were closed on the loops, which have nothing left to do now.
+        RoomEventLoop.shutdown(2, TimeUnit.SECONDS);
+
+        // the log is written in the background, give it the chance to catch up before we go.
+        RoomLog.stop(2, TimeUnit.SECONDS);
+    }
+
+    // remove every room we registered from the map.
+    private void deregisterRooms() {
+        for (Map.Entry<String, String> registered : registeredRooms.entrySet()) {
+            if (registered.getValue().isEmpty()) {
+                continue; // the map never told us its id
+            }
+            try {
+                String dateValue = Instant.now().toString();
+                String hmac = buildHmac(Arrays.asList(new String[] { userId, dateValue }));
+                HttpURLConnection con = openConnection(new URL(registrationUrl + "/" + registered.getValue()));
+                con.setRequestMethod("DELETE");
                 con.setRequestProperty("gameon-id", userId);
                 con.setRequestProperty("gameon-date", dateValue);
-                con.setRequestProperty("gameon-sig-body", bodyHash);
                 con.setRequestProperty("gameon-signature", hmac);
-                OutputStream os = con.getOutputStream();
-
-                os.write(registrationPayloadString.getBytes("UTF-8"));
-                os.close();
-
-                System.out.println("RegistrationPayload :\n "+registrationPayloadString);
-
-                httpResult = con.getResponseCode();
-                if (httpResult == HttpURLConnection.HTTP_OK || httpResult == HttpURLConnection.HTTP_CREATED) {
-                    try (BufferedReader buffer = new BufferedReader(
-                            new InputStreamReader(con.getInputStream(), "UTF-8"))) {
-                        String response = buffer.lines().collect(Collectors.joining("\n"));
-                        System.out.println("Registration reports success.");
-                        System.out.println(response);
-                        // here we should remember the exits we're told about,
-                        // so we can
-                        // use them when the user does /go direction
-                        // But we're not dealing with exits here (yet)..
-                        // user's will have to /sos out of us .. (bad, but ok
-                        // for now)
-                    }
+                int httpResult = con.getResponseCode();
+                if (httpResult < 400) {
+                    readFully(con.getInputStream());
                 } else {
-                    System.out.println(
-                            "Registration gave http code: " + con.getResponseCode() + " " + con.getResponseMessage());
-                    // registration sends payload with info why registration
-                    // failed.
-                    try (BufferedReader buffer = new BufferedReader(
-                            new InputStreamReader(con.getErrorStream(), "UTF-8"))) {
-                        String response = buffer.lines().collect(Collectors.joining("\n"));
-                        System.out.println(response);
-                    }
-                    System.out.println("Room Registration FAILED .. this room has NOT been registered");
+                    readError(con);
                 }
+                RoomLog.info(RoomLog.Category.REGISTRATION,
+                        "Deregistering room " + registered.getKey() + " gave http code: " + httpResult);
+            } catch (Exception ex) {
+                RoomLog.warn(RoomLog.Category.REGISTRATION, "Unable to deregister room " + registered.getKey(), ex);
+            }
+        }
+    }
 
+    // connections to the map are kept alive and reused (the JDK pools them per host), so long as
+    // each response is read to the end and closed rather than disconnected.
+    private HttpURLConnection openConnection(URL u) throws IOException {
+        HttpURLConnection con = (HttpURLConnection) u.openConnection();
+        con.setConnectTimeout(10000);
+        con.setReadTimeout(30000);
+        if (con instanceof HttpsURLConnection) {
+            HttpsURLConnection https = (HttpsURLConnection) con;
+            if (sslSocketFactory != null) {
+                https.setSSLSocketFactory(sslSocketFactory);
             }
-        } catch (Exception ex) {
-            ex.printStackTrace();
-            throw new RuntimeException(ex);
+            https.setHostnameVerifier(new TheNotVerySensibleHostnameVerifier());
         }
+        return con;
     }
 
-    @Override
-    public void contextDestroyed(ServletContextEvent sce) {
-        // Here we could deregister, if we wanted.. we'd need to read the registration/query
-        // response to cache the room id, so we could remove it as we shut down.
+    // read the body of a failed request, so the connection can be reused.
+    private static String readError(HttpURLConnection con) throws IOException {
+        InputStream err = con.getErrorStream();
+        if (err == null) {
+            return "";
+        }
+        try (BufferedReader buffer = new BufferedReader(new InputStreamReader(err, "UTF-8"))) {
+            return buffer.lines().collect(Collectors.joining("\n"));
+        }
+    }
+
+    private static void readFully(InputStream in) throws IOException {
+        try (InputStream i = in) {
+            byte[] skip = new byte[1024];
+            while (i.read(skip) >= 0) {
+                // discard
+            }
+        }
     }
 
-    ///////////////////////////////////////////////////////////////////////////////////////////////////////////////
     // Websocket methods..
     ///////////////////////////////////////////////////////////////////////////////////////////////////////////////
 
+    /** The node this endpoint's connections are to. */
+    private final Node here;
+
+    public VerySimpleRoom() {
+        this(node);
+    }
+
+    /**
+     * An endpoint for another node in this JVM, rather than the one the app is.
+     */
+    VerySimpleRoom(Node here) {
+        this.here = here;
+    }
+
     @OnOpen
-    public void onOpen(Session session, EndpointConfig ec) {
-        System.out.println("A new connection has been made to the room.");
+    public void onOpen(Session session, EndpointConfig ec, @PathParam("roomId") String roomId) {
+        openSessions.incrementAndGet();
+        if (!here.rooms.isHosted(roomId)) {
+            RoomLog.info(RoomLog.Category.CONNECTION, "Refusing a connection for unknown room " + roomId);
+            tryToClose(session, new CloseReason(CloseCodes.CANNOT_ACCEPT, "Unknown room " + trimReason(roomId)));
+            return;
+        }
+        RoomLog.info(RoomLog.Category.CONNECTION, "A new connection has been made to room " + roomId);
+        session.getUserProperties().put(NODE, here);
+        session.getUserProperties().put(LIVENESS, heartbeat.track(session));
+        session.getUserProperties().put(LIMITS, sessionLimits.newBuckets());
 
         //send ack
-        sendRemoteTextMessage(session, "ack,{\"version\":[1]}");
+        sendRemoteTextMessage(session, ACK);
     }
 
     @OnClose
     public void onClose(Session session, CloseReason r) {
-        System.out.println("A connection to the room has been closed");
+        openSessions.decrementAndGet();
+        disconnected(session);
+        RoomLog.info(RoomLog.Category.CONNECTION, "A connection to the room has been closed");
     }
 
     @OnError
     public void onError(Session session, Throwable t) {
-        if(session!=null){
-            sessions.remove(session);
+        RoomLog.warn(RoomLog.Category.CONNECTION, "Websocket connection has broken", t);
+        // this is called for errors on connections that are still open too, so the session isn't
+        // forgotten here: it is closed, and onClose forgets it. If the container never gets that
+        // far, the heartbeat is still watching it and reaps it.
+        if (session != null && session.isOpen()) {
+            CloseReason reason = new CloseReason(CloseCodes.UNEXPECTED_CONDITION, trimReason(String.valueOf(t)));
+            RoomThreads.blocking().execute(() -> tryToClose(session, reason));
+        }
+    }
+
+    @OnMessage
+    public void onPong(PongMessage pong, Session session) {
+        touch(session);
+    }
+
+    @OnMessage
+    public void receiveMessage(String message, Session session, @PathParam("roomId") String roomId) throws IOException {
+        long received = System.nanoTime();
+        touch(session);
+        RoomMessage msg;
+        try {
+            msg = RoomMessage.parse(message);
+        } catch (IllegalArgumentException e) {
+            malformed(e);
+            return;
+        }
+        if (msg == null) {
+            return; // not a message for the room
         }
-        System.out.println("Websocket connection has broken");
-        t.printStackTrace();
+        dispatch(msg, session, roomId, received);
     }
 
     @OnMessage
-    public void receiveMessage(String message, Session session) throws IOException {
-        String[] contents = splitRouting(message);
-
-        // Who doesn't love switch on strings in Java 8?
-        switch(contents[0]) {
-            case "roomHello":
-                sessions.add(session);
-                addNewPlayer(session, contents[2]);
+    public void receiveBinary(ByteBuffer message, Session session, @PathParam("roomId") String roomId) {
+        long received = System.nanoTime();
+        touch(session);
+        if (!binaryOffered) {
+            return; // we never offered it
+        }
+        // the mediator has picked the binary framing, so that's what it gets from now on.
+        if (session.getUserProperties().putIfAbsent(BINARY, Boolean.TRUE) == null) {
+            outbound.useBinary(session);
+        }
+        RoomMessage msg;
+        try {
+            msg = RoomMessage.parse(message);
+        } catch (IllegalArgumentException e) {
+            malformed(e);
+            return;
+        }
+        if (msg == null) {
+            return; // not a message for the room
+        }
+        dispatch(msg, session, roomId, received);
+    }
+
+    // a frame we can't read is dropped, rather than left to the container, which would take the
+    // whole connection (and every player on it) for broken over it.
+    private static void malformed(IllegalArgumentException e) {
+        RoomLog.debug(RoomLog.Category.CONNECTION, "Dropping a malformed message: " + e.getMessage());
+    }
+
+    // act on a message from the mediator, however it was framed.
+    private void dispatch(RoomMessage msg, Session session, String roomId, long received) {
+        // the parsed message is reused by this thread, so take what we need before handing off.
+        String userid = msg.userId;
+        String username = msg.username;
+        if (userid == null) {
+            RoomLog.debug(RoomLog.Category.CONNECTION, "Ignoring a " + msg.routing + " message without a userId");
+            return;
+        }
+
+        switch(msg.routing) {
+            case ROOM_HELLO: {
+                if (!admit(session, roomId, userid, RateLimiter.Category.HELLO, received)) {
+                    return;
+                }
+                // the first hello brings the room to life.
+                RoomState room = here.rooms.open(roomId);
+                if (room == null) {
+                    // only the rooms in room.ids are hosted, so tell them rather than leave them waiting.
+                    sendRemoteTextMessage(session,
+                            OutboundEncoder.notice(userid, "There is no room " + roomId + " here."));
+                    return;
+                }
+                session.getUserProperties().put(ROOM, room);
+                String lastSeen = msg.bookmark;
+                room.loop.execute(() -> {
+                    // the connection may have gone while the hello was on its way here, before
+                    // there was a room for it to be taken out of: then it mustn't be put in one.
+                    if (isDisconnected(session)) {
+                        return;
+                    }
+                    if (!catchUp(room, session, userid, username, lastSeen, received)) {
+                        room.addSession(session);
+                        addNewPlayer(room, session, userid, username, lastSeen == null);
+                        metrics.message(RoomMessage.Routing.ROOM_HELLO, System.nanoTime() - received);
+                    }
+                });
                 break;
-            case "room":
-                processCommand(session, contents[2]);
+            }
+            case ROOM: {
+                RoomState room = here.rooms.get(roomId);
+                if (room == null) {
+                    return; // nobody has said hello
+                }
+                String content = msg.content;
+                RateLimiter.Category category = content.isEmpty() || content.charAt(0) != '/'
+                        ? RateLimiter.Category.CHAT : RateLimiter.Category.COMMAND;
+                if (!admit(session, roomId, userid, category, received)) {
+                    return;
+                }
+                room.loop.execute(() -> {
+                    processCommand(room, session, userid, username, content);
+                    metrics.message(RoomMessage.Routing.ROOM, System.nanoTime() - received);
+                });
                 break;
-            case "roomGoodbye":
-                removePlayer(session, contents[2]);
+            }
+            case ROOM_GOODBYE: {
+                RoomState room = here.rooms.get(roomId);
+                if (room == null) {
+                    return;
+                }
+                room.loop.execute(() -> {
+                    removePlayer(room, session, userid, username);
+                    metrics.message(RoomMessage.Routing.ROOM_GOODBYE, System.nanoTime() - received);
+                });
                 break;
+            }
+        }
+    }
+
+    /**
+     * Decide whether to let a message in: the sender has to be within its rate limits, and chat
+     * and hellos are shed while the outbound queues are full. A refused sender is told about it
+     * once, rather than for every message, so the refusals can't become a flood of their own.
+     *
+     * @return true if the message should be processed
+     */
+    private boolean admit(Session session, String roomId, String userid, RateLimiter.Category category,
+            long now) {
+        RateLimiter.Buckets limits = (RateLimiter.Buckets) session.getUserProperties().get(LIMITS);
+        RateLimiter.Buckets user = userLimits.buckets(userid, now);
+        String refusal = null;
+        if (category != RateLimiter.Category.COMMAND && outbound.queueDepth() > admissionMaxQueued) {
+            shed.increment();
+            refusal = BUSY;
+        } else if (limits != null && !sessionLimits.tryAcquire(limits, category, now)) {
+            refusal = SLOW_DOWN;
+        } else if (!userLimits.tryAcquire(user, category, now)) {
+            // the session mustn't be charged for a message that isn't let through, or one player
+            // over their limit would use up the allowance of everyone else on the connection.
+            if (limits != null) {
+                sessionLimits.refund(limits, category);
+            }
+            refusal = SLOW_DOWN;
+        }
+
+        if (refusal == null) {
+            if (user.warned) {
+                user.warned = false;
+            }
+            return true;
+        }
+        if (!user.warned) {
+            user.warned = true;
+            RoomState room = here.rooms.get(roomId);
+            if (room != null) {
+                String reason = refusal;
+                room.loop.execute(() -> sendMessageToRoom(room, session, null, reason, userid));
+            }
+        }
+        return false;
+    }
+
+    // note that we've heard from the session, so the heartbeat leaves it alone for a while.
+    private static void touch(Session session) {
+        Heartbeat.Entry liveness = (Heartbeat.Entry) session.getUserProperties().get(LIVENESS);
+        if (liveness != null) {
+            liveness.touch();
+        }
+    }
+
+    // forget a session however it went: closed, broken, or reaped. The session's players leave
+    // the room without a goodbye, as they're most likely on their way back on a new connection.
+    private static void disconnected(Session session) {
+        // an error can come before the close, with more sent in between, so the queue goes
+        // every time.
+        outbound.release(session);
+        Heartbeat.Entry liveness = (Heartbeat.Entry) session.getUserProperties().get(LIVENESS);
+        if (liveness != null && !liveness.cancel()) {
+            return; // already taken care of
+        }
+        RoomState room = (RoomState) session.getUserProperties().get(ROOM);
+        if (room != null) {
+            Node home = (Node) session.getUserProperties().get(NODE);
+            room.loop.execute(() -> {
+                if (home.bus != null) {
+                    room.presence.forEachOn(session, userid -> home.bus.publish(
+                            ClusterEvent.leave(home.name, room.id, room.loop.peekBookmark(), userid)));
+                }
+                room.removeSession(session);
+            });
+        }
+    }
+
+    // the liveness is cancelled before a disconnected session's room is looked for, and its room
+    // is set before its hello is queued, so a hello that gets to the room after the session
+    // has gone always sees that here.
+    private static boolean isDisconnected(Session session) {
+        Heartbeat.Entry liveness = (Heartbeat.Entry) session.getUserProperties().get(LIVENESS);
+        return liveness != null && liveness.isCancelled();
+    }
+
+    // a session has stopped answering pings, treat it as gone and make sure it is.
+    private static void reap(Session session) {
+        disconnected(session);
+        try {
+            session.close(new CloseReason(CloseCodes.GOING_AWAY, "No response to ping"));
+        } catch (IOException | RuntimeException e) {
+            // it's gone either way.
         }
     }
 
     ///////////////////////////////////////////////////////////////////////////////////////////////////////////////
-    // Room methods..
+    // Room methods.. these all run on the room's loop.
     ///////////////////////////////////////////////////////////////////////////////////////////////////////////////
 
-    // add a new player to the room
-    private void addNewPlayer(Session session, String json) throws IOException {
+    // create the state for one of a node's rooms, handing out bookmarks from the floor on.
+    private static RoomState describe(Node node, String roomId, long floor) {
+        // only the first time the room comes to life after a restart picks up where it left off.
+        RoomSnapshot.Room last = node.restored.remove(roomId);
+        return new RoomState(roomId, fullName(roomId), description, node.journalDir, last, floor, awayMillis);
+    }
+
+    // what a room is called, in full.
+    private static String fullName(String roomId) {
+        return name.equals(roomId) ? fullName : "A Very Simple Room (" + roomId + ").";
+    }
+
+    // add a new player to the room, sending them the recent history if they haven't been caught
+    // up from the journal already.
+    private void addNewPlayer(RoomState room, Session session, String userid, String username, boolean sendHistory) {
         if (session.getUserProperties().get(USERNAME) != null) {
             return; // already seen this user before on this socket
         }
-        JsonObject msg = Json.createReader(new StringReader(json)).readObject();
-        String username = getValue(msg.get(USERNAME));
-        String userid = getValue(msg.get(USERID));
 
-        if (playersInRoom.add(userid)) {
-            // broadcast that the user has entered the room
-            sendMessageToRoom(session, "Player " + username + " has entered the room", "You have entered the room",
-                    userid);
+        if (room.addPlayer(userid, session)) {
+            // what happened before they got here, taken before their own arrival joins it.
+            List<String> recent = new ArrayList<>();
+            if (sendHistory && historyOnHello > 0) {
+                room.history.replay(historyOnHello, userid, recent::add);
+            }
+
+            if (here.bus != null) {
+                here.bus.publish(ClusterEvent.join(here.name, room.id, room.loop.peekBookmark(), userid));
+            }
+            // broadcast that the user has entered the room, unless they never really left: their
+            // connection dropped, or the server restarted, and nobody was told they'd gone.
+            if (!room.returned(userid)) {
+                sendMessageToRoom(room, session, "Player " + username + " has entered the room",
+                        "You have entered the room", userid);
+            }
 
             // now send the room info
             // this is the required response to a roomHello event, which is the
             // only reason we are in this method.
-            JsonObjectBuilder response = Json.createObjectBuilder();
-            response.add(TYPE, LOCATION);
-            response.add(NAME, name);
-            response.add(FULLNAME, fullName);
-            response.add(DESCRIPTION, description);
-            sendRemoteTextMessage(session, "player," + userid + "," + response.build().toString());
+            sendRemoteTextMessage(session, OutboundEncoder.toPlayer(userid, room.locationJson));
+
+            for (String message : recent) {
+                sendRemoteTextMessage(session, message);
+            }
         }
     }
 
+    // send a returning player whatever they missed since the last bookmark they saw, and then
+    // add them to the room. The journal is read off the loop, as it can take a while, and only
+    // the latest of what they missed is sent so it all fits in their connection's queue; what
+    // was recorded while that was going on is sent back on the loop, before anything newer.
+    // Returns false, having done nothing, if there's no journal or bookmark to catch up from.
+    private boolean catchUp(RoomState room, Session session, String userid, String username, String lastSeen,
+            long received) {
+        if (room.journal == null || lastSeen == null) {
+            return false;
+        }
+        long after;
+        try {
+            after = Long.parseLong(lastSeen);
+        } catch (NumberFormatException e) {
+            return false; // not one of ours
+        }
+        EventJournal.Snapshot snapshot = room.journal.snapshot();
+        RoomThreads.blocking().execute(() -> {
+            List<String> missed = new ArrayList<>();
+            long skippedTo;
+            try {
+                skippedTo = snapshot.replay(after, userid, journalReplayMax, missed::add);
+            } finally {
+                // what it holds is copied out, so the segments can go if the journal is done with them.
+                snapshot.release();
+            }
+            room.loop.execute(() -> {
+                if (isDisconnected(session)) {
+                    return;
+                }
+                room.addSession(session);
+                if (skippedTo >= 0) {
+                    sendRemoteTextMessage(session, OutboundEncoder.event(userid, null,
+                            "Some of what happened while you were away is too old to show.", skippedTo));
+                }
+                for (String message : missed) {
+                    sendRemoteTextMessage(session, message);
+                }
+                room.journal.replaySince(snapshot, userid, m -> sendRemoteTextMessage(session, m));
+                addNewPlayer(room, session, userid, username, false);
+                metrics.message(RoomMessage.Routing.ROOM_HELLO, System.nanoTime() - received);
+            });
+        });
+        return true;
+    }
+
     // remove a player from the room.
-    private void removePlayer(Session session, String json) throws IOException {
-        sessions.remove(session);
-        JsonObject msg = Json.createReader(new StringReader(json)).readObject();
-        String username = getValue(msg.get(USERNAME));
-        String userid = getValue(msg.get(USERID));
-        playersInRoom.remove(userid);
+    private void removePlayer(RoomState room, Session session, String userid, String username) {
+        room.removePlayer(userid);
+        // the session stays in the room for as long as other players are on it.
+        if (room.presence.count(session) == 0) {
+            room.removeSession(session);
+        }
+        if (here.bus != null) {
+            here.bus.publish(ClusterEvent.leave(here.name, room.id, room.loop.peekBookmark(), userid));
+        }
 
         // broadcast that the user has left the room
-        sendMessageToRoom(session, "Player " + username + " has left the room", null, userid);
+        sendMessageToRoom(room, session, "Player " + username + " has left the room", null, userid);
     }
 
     // process a command
-    private void processCommand(Session session, String json) throws IOException {
-        JsonObject msg = Json.createReader(new StringReader(json)).readObject();
-        String userid = getValue(msg.get(USERID));
-        String username = getValue(msg.get(USERNAME));
-        String content = getValue(msg.get(CONTENT)).toString();
-        String lowerContent = content.toLowerCase();
-
-        System.out.println("Command received from the user, " + content);
-
-        // handle look command
-        if (lowerContent.equals("/look")) {
-            // resend the room description when we receive /look
-            JsonObjectBuilder response = Json.createObjectBuilder();
-            response.add(TYPE, LOCATION);
-            response.add(NAME, name);
-            response.add(DESCRIPTION, description);
-
-            sendRemoteTextMessage(session, "player," + userid + "," + response.build().toString());
-            return;
-        }
-
-        if (lowerContent.startsWith("/go")) {
+    void processCommand(RoomState room, Session session, String userid, String username, String content) {
+        long start = System.nanoTime();
 
-            String exitDirection = null;
-            if (lowerContent.length() > 4) {
-                exitDirection = lowerContent.substring(4).toLowerCase();
-            }
+        RoomLog.log(RoomLog.Level.INFO, RoomLog.Category.COMMAND, "Command received from the user", userid,
+                RoomMessage.Routing.ROOM, -1, content, null);
 
-            if ( exitDirection == null || !directions.contains(exitDirection) ) {
-                sendMessageToRoom(session, null, "Hmm. That direction didn't make sense. Try again?", userid);
-            } else {
-                // Trying to go somewhere, eh?
-                JsonObjectBuilder response = Json.createObjectBuilder();
-                response.add(TYPE, EXIT)
-                .add(EXIT_ID, exitDirection)
-                .add(BOOKMARK, bookmark++)
-                .add(CONTENT, "Run Away!");
+        // most of what players send is chat, so that's checked first.
+        if (content.isEmpty() || content.charAt(0) != '/') {
+            sendChatMessage(room, session, content, userid, username);
+            metrics.command(RoomMetrics.Command.CHAT, System.nanoTime() - start);
+            return;
+        }
 
-                sendRemoteTextMessage(session, "playerLocation," + userid + "," + response.build().toString());
-            }
+        RoomCommand command = commands.find(content);
+        if (command == null) {
+            // reject all unknown commands
+            sendMessageToRoom(room, session, null, "Unrecognised command - sorry :-(", userid);
+            metrics.command(RoomMetrics.Command.UNKNOWN, System.nanoTime() - start);
             return;
         }
+        command.handler.handle(this, room, session, userid, username, content, CommandRegistry.argStart(content));
+        metrics.command(command.metric, System.nanoTime() - start);
+    }
+
+    // handle look command
+    private void look(RoomState room, Session session, String userid, String username, String content, int args) {
+        // resend the room description when we receive /look
+        sendRemoteTextMessage(route(room, session, userid), OutboundEncoder.toPlayer(userid, room.lookJson));
+    }
 
-        // reject all unknown commands
-        if (lowerContent.startsWith("/")) {
-            sendMessageToRoom(session, null, "Unrecognised command - sorry :-(", userid);
+    // handle go command
+    private void go(RoomState room, Session session, String userid, String username, String content, int args) {
+        Exit exit = Exit.parse(content, args);
+        if (exit == null) {
+            sendMessageToRoom(room, session, null, "Hmm. That direction didn't make sense. Try again?", userid);
             return;
         }
 
-        // everything else is just chat.
-        sendChatMessage(session, content, userid, username);
-        return;
+        // Trying to go somewhere, eh?
+        sendRemoteTextMessage(route(room, session, userid),
+                OutboundEncoder.exit(userid, exit.id, privateBookmark(room)));
+    }
+
+    // handle history command: /history, or /history n for the last n messages
+    private void history(RoomState room, Session session, String userid, String username, String content, int args) {
+        int count = 10;
+        if (args < content.length()) {
+            try {
+                count = Integer.parseInt(content.substring(args).trim());
+            } catch (NumberFormatException e) {
+                count = 0;
+            }
+            if (count < 1) {
+                sendMessageToRoom(room, session, null, "Hmm. Try /history, or /history with how many messages to see.",
+                        userid);
+                return;
+            }
+        }
+        Session carrier = route(room, session, userid);
+        if (room.history.replay(count, userid, m -> sendRemoteTextMessage(carrier, m)) == 0) {
+            sendMessageToRoom(room, session, null, "Nothing has happened here yet.", userid);
+        }
     }
 
     ///////////////////////////////////////////////////////////////////////////////////////////////////////////////
     // Reply methods..
     ///////////////////////////////////////////////////////////////////////////////////////////////////////////////
 
-    private void sendMessageToRoom(Session session, String messageForRoom, String messageForUser, String userid)
-            throws IOException {
-        JsonObjectBuilder response = Json.createObjectBuilder();
-        response.add(TYPE, "event");
+    void sendMessageToRoom(RoomState room, Session session, String messageForRoom, String messageForUser, String userid) {
+        if(messageForRoom!=null){
+            if (here.bus != null) {
+                here.bus.publish(ClusterEvent.event(here.name, room.id, room.loop.peekBookmark(), userid,
+                        messageForRoom, messageForUser));
+            } else {
+                roomEvent(room, room.loop.nextBookmark(), userid, messageForRoom, messageForUser);
+            }
+            return;
+        }
 
-        JsonObjectBuilder content = Json.createObjectBuilder();
-        if (messageForRoom != null) {
-            content.add("*", messageForRoom);
+        long bookmark = privateBookmark(room);
+        Frame message = Frame.of(OutboundEncoder.event(userid, null, messageForUser, bookmark));
+        if (here.bus == null) {
+            record(room, bookmark, message);
         }
-        if (messageForUser != null) {
-            content.add(userid, messageForUser);
+        outbound.send(route(room, session, userid), message);
+    }
+
+    void sendChatMessage(RoomState room, Session session, String message, String userid, String username) {
+        if (here.bus != null) {
+            here.bus.publish(ClusterEvent.chat(here.name, room.id, room.loop.peekBookmark(), userid, username, message));
+        } else {
+            roomChat(room, room.loop.nextBookmark(), username, message);
         }
+    }
+
+    // send chat to everybody in the room on this node.
+    private static void roomChat(RoomState room, long bookmark, String username, String message) {
+        Frame chat = Frame.of(OutboundEncoder.chat(username, message, bookmark));
+        record(room, bookmark, chat);
+        broadcast(room.sessions, chat);
+    }
 
-        response.add(CONTENT, content.build());
-        response.add(BOOKMARK, bookmark++);
+    // send an event to everybody in the room on this node.
+    private static void roomEvent(RoomState room, long bookmark, String userid, String messageForRoom,
+            String messageForUser) {
+        Frame message = Frame.of(OutboundEncoder.event(userid, messageForRoom, messageForUser, bookmark));
+        record(room, bookmark, message);
+        broadcast(room.sessions, message);
+    }
 
-        if(messageForRoom==null){
-            sendRemoteTextMessage(session, "player," + userid + "," + response.build().toString());
-        }else{
-            broadcast(sessions, "player,*," + response.build().toString());
+    // the bookmark for a message to just one player. Clustered, the bus numbers everything that
+    // goes to the whole room, so one player's messages repeat the latest of those bookmarks
+    // rather than take one of their own, and aren't journalled.
+    private long privateBookmark(RoomState room) {
+        return here.bus == null ? room.loop.nextBookmark() : Math.max(0, room.loop.peekBookmark() - 1);
+    }
+
+    // the session carrying a player, which is the one the message came in on unless they've
+    // since turned up on another (or haven't said hello yet).
+    private static Session route(RoomState room, Session session, String userid) {
+        Session carrier = room.presence.sessionOf(userid);
+        return carrier == null ? session : carrier;
+    }
+
+    // keep what we send in the journal, so it can be replayed to a player that reconnects.
+    private static void record(RoomState room, long bookmark, Frame message) {
+        if (room.journal != null) {
+            room.journal.append(bookmark, message.utf8());
         }
+        room.history.add(message.utf8());
     }
 
-    private void sendChatMessage(Session session, String message, String userid, String username) throws IOException {
-        JsonObjectBuilder response = Json.createObjectBuilder();
-        response.add(TYPE, "chat");
-        response.add(USERNAME, username);
-        response.add(CONTENT, message);
-        response.add(BOOKMARK, bookmark++);
-        broadcast(sessions, "player,*," + response.build().toString());
+    // tell the other nodes about every player in the room here.
+    private static void announcePlayers(Node node, RoomState room) {
+        room.presence.forEach(
+                userid -> node.bus.publish(ClusterEvent.join(node.name, room.id, room.loop.peekBookmark(), userid)));
     }
 
-    ///////////////////////////////////////////////////////////////////////////////////////////////////////////////
-    // Util fns.
-    ///////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    /**
+     * Applies what the bus delivers to the rooms live on a node.
+     */
+    private static final class ClusterDelivery implements RoomBus.Delivery {
+        private final Node node;
 
-    private String[] splitRouting(String message) {
-        ArrayList<String> list = new ArrayList<>();
+        ClusterDelivery(Node node) {
+            this.node = node;
+        }
 
-        int brace = message.indexOf('{');
-        int i = 0;
-        int j = message.indexOf(',');
-        while (j > 0 && j < brace) {
-            list.add(message.substring(i, j));
-            i = j + 1;
-            j = message.indexOf(',', i);
+        @Override
+        public void deliver(ClusterEvent event, long sequence) {
+            RoomState room = node.rooms.get(event.roomId);
+            if (room == null) {
+                return; // nobody here to tell
+            }
+            room.loop.execute(() -> {
+                switch (event.kind) {
+                    case CHAT:
+                        roomChat(room, room.loop.nextBookmark(sequence), event.username, event.text);
+                        break;
+                    case EVENT:
+                        roomEvent(room, room.loop.nextBookmark(sequence), event.userid, event.text, event.forUser);
+                        break;
+                    case JOIN:
+                        if (!node.name.equals(event.origin)) {
+                            room.addRemotePlayer(event.userid, event.origin);
+                        }
+                        break;
+                    case LEAVE:
+                        if (!node.name.equals(event.origin)) {
+                            room.removeRemotePlayer(event.userid, event.origin);
+                        }
+                        break;
+                    case SYNC:
+                        if (!node.name.equals(event.origin)) {
+                            announcePlayers(node, room);
+                        }
+                        break;
+                }
+            });
         }
-        list.add(message.substring(i));
 
-        return list.toArray(new String[] {});
-    }
+        @Override
+        public void connected() {
+            // whoever came and went elsewhere while we were away: forget what we knew, tell the
+            // others who is here, and ask them who is there.
+            for (RoomState room : node.rooms.live()) {
+                room.loop.execute(() -> {
+                    room.clearRemotePlayers();
+                    announcePlayers(node, room);
+                    node.bus.publish(ClusterEvent.sync(node.name, room.id, room.loop.peekBookmark()));
+                });
+            }
+        }
 
-    private static String getValue(JsonValue value) {
-        if (value.getValueType().equals(ValueType.STRING)) {
-            JsonString s = (JsonString) value;
-            return s.getString();
-        } else {
-            return value.toString();
+        @Override
+        public void nodeDown(String down) {
+            for (RoomState room : node.rooms.live()) {
+                room.loop.execute(() -> room.removeNode(down));
+            }
         }
     }
 
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    // Util fns.
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
     /**
      * Simple text based broadcast.
      *
-     * @param session
-     *            Target session (used to find all related sessions)
+     * Messages are queued per session and sent asynchronously, so a slow session does not hold
+     * up delivery to the rest of the room.
+     *
+     * @param sessions
+     *            Sessions to send the message to
      * @param message
      *            Message to send
-     * @see #sendRemoteTextMessage(Session, RoutedMessage)
+     * @see #sendRemoteTextMessage(Session, String)
      */
     public void broadcast(Set<Session> sessions, String message) {
-        for (Session s : sessions) {
-            sendRemoteTextMessage(s, message);
-        }
+        broadcast(sessions, Frame.of(message));
+    }
+
+    /**
+     * Broadcast a frame, sharing it between every session rather than queueing a copy for each.
+     *
+     * @param sessions
+     *            Sessions to send the frame to
+     * @param frame
+     *            Frame to send
+     */
+    static void broadcast(Set<Session> sessions, Frame frame) {
+        long start = System.nanoTime();
+        outbound.broadcast(sessions, frame);
+        metrics.fanout(System.nanoTime() - start);
     }
 
     /**
-     * Try sending the {@link RoutedMessage} using
-     * {@link Session#getBasicRemote()}, {@link Basic#sendObject(Object)}.
+     * Queue a message for the session, to be sent using
+     * {@link Session#getAsyncRemote()}, {@link Async#sendText(String, javax.websocket.SendHandler)}.
+     *
+     * Messages to a session are sent in the order they were queued. If the session can't keep up,
+     * its queue overflows according to the configured {@link Outbound.OverflowPolicy}.
      *
      * @param session
      *            Session to send the message on
      * @param message
      *            Message to send
-     * @return true if send was successful, or false if it failed
+     * @return true if the message was queued, or false if the session is closed
      */
     public boolean sendRemoteTextMessage(Session session, String message) {
-        if (session.isOpen()) {
-            try {
-                session.getBasicRemote().sendText(message);
-                return true;
-            } catch (IOException ioe) {
-                // An IOException, on the other hand, suggests the connection is
-                // in a bad state.
-                System.out.println("Unexpected condition writing message: " + ioe);
-                tryToClose(session, new CloseReason(CloseCodes.UNEXPECTED_CONDITION, trimReason(ioe.toString())));
-            }
-        }
-        return false;
+        return outbound.send(session, message);
     }
 
     /**
@@ -593,7 +1610,7 @@ public class VerySimpleRoom implements ServletContextListener {
      *            String to trim
      * @return a string no longer than 123 characters.
      */
-    private static String trimReason(String message) {
+    static String trimReason(String message) {
         return message.length() > 123 ? message.substring(0, 123) : message;
     }
 
@@ -0,0 +1,111 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ChatHistoryTest {
+
+    @Test
+    public void keepsTheLatestMessagesWhenTheSlotsRunOut() {
+        ChatHistory history = new ChatHistory(4, 1024);
+        for (int i = 1; i <= 6; i++) {
+            history.add(toAll("{\"n\":" + i + "}"));
+        }
+        assertEquals(4, history.size());
+        assertEquals(Arrays.asList("player,u,{\"n\":3}", "player,u,{\"n\":4}", "player,u,{\"n\":5}",
+                "player,u,{\"n\":6}"), replay(history, 10));
+    }
+
+    @Test
+    public void keepsTheLatestMessagesWhenTheBytesRunOut() {
+        // 32 bytes hold three of these ten byte messages, the later ones wrapping around the ring.
+        ChatHistory history = new ChatHistory(64, 32);
+        for (int i = 0; i < 7; i++) {
+            history.add(toAll("message " + i + "!"));
+        }
+        assertEquals(3, history.size());
+        assertEquals(Arrays.asList("player,u,message 4!", "player,u,message 5!", "player,u,message 6!"),
+                replay(history, 10));
+    }
+
+    @Test
+    public void charactersSplitByTheEndOfTheRingComeBackWhole() {
+        // 15 bytes each in a 16 byte ring, so each one starts a byte earlier than the last, and
+        // the second is split in the middle of its first character.
+        String accents = "\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9";
+        ChatHistory history = new ChatHistory(8, 16);
+        for (int i = 0; i < 5; i++) {
+            history.add(toAll(accents + i));
+            assertEquals(1, history.size());
+            assertEquals(Arrays.asList("player,u," + accents + i), replay(history, 10));
+        }
+    }
+
+    @Test
+    public void replaysOnlyAsManyAsAskedFor() {
+        ChatHistory history = new ChatHistory(8, 1024);
+        for (int i = 1; i <= 5; i++) {
+            history.add(toAll("m" + i));
+        }
+        List<String> replayed = new ArrayList<>();
+        assertEquals(2, history.replay(2, "u", replayed::add));
+        assertEquals(Arrays.asList("player,u,m4", "player,u,m5"), replayed);
+        assertEquals(0, history.replay(0, "u", replayed::add));
+    }
+
+    @Test
+    public void ignoresMessagesToOnePlayerAndOnesTooBigToKeep() {
+        ChatHistory history = new ChatHistory(8, 16);
+        history.add(utf8("player,bob,{\"n\":1}"));
+        history.add(toAll("more than sixteen bytes"));
+        assertEquals(0, history.size());
+
+        history.add(toAll("fits"));
+        history.add(toAll("also more than sixteen bytes"));
+        assertEquals(Arrays.asList("player,u,fits"), replay(history, 10));
+    }
+
+    @Test
+    public void keepsNothingWithNoSlots() {
+        ChatHistory history = new ChatHistory(0, 1024);
+        history.add(toAll("hello"));
+        assertEquals(0, history.size());
+        assertEquals(0, replay(history, 10).size());
+    }
+
+    private static List<String> replay(ChatHistory history, int count) {
+        List<String> replayed = new ArrayList<>();
+        history.replay(count, "u", replayed::add);
+        return replayed;
+    }
+
+    private static ByteBuffer toAll(String payload) {
+        return utf8("player,*," + payload);
+    }
+
+    private static ByteBuffer utf8(String message) {
+        return ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8));
+    }
+}
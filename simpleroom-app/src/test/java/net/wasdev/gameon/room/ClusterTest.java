@@ -0,0 +1,157 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Two nodes in the one JVM, each with its own rooms, clustered over a {@link LocalBus}.
+ */
+public class ClusterTest {
+
+    private static final String ROOM = "VerySimpleRoom";
+
+    private final LocalBus.Hub hub = new LocalBus.Hub();
+    private final VerySimpleRoom.Node a = new VerySimpleRoom.Node("a", new LocalBus(hub, "a"), null, new HashMap<>()).start();
+    private final VerySimpleRoom.Node b = new VerySimpleRoom.Node("b", new LocalBus(hub, "b"), null, new HashMap<>()).start();
+    private final List<TestSession> sessions = new ArrayList<>();
+
+    @After
+    public void stop() {
+        for (TestSession session : sessions) {
+            session.close();
+        }
+        for (VerySimpleRoom.Node node : new VerySimpleRoom.Node[] { a, b }) {
+            node.bus.close();
+            node.rooms.shutdown(1, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void eachNodeHasItsOwnRooms() {
+        TestSession onA = connect(a);
+        onA.hello("own-a");
+        await(() -> a.rooms.get(ROOM) != null);
+        await(() -> a.rooms.get(ROOM).playerCount == 1);
+
+        assertEquals(null, b.rooms.get(ROOM));
+    }
+
+    @Test
+    public void nodesAgreeOnOrdering() throws InterruptedException {
+        TestSession onA = connect(a);
+        TestSession onB = connect(b);
+        // a player's chat is limited to a burst of 10, so the chat is spread over a few of them.
+        int players = 4;
+        int each = 8;
+        for (int i = 0; i < players; i++) {
+            onA.hello("order-a" + i);
+            onB.hello("order-b" + i);
+        }
+        await(() -> a.rooms.get(ROOM) != null && a.rooms.get(ROOM).remotePlayerCount == players);
+        await(() -> b.rooms.get(ROOM) != null && b.rooms.get(ROOM).remotePlayerCount == players);
+
+        Thread chatA = chatter(onA, "order-a", players, each);
+        Thread chatB = chatter(onB, "order-b", players, each);
+        chatA.join();
+        chatB.join();
+
+        int total = 2 * players * each;
+        await(() -> chat(onA).size() == total && chat(onB).size() == total);
+
+        List<String> seenOnA = chat(onA);
+        assertEquals(seenOnA, chat(onB));
+        long last = -1;
+        for (String message : seenOnA) {
+            long bookmark = bookmark(message);
+            assertTrue("bookmark " + bookmark + " after " + last, bookmark > last);
+            last = bookmark;
+        }
+    }
+
+    @Test
+    public void aClosedNodeLeavesTheBus() {
+        TestSession onA = connect(a);
+        TestSession onB = connect(b);
+        onA.hello("close-a");
+        onB.hello("close-b");
+        await(() -> b.rooms.get(ROOM) != null && b.rooms.get(ROOM).remotePlayerCount == 1);
+
+        a.bus.close();
+        // b forgets a's players, and a hears nothing more from b.
+        await(() -> b.rooms.get(ROOM).remotePlayerCount == 0);
+        onB.say("close-b", "still there?");
+        await(() -> chat(onB).size() == 1);
+        assertEquals(0, chat(onA).size());
+    }
+
+    private TestSession connect(VerySimpleRoom.Node node) {
+        TestSession session = new TestSession(new VerySimpleRoom(node), ROOM);
+        sessions.add(session);
+        return session;
+    }
+
+    private static Thread chatter(TestSession session, String prefix, int players, int each) {
+        Thread t = new Thread(() -> {
+            for (int n = 0; n < each; n++) {
+                for (int i = 0; i < players; i++) {
+                    session.say(prefix + i, "message " + n);
+                }
+            }
+        });
+        t.start();
+        return t;
+    }
+
+    // the chat a session was sent, in the order it was sent.
+    private static List<String> chat(TestSession session) {
+        List<String> chat = new ArrayList<>();
+        for (String message : session.messages()) {
+            if (message.contains("\"type\":\"chat\"")) {
+                chat.add(message);
+            }
+        }
+        return chat;
+    }
+
+    private static long bookmark(String message) {
+        int at = message.lastIndexOf("\"bookmark\":");
+        return Long.parseLong(message.substring(at + 11, message.length() - 1));
+    }
+
+    private static void await(BooleanSupplier condition) {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            assertTrue("timed out", System.nanoTime() < deadline);
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AssertionError(e);
+            }
+        }
+    }
+}
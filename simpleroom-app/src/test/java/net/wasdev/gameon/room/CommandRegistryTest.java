@@ -0,0 +1,84 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class CommandRegistryTest {
+
+    @Test
+    public void findsVerbsIgnoringCase() {
+        CommandRegistry<String> commands = new CommandRegistry<>();
+        commands.register("go", "go");
+        commands.register("Look", "look");
+        commands.register("EXAMINE", "examine");
+
+        assertEquals("go", commands.find("/go"));
+        assertEquals("go", commands.find("/GO n"));
+        assertEquals("go", commands.find("/gO\tnorth"));
+        assertEquals("look", commands.find("/look"));
+        assertEquals("look", commands.find("/LOOK around"));
+        assertEquals("examine", commands.find("/examine"));
+        assertEquals("examine", commands.find("/eXaMiNe   the thing"));
+    }
+
+    @Test
+    public void onlyFindsWholeVerbs() {
+        CommandRegistry<String> commands = new CommandRegistry<>();
+        commands.register("go", "go");
+
+        assertNull(commands.find("/g"));
+        assertNull(commands.find("/gone"));
+        assertNull(commands.find("/ go"));
+        assertNull(commands.find("/"));
+    }
+
+    @Test
+    public void reregisteringAVerbInAnotherCaseReplacesIt() {
+        CommandRegistry<String> commands = new CommandRegistry<>();
+        commands.register("go", "first");
+        commands.register("GO", "second");
+        assertEquals("second", commands.find("/Go"));
+    }
+
+    @Test
+    public void findsEverythingAfterGrowing() {
+        CommandRegistry<Integer> commands = new CommandRegistry<>();
+        for (int i = 0; i < 100; i++) {
+            commands.register("Verb" + i, i);
+        }
+        for (int i = 0; i < 100; i++) {
+            assertEquals(Integer.valueOf(i), commands.find("/vERB" + i + " with args"));
+        }
+        assertNull(commands.find("/verb100"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesAVerbWithSpaces() {
+        new CommandRegistry<String>().register("go north", "go");
+    }
+
+    @Test
+    public void argumentsStartAfterTheVerbAndItsSpace() {
+        assertEquals(3, CommandRegistry.argStart("/go"));
+        assertEquals(4, CommandRegistry.argStart("/go n"));
+        assertEquals(6, CommandRegistry.argStart("/go \t n"));
+        assertEquals("the thing", "/examine  the thing".substring(CommandRegistry.argStart("/examine  the thing")));
+    }
+}
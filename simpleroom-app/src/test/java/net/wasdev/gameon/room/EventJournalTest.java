@@ -0,0 +1,194 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class EventJournalTest {
+
+    private static final int SEGMENT = 4096;
+
+    private File dir;
+
+    @Before
+    public void createDir() throws IOException {
+        dir = Files.createTempDirectory("journal").toFile();
+    }
+
+    @After
+    public void deleteDir() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void closingUnmapsTheSegments() throws IOException {
+        long before = EventJournal.mappedBytesTotal();
+        EventJournal journal = new EventJournal(dir, SEGMENT, 2);
+        journal.append(0, "player,*,first");
+        assertEquals(before + SEGMENT, EventJournal.mappedBytesTotal());
+
+        journal.close();
+        assertEquals(before, EventJournal.mappedBytesTotal());
+        assertEquals(0, journal.mappedBytes());
+        // and what was written is still there for the next run.
+        assertEquals(1, new EventJournal(dir, SEGMENT, 2).nextBookmark());
+    }
+
+    @Test
+    public void aSnapshotKeepsATrimmedSegmentUntilReleased() throws IOException {
+        long before = EventJournal.mappedBytesTotal();
+        EventJournal journal = new EventJournal(dir, SEGMENT, 1);
+        String message = "player,*," + repeat('x', 1000);
+        journal.append(0, message);
+        File first = dir.listFiles()[0];
+        EventJournal.Snapshot snapshot = journal.snapshot();
+
+        // enough to roll over to a new segment, which trims the first.
+        for (int bookmark = 1; bookmark < 5; bookmark++) {
+            journal.append(bookmark, message);
+        }
+        assertEquals(SEGMENT, journal.mappedBytes());
+        assertTrue("the snapshot is still reading it", first.exists());
+        assertEquals(before + 2 * SEGMENT, EventJournal.mappedBytesTotal());
+
+        List<String> replayed = new ArrayList<>();
+        snapshot.replay(-1, "u", 10, replayed::add);
+        assertEquals(1, replayed.size());
+
+        snapshot.release();
+        assertFalse("unmapped and deleted", first.exists());
+        assertEquals(before + SEGMENT, EventJournal.mappedBytesTotal());
+
+        journal.close();
+        assertEquals(before, EventJournal.mappedBytesTotal());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void aReleasedSnapshotCantBeReplayed() throws IOException {
+        EventJournal journal = new EventJournal(dir, SEGMENT, 2);
+        journal.append(0, "player,*,first");
+        EventJournal.Snapshot snapshot = journal.snapshot();
+        snapshot.release();
+        snapshot.release();
+        journal.close();
+        snapshot.replay(-1, "u", 10, m -> {
+        });
+    }
+
+    @Test
+    public void replaysAcrossSegmentsAndOnlyWhatsLeftAfterTrimming() throws IOException {
+        // four of these to a segment, so twenty fill five and the oldest two are trimmed.
+        EventJournal journal = new EventJournal(dir, SEGMENT, 3);
+        for (int bookmark = 0; bookmark < 20; bookmark++) {
+            journal.append(bookmark, record(bookmark % 3 == 2 ? "v" : bookmark % 3 == 1 ? "u" : "*", bookmark));
+        }
+        assertEquals(3, dir.listFiles().length);
+        assertEquals(3 * SEGMENT, journal.mappedBytes());
+
+        EventJournal.Snapshot snapshot = journal.snapshot();
+        List<String> replayed = new ArrayList<>();
+        assertEquals(-1, snapshot.replay(-1, "u", 100, replayed::add));
+        // everything for u or everyone from bookmark 8 on, in order, and addressed to u.
+        assertEquals(Arrays.asList(9L, 10L, 12L, 13L, 15L, 16L, 18L, 19L), bookmarks(replayed));
+        for (String message : replayed) {
+            assertTrue(message, message.startsWith("player,u,"));
+        }
+
+        replayed.clear();
+        assertEquals(-1, snapshot.replay(12, "u", 100, replayed::add));
+        assertEquals(Arrays.asList(13L, 15L, 16L, 18L, 19L), bookmarks(replayed));
+
+        // only the latest, across the last two segments, and where the rest were left out.
+        replayed.clear();
+        assertEquals(14, snapshot.replay(-1, "u", 4, replayed::add));
+        assertEquals(Arrays.asList(15L, 16L, 18L, 19L), bookmarks(replayed));
+        snapshot.release();
+        journal.close();
+
+        // and the same again once the journal has been recovered from disk.
+        journal = new EventJournal(dir, SEGMENT, 3);
+        assertEquals(20, journal.nextBookmark());
+        snapshot = journal.snapshot();
+        replayed.clear();
+        snapshot.replay(-1, "v", 100, replayed::add);
+        assertEquals(Arrays.asList(8L, 9L, 11L, 12L, 14L, 15L, 17L, 18L), bookmarks(replayed));
+        snapshot.release();
+        journal.close();
+    }
+
+    @Test
+    public void replaysWhatASnapshotMissedAcrossARoll() throws IOException {
+        EventJournal journal = new EventJournal(dir, SEGMENT, 3);
+        for (int bookmark = 0; bookmark < 6; bookmark++) {
+            journal.append(bookmark, record("*", bookmark));
+        }
+        EventJournal.Snapshot snapshot = journal.snapshot();
+        // the rest of the second segment, a third, and the start of a fourth, trimming the first.
+        for (int bookmark = 6; bookmark < 14; bookmark++) {
+            journal.append(bookmark, record(bookmark % 2 == 0 ? "*" : "v", bookmark));
+        }
+
+        List<String> replayed = new ArrayList<>();
+        snapshot.replay(-1, "u", 100, replayed::add);
+        assertEquals(Arrays.asList(0L, 1L, 2L, 3L, 4L, 5L), bookmarks(replayed));
+        replayed.clear();
+        journal.replaySince(snapshot, "u", replayed::add);
+        assertEquals(Arrays.asList(6L, 8L, 10L, 12L), bookmarks(replayed));
+
+        snapshot.release();
+        journal.close();
+    }
+
+    // a message to the target, padded to just under a quarter of a segment.
+    private static String record(String target, long bookmark) {
+        String message = "player," + target + ",{\"bookmark\":" + bookmark + ",\"pad\":\"";
+        return message + repeat('x', 1000 - message.length()) + "\"}";
+    }
+
+    private static List<Long> bookmarks(List<String> messages) {
+        List<Long> bookmarks = new ArrayList<>();
+        for (String message : messages) {
+            int start = message.indexOf("\"bookmark\":") + "\"bookmark\":".length();
+            bookmarks.add(Long.parseLong(message.substring(start, message.indexOf(',', start))));
+        }
+        return bookmarks;
+    }
+
+    private static String repeat(char c, int n) {
+        char[] chars = new char[n];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+}
@@ -0,0 +1,82 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+
+import org.junit.Test;
+
+public class OutboundTest {
+
+    @Test
+    public void noCoalescingMeansNoBatchingAndNoFlusher() {
+        List<String> calls = new ArrayList<>();
+        Outbound outbound = new Outbound(16, Outbound.OverflowPolicy.DISCONNECT, 0, 16384);
+        try {
+            Session session = session(calls);
+            for (int i = 0; i < 100; i++) {
+                outbound.send(session, Frame.of("player,*,{\"n\":" + i + "}"));
+            }
+            assertEquals(100, calls.stream().filter("sendText"::equals).count());
+            assertFalse("batching was asked for: " + calls, calls.contains("setBatchingAllowed"));
+            assertEquals(0, outbound.flushCount());
+            assertFalse("a flusher thread was started", Thread.getAllStackTraces().keySet().stream()
+                    .anyMatch(t -> t.getName().equals("room-outbound-flush")));
+        } finally {
+            outbound.shutdown();
+        }
+    }
+
+    // a session that completes every send straight away, and records what was called on its remote.
+    private static Session session(List<String> calls) {
+        RemoteEndpoint.Async remote = (RemoteEndpoint.Async) Proxy.newProxyInstance(
+                OutboundTest.class.getClassLoader(), new Class<?>[] { RemoteEndpoint.Async.class },
+                (proxy, method, args) -> {
+                    calls.add(method.getName());
+                    if (args != null && args.length == 2 && args[1] instanceof SendHandler) {
+                        ((SendHandler) args[1]).onResult(new SendResult());
+                    }
+                    return method.getReturnType() == boolean.class ? Boolean.FALSE : null;
+                });
+        return (Session) Proxy.newProxyInstance(OutboundTest.class.getClassLoader(), new Class<?>[] { Session.class },
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getAsyncRemote":
+                            return remote;
+                        case "isOpen":
+                            return true;
+                        case "getId":
+                            return "s";
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        default:
+                            return null;
+                    }
+                });
+    }
+}
@@ -0,0 +1,137 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import javax.websocket.Session;
+
+import org.junit.Test;
+
+public class PresenceTest {
+
+    @Test
+    public void leavingKeepsPlayersWhoseProbeWrappedAroundTheTable() {
+        // four players who all hash to the last slot of the (32 slot) table, so all but the
+        // first wrap around to the start of it.
+        List<String> users = collidingAtEnd(4);
+        Session a = session();
+        Session b = session();
+        Presence presence = new Presence();
+        for (String user : users) {
+            assertTrue(presence.join(user, a));
+        }
+
+        assertTrue(presence.leave(users.get(0)));
+        for (String user : users.subList(1, 4)) {
+            assertTrue(user + " was lost", presence.contains(user));
+            assertSame(a, presence.sessionOf(user));
+            assertEquals(user, presence.userOf(presence.handleOf(user)));
+        }
+        assertFalse(presence.contains(users.get(0)));
+
+        // back in, on another session, and out again from the middle of the run.
+        assertTrue(presence.join(users.get(0), b));
+        assertTrue(presence.leave(users.get(2)));
+        assertFalse(presence.contains(users.get(2)));
+        for (String user : new String[] { users.get(0), users.get(1), users.get(3) }) {
+            assertTrue(user + " was lost", presence.contains(user));
+        }
+        assertSame(b, presence.sessionOf(users.get(0)));
+        assertEquals(2, presence.count(a));
+        assertEquals(1, presence.count(b));
+        assertEquals(3, presence.size());
+    }
+
+    @Test
+    public void agreesWithAMapThroughJoinsLeavesAndMoves() {
+        List<String> users = collidingAtEnd(6);
+        for (int i = 0; i < 40; i++) {
+            users.add("user" + i);
+        }
+        Session[] sessions = { session(), session(), session() };
+        Presence presence = new Presence();
+        Map<String, Session> expected = new HashMap<>();
+        Random random = new Random(42);
+
+        for (int op = 0; op < 20000; op++) {
+            String user = users.get(random.nextInt(users.size()));
+            Session session = sessions[random.nextInt(sessions.length)];
+            int what = random.nextInt(20);
+            if (what < 10) {
+                assertEquals(!expected.containsKey(user), presence.join(user, session));
+                expected.put(user, session);
+            } else if (what < 19) {
+                assertEquals(expected.remove(user) != null, presence.leave(user));
+            } else {
+                int before = expected.size();
+                expected.values().removeIf(s -> s == session);
+                assertEquals(before - expected.size(), presence.leaveAll(session));
+            }
+
+            assertEquals(expected.size(), presence.size());
+            for (String u : users) {
+                assertSame(u, expected.get(u), presence.sessionOf(u));
+            }
+            for (Session s : sessions) {
+                List<String> on = new ArrayList<>();
+                presence.forEachOn(s, on::add);
+                assertEquals(expected.values().stream().filter(e -> e == s).count(), presence.count(s));
+                assertEquals(presence.count(s), on.size());
+                for (String u : on) {
+                    assertSame(s, expected.get(u));
+                }
+            }
+        }
+    }
+
+    // userIds whose home is the last slot of a new Presence's table.
+    private static List<String> collidingAtEnd(int n) {
+        List<String> users = new ArrayList<>();
+        for (int i = 0; users.size() < n; i++) {
+            String user = "github:" + i;
+            int h = user.hashCode();
+            if (((h ^ (h >>> 16)) & 31) == 31) {
+                users.add(user);
+            }
+        }
+        return users;
+    }
+
+    private static Session session() {
+        return (Session) Proxy.newProxyInstance(PresenceTest.class.getClassLoader(), new Class<?>[] { Session.class },
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+}
@@ -0,0 +1,112 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+public class RoomMessageTest {
+
+    @Test
+    public void readsTheFieldsTheRoomUses() {
+        RoomMessage msg = RoomMessage.parse(
+                "roomHello,VerySimpleRoom,{\"username\":\"bob\",\"userId\":\"github:1234\",\"version\":1,\"bookmark\":42}");
+        assertEquals(RoomMessage.Routing.ROOM_HELLO, msg.routing);
+        assertEquals("bob", msg.username);
+        assertEquals("github:1234", msg.userId);
+        // anything that isn't a string comes back as its json text.
+        assertEquals("42", msg.bookmark);
+        assertNull(msg.content);
+    }
+
+    @Test
+    public void unescapesStrings() {
+        RoomMessage msg = RoomMessage.parse("room,VerySimpleRoom,{\"userId\":\"u\",\"content\":"
+                + "\"say \\\"hi\\\" \\\\ a\\/b\\n\\tc\\r\\b\\f \\u00e9\\u20AC\"}");
+        assertEquals("say \"hi\" \\ a/b\n\tc\r\b\f \u00e9\u20ac", msg.content);
+    }
+
+    @Test
+    public void findsKeysThatAreEscaped() {
+        RoomMessage msg = RoomMessage.parse("room,VerySimpleRoom,{\"user\\u0049d\":\"u\",\"con\\u0074ent\":\"hi\"}");
+        assertEquals("u", msg.userId);
+        assertEquals("hi", msg.content);
+    }
+
+    @Test
+    public void skipsFieldsItDoesntUse() {
+        RoomMessage msg = RoomMessage.parse("room,VerySimpleRoom,{ \"extra\" : {\"a\":[1,\"}]\\\"\",{\"b\":null}]},"
+                + "\"flag\":true,\"n\":-1.5e3,\n\"userId\":\"u\",\t\"content\":\"/go n\" }");
+        assertEquals("u", msg.userId);
+        assertEquals("/go n", msg.content);
+    }
+
+    @Test
+    public void aRoomMessageWithoutContentHasAnEmptyOne() {
+        assertEquals("", RoomMessage.parse("room,VerySimpleRoom,{\"userId\":\"u\"}").content);
+        assertEquals("", RoomMessage.parse("room,VerySimpleRoom,{}").content);
+    }
+
+    @Test
+    public void doesntCarryFieldsOverFromTheLastMessage() {
+        RoomMessage.parse("room,VerySimpleRoom,{\"userId\":\"u\",\"username\":\"bob\",\"content\":\"hi\"}");
+        RoomMessage msg = RoomMessage.parse("roomGoodbye,VerySimpleRoom,{\"userId\":\"v\"}");
+        assertEquals(RoomMessage.Routing.ROOM_GOODBYE, msg.routing);
+        assertEquals("v", msg.userId);
+        assertNull(msg.username);
+        assertNull(msg.content);
+    }
+
+    @Test
+    public void ignoresRoutingItDoesntHandle() {
+        assertNull(RoomMessage.parse("ack,{\"version\":[1]}"));
+        assertNull(RoomMessage.parse("roomhello,VerySimpleRoom,{}"));
+        assertNull(RoomMessage.parse("rooms,VerySimpleRoom,{}"));
+        assertNull(RoomMessage.parse("no routing at all"));
+    }
+
+    @Test
+    public void refusesMalformedPayloads() {
+        String[] payloads = {
+            "",
+            "{",
+            "{\"userId\"",
+            "{\"userId\":",
+            "{\"userId\":\"u\"",
+            "{\"userId\":\"u\" \"content\":\"hi\"}",
+            "{\"userId\" \"u\"}",
+            "{userId:\"u\"}",
+            "{\"userId\":\"unterminated}",
+            "{\"content\":\"\\x\"}",
+            "{\"content\":\"\\u12\"}",
+            "{\"content\":\"\\u12G4\"}",
+            "{\"content\":\"ends in an escape\\",
+            "{\"userId\":,\"content\":\"hi\"}",
+            "{\"extra\":[1,2,\"u\":\"v\"}",
+        };
+        for (String payload : payloads) {
+            try {
+                RoomMessage.parse("room,VerySimpleRoom," + payload);
+                fail("Parsed " + payload);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class RoomRegistryTest {
+
+    // rooms without a journal, evicted as soon as the sweeper (every second) sees them idle.
+    private final RoomRegistry rooms = new RoomRegistry(Arrays.asList("r"),
+            (id, floor) -> new RoomState(id, id, id, null, null, floor, 0), room -> {
+            }, 0, 10, Long.MAX_VALUE);
+
+    @After
+    public void stop() {
+        rooms.shutdown(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void bookmarksCarryOnAfterEviction() throws Exception {
+        RoomState first = rooms.open("r");
+        CompletableFuture<Long> handedOut = new CompletableFuture<>();
+        first.loop.execute(() -> {
+            for (int i = 0; i < 5; i++) {
+                first.loop.nextBookmark();
+            }
+            handedOut.complete(first.loop.peekBookmark());
+        });
+        assertEquals(5L, (long) handedOut.get(1, TimeUnit.SECONDS));
+        first.lastActive = 0;
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        // the bookmark is kept once the room has finished closing.
+        while (!rooms.evictedBookmarks().containsKey("r")) {
+            assertTrue("room wasn't evicted", System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+        assertEquals(Long.valueOf(5), rooms.evictedBookmarks().get("r"));
+
+        RoomState second = rooms.open("r");
+        assertNotSame(first, second);
+        CompletableFuture<Long> next = new CompletableFuture<>();
+        second.loop.execute(() -> next.complete(second.loop.nextBookmark()));
+        assertEquals(5L, (long) next.get(1, TimeUnit.SECONDS));
+        assertTrue(rooms.evictedBookmarks().isEmpty());
+    }
+
+    @Test
+    public void onlyHostedRoomsOpen() {
+        assertEquals(null, rooms.open("elsewhere"));
+    }
+}
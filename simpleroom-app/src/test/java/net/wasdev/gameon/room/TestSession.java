@@ -0,0 +1,299 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.websocket.CloseReason;
+import javax.websocket.Extension;
+import javax.websocket.MessageHandler;
+import javax.websocket.MessageHandler.Partial;
+import javax.websocket.MessageHandler.Whole;
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+import javax.websocket.WebSocketContainer;
+
+/**
+ * An in-memory mediator connection for the tests, which drives its own endpoint the way the
+ * container would and keeps everything the room sends it. Sends complete straight away, on the
+ * calling thread.
+ */
+final class TestSession implements Session {
+
+    private static final SendResult OK = new SendResult();
+
+    private final String roomId;
+    private final VerySimpleRoom endpoint;
+    private final Map<String, Object> userProperties = new ConcurrentHashMap<>();
+    private final AtomicBoolean open = new AtomicBoolean(true);
+    private final List<String> received = new ArrayList<>();
+
+    private final RemoteEndpoint.Async async = new RemoteEndpoint.Async() {
+        @Override
+        public void sendText(String text, SendHandler handler) {
+            receive(text);
+            handler.onResult(OK);
+        }
+
+        @Override
+        public void sendBinary(ByteBuffer data, SendHandler handler) {
+            receive(StandardCharsets.UTF_8.decode(data).toString());
+            handler.onResult(OK);
+        }
+
+        @Override
+        public Future<Void> sendText(String text) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Future<Void> sendBinary(ByteBuffer data) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Future<Void> sendObject(Object data) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void sendObject(Object data, SendHandler handler) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long getSendTimeout() {
+            return 0;
+        }
+
+        @Override
+        public void setSendTimeout(long timeoutmillis) {
+        }
+
+        @Override
+        public void setBatchingAllowed(boolean allowed) {
+        }
+
+        @Override
+        public boolean getBatchingAllowed() {
+            return false;
+        }
+
+        @Override
+        public void flushBatch() {
+        }
+
+        @Override
+        public void sendPing(ByteBuffer applicationData) {
+        }
+
+        @Override
+        public void sendPong(ByteBuffer applicationData) {
+        }
+    };
+
+    TestSession(VerySimpleRoom endpoint, String roomId) {
+        this.endpoint = endpoint;
+        this.roomId = roomId;
+        endpoint.onOpen(this, null, roomId);
+    }
+
+    void hello(String userid) {
+        send("roomHello," + roomId + ",{\"username\":\"" + userid + "\",\"userId\":\"" + userid + "\",\"version\":1}");
+    }
+
+    void say(String userid, String content) {
+        send("room," + roomId + ",{\"username\":\"" + userid + "\",\"userId\":\"" + userid + "\",\"content\":\""
+                + content + "\"}");
+    }
+
+    void send(String message) {
+        try {
+            endpoint.receiveMessage(message, this, roomId);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void receive(String text) {
+        synchronized (received) {
+            received.add(text);
+        }
+    }
+
+    /**
+     * @return the messages received so far
+     */
+    List<String> messages() {
+        synchronized (received) {
+            return new ArrayList<>(received);
+        }
+    }
+
+    @Override
+    public RemoteEndpoint.Async getAsyncRemote() {
+        return async;
+    }
+
+    @Override
+    public RemoteEndpoint.Basic getBasicRemote() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open.get();
+    }
+
+    @Override
+    public String getId() {
+        return "test-" + System.identityHashCode(this);
+    }
+
+    @Override
+    public Map<String, Object> getUserProperties() {
+        return userProperties;
+    }
+
+    @Override
+    public void close() {
+        close(new CloseReason(CloseReason.CloseCodes.NORMAL_CLOSURE, null));
+    }
+
+    @Override
+    public void close(CloseReason closeReason) {
+        if (open.compareAndSet(true, false)) {
+            endpoint.onClose(this, closeReason);
+        }
+    }
+
+    @Override
+    public WebSocketContainer getContainer() {
+        return null;
+    }
+
+    @Override
+    public void addMessageHandler(MessageHandler handler) {
+    }
+
+    @Override
+    public <T> void addMessageHandler(Class<T> clazz, Whole<T> handler) {
+    }
+
+    @Override
+    public <T> void addMessageHandler(Class<T> clazz, Partial<T> handler) {
+    }
+
+    @Override
+    public Set<MessageHandler> getMessageHandlers() {
+        return Collections.emptySet();
+    }
+
+    @Override
+    public void removeMessageHandler(MessageHandler handler) {
+    }
+
+    @Override
+    public String getProtocolVersion() {
+        return "13";
+    }
+
+    @Override
+    public String getNegotiatedSubprotocol() {
+        return null;
+    }
+
+    @Override
+    public List<Extension> getNegotiatedExtensions() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public boolean isSecure() {
+        return false;
+    }
+
+    @Override
+    public long getMaxIdleTimeout() {
+        return 0;
+    }
+
+    @Override
+    public void setMaxIdleTimeout(long milliseconds) {
+    }
+
+    @Override
+    public void setMaxBinaryMessageBufferSize(int length) {
+    }
+
+    @Override
+    public int getMaxBinaryMessageBufferSize() {
+        return 0;
+    }
+
+    @Override
+    public void setMaxTextMessageBufferSize(int length) {
+    }
+
+    @Override
+    public int getMaxTextMessageBufferSize() {
+        return 0;
+    }
+
+    @Override
+    public URI getRequestURI() {
+        return null;
+    }
+
+    @Override
+    public Map<String, List<String>> getRequestParameterMap() {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public String getQueryString() {
+        return null;
+    }
+
+    @Override
+    public Map<String, String> getPathParameters() {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public Principal getUserPrincipal() {
+        return null;
+    }
+
+    @Override
+    public Set<Session> getOpenSessions() {
+        return Collections.emptySet();
+    }
+}
@@ -0,0 +1,99 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.websocket.Session;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Fan-out of one chat message to every session in a room, through the outbound queues: one
+ * frame shared by every session, against a frame queued per session.
+ *
+ * Text sessions are handed the message as a String, which the container encodes and frames
+ * again for each of them; the pretend sessions here don't, so that cost (the same on either
+ * path) is left out. Binary sessions are handed the frame's shared binary form, built once per
+ * broadcast, which is where encoding once saves work per recipient.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BroadcastBenchmark {
+
+    @Param({ "1", "10", "100", "1000" })
+    int sessions;
+
+    final String message = "player,*,{\"type\":\"chat\",\"username\":\"bob\",\"content\":\"Hello everyone, how is it going?\",\"bookmark\":1234}";
+
+    Outbound outbound;
+    List<Session> text;
+    List<Session> binary;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        outbound = new Outbound(256, Outbound.OverflowPolicy.DROP_OLDEST);
+        text = new ArrayList<>();
+        binary = new ArrayList<>();
+        for (int i = 0; i < sessions; i++) {
+            text.add(new FakeSession("t" + i));
+            Session b = new FakeSession("b" + i);
+            outbound.useBinary(b);
+            binary.add(b);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        outbound.shutdown();
+    }
+
+    @Benchmark
+    public void broadcast() {
+        outbound.broadcast(text, Frame.of(message));
+    }
+
+    @Benchmark
+    public void perRecipient() {
+        for (Session s : text) {
+            outbound.send(s, message);
+        }
+    }
+
+    @Benchmark
+    public void broadcastBinary() {
+        outbound.broadcast(binary, Frame.of(message));
+    }
+
+    @Benchmark
+    public void perRecipientBinary() {
+        for (Session s : binary) {
+            outbound.send(s, message);
+        }
+    }
+}
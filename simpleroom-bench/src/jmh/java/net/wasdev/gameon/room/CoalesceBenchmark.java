@@ -0,0 +1,94 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.websocket.Session;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Outbound delivery with and without coalescing, to sessions whose every write to the socket
+ * costs something. {@code broadcast} sends a chat message to a room of 100 sessions, scored in
+ * messages handed to sessions per second; {@code latency} is how long a single message takes to
+ * be written out, sampled, so the report includes its p99.
+ */
+@State(Scope.Thread)
+public class CoalesceBenchmark {
+
+    @Param({ "0", "100" })
+    int coalesceMicros;
+
+    static final int SESSIONS = 100;
+
+    /** Blackhole tokens burnt per write to a session's socket. */
+    @Param({ "500" })
+    long writeCost;
+
+    final String message = "player,*,{\"type\":\"chat\",\"username\":\"bob\",\"content\":\"Hello everyone, how is it going?\",\"bookmark\":1234}";
+
+    Outbound outbound;
+    List<Session> room;
+    FakeSession last;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        outbound = new Outbound(1 << 16, Outbound.OverflowPolicy.DROP_OLDEST, coalesceMicros, 16384);
+        room = new ArrayList<>();
+        for (int i = 0; i < SESSIONS; i++) {
+            room.add(new FakeSession("s" + i, writeCost));
+        }
+        last = (FakeSession) room.get(SESSIONS - 1);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        outbound.shutdown();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(SESSIONS)
+    public void broadcast() {
+        outbound.broadcast(room, Frame.of(message));
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public long latency() {
+        long target = last.delivered + 1;
+        outbound.send(last, message);
+        while (last.delivered < target) {
+            Thread.yield();
+        }
+        return target;
+    }
+}
@@ -0,0 +1,75 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Finding the handler for a command, with a handful of commands registered and with dozens.
+ * {@link #ifChain} is the lowercase-then-startsWith chain processCommand used to have, kept as a
+ * baseline: its cost grows with every command added, the registry's shouldn't.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DispatchBenchmark {
+
+    @Param({ "2", "64" })
+    int commands;
+
+    CommandRegistry<String> registry;
+    String[] verbs;
+
+    String command = "/Go n";
+
+    @Setup
+    public void setup() {
+        registry = new CommandRegistry<>();
+        verbs = new String[commands];
+        for (int i = 0; i < commands - 1; i++) {
+            verbs[i] = "/verb" + i;
+            registry.register("verb" + i, verbs[i]);
+        }
+        // the command we look for is the last one registered, the worst case for the chain.
+        verbs[commands - 1] = "/go";
+        registry.register("go", "/go");
+    }
+
+    @Benchmark
+    public String registry() {
+        return registry.find(command);
+    }
+
+    @Benchmark
+    public String ifChain() {
+        String lowerContent = command.toLowerCase();
+        for (String verb : verbs) {
+            if (lowerContent.startsWith(verb)) {
+                return verb;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,301 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.security.Principal;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+
+import javax.websocket.CloseReason;
+import javax.websocket.Extension;
+import javax.websocket.MessageHandler;
+import javax.websocket.MessageHandler.Partial;
+import javax.websocket.MessageHandler.Whole;
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+import javax.websocket.WebSocketContainer;
+
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * An in-memory {@link Session} for the benchmarks. Sends complete immediately, on the calling
+ * thread, and only count what went past, so a benchmark measures the room rather than a socket.
+ *
+ * One made with a write cost also stands in for the socket: each write burns that many
+ * {@link Blackhole#consumeCPU(long)} tokens, and it supports batching, where messages are only
+ * written (all together) when the batch is flushed.
+ */
+final class FakeSession implements Session {
+
+    private static final SendResult OK = new SendResult();
+
+    private final String id;
+    private final Map<String, Object> userProperties = new ConcurrentHashMap<>();
+    private volatile boolean open = true;
+
+    private final long writeCost;
+    private boolean batching;
+    private long batched;
+
+    long messages;
+    long chars;
+    /** Writes to the pretend socket. */
+    long writes;
+    /** Messages that have been written. */
+    volatile long delivered;
+
+    private final RemoteEndpoint.Async async = new RemoteEndpoint.Async() {
+        @Override
+        public void sendText(String text, SendHandler handler) {
+            messages++;
+            chars += text.length();
+            if (batching) {
+                batched++;
+            } else {
+                write(1);
+            }
+            handler.onResult(OK);
+        }
+
+        @Override
+        public void sendBinary(ByteBuffer data, SendHandler handler) {
+            messages++;
+            chars += data.remaining();
+            handler.onResult(OK);
+        }
+
+        @Override
+        public Future<Void> sendText(String text) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Future<Void> sendBinary(ByteBuffer data) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Future<Void> sendObject(Object data) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void sendObject(Object data, SendHandler handler) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long getSendTimeout() {
+            return 0;
+        }
+
+        @Override
+        public void setSendTimeout(long timeoutmillis) {
+        }
+
+        @Override
+        public void setBatchingAllowed(boolean allowed) {
+            if (writeCost > 0) {
+                batching = allowed;
+            }
+        }
+
+        @Override
+        public boolean getBatchingAllowed() {
+            return batching;
+        }
+
+        @Override
+        public void flushBatch() {
+            if (batched > 0) {
+                write(batched);
+                batched = 0;
+            }
+        }
+
+        @Override
+        public void sendPing(ByteBuffer applicationData) {
+        }
+
+        @Override
+        public void sendPong(ByteBuffer applicationData) {
+        }
+    };
+
+    FakeSession(String id) {
+        this(id, 0);
+    }
+
+    FakeSession(String id, long writeCost) {
+        this.id = id;
+        this.writeCost = writeCost;
+    }
+
+    private void write(long count) {
+        if (writeCost > 0) {
+            Blackhole.consumeCPU(writeCost);
+        }
+        writes++;
+        delivered += count;
+    }
+
+    @Override
+    public RemoteEndpoint.Async getAsyncRemote() {
+        return async;
+    }
+
+    @Override
+    public RemoteEndpoint.Basic getBasicRemote() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public String getId() {
+        return id;
+    }
+
+    @Override
+    public Map<String, Object> getUserProperties() {
+        return userProperties;
+    }
+
+    @Override
+    public void close() throws IOException {
+        open = false;
+    }
+
+    @Override
+    public void close(CloseReason closeReason) throws IOException {
+        open = false;
+    }
+
+    @Override
+    public WebSocketContainer getContainer() {
+        return null;
+    }
+
+    @Override
+    public void addMessageHandler(MessageHandler handler) {
+    }
+
+    @Override
+    public <T> void addMessageHandler(Class<T> clazz, Whole<T> handler) {
+    }
+
+    @Override
+    public <T> void addMessageHandler(Class<T> clazz, Partial<T> handler) {
+    }
+
+    @Override
+    public Set<MessageHandler> getMessageHandlers() {
+        return Collections.emptySet();
+    }
+
+    @Override
+    public void removeMessageHandler(MessageHandler handler) {
+    }
+
+    @Override
+    public String getProtocolVersion() {
+        return "13";
+    }
+
+    @Override
+    public String getNegotiatedSubprotocol() {
+        return null;
+    }
+
+    @Override
+    public List<Extension> getNegotiatedExtensions() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public boolean isSecure() {
+        return false;
+    }
+
+    @Override
+    public long getMaxIdleTimeout() {
+        return 0;
+    }
+
+    @Override
+    public void setMaxIdleTimeout(long milliseconds) {
+    }
+
+    @Override
+    public void setMaxBinaryMessageBufferSize(int length) {
+    }
+
+    @Override
+    public int getMaxBinaryMessageBufferSize() {
+        return 0;
+    }
+
+    @Override
+    public void setMaxTextMessageBufferSize(int length) {
+    }
+
+    @Override
+    public int getMaxTextMessageBufferSize() {
+        return 0;
+    }
+
+    @Override
+    public URI getRequestURI() {
+        return null;
+    }
+
+    @Override
+    public Map<String, List<String>> getRequestParameterMap() {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public String getQueryString() {
+        return null;
+    }
+
+    @Override
+    public Map<String, String> getPathParameters() {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public Principal getUserPrincipal() {
+        return null;
+    }
+
+    @Override
+    public Set<Session> getOpenSessions() {
+        return Collections.emptySet();
+    }
+}
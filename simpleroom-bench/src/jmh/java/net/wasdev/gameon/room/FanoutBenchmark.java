@@ -0,0 +1,82 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.websocket.Session;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Time to last recipient for a broadcast to a big room, queued in a loop on the broadcasting
+ * thread ({@code parallel=false}) against split up on the outbound's fork/join pool. The pretend
+ * sessions write as soon as they are handed a message, so the broadcast returns once the last
+ * one has been written to.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FanoutBenchmark {
+
+    /** Threads splitting the broadcast, whatever the machine has. */
+    static final int THREADS = 4;
+
+    @Param({ "false", "true" })
+    boolean parallel;
+
+    @Param({ "500", "2000", "5000" })
+    int sessions;
+
+    /** Blackhole tokens burnt per write to a session's socket. */
+    @Param({ "0", "200" })
+    long writeCost;
+
+    final String message = "player,*,{\"type\":\"chat\",\"username\":\"bob\",\"content\":\"Hello everyone, how is it going?\",\"bookmark\":1234}";
+
+    Outbound outbound;
+    List<Session> room;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        outbound = new Outbound(256, Outbound.OverflowPolicy.DROP_OLDEST, 0, 0, parallel ? 1 : 0, THREADS);
+        room = new ArrayList<>();
+        for (int i = 0; i < sessions; i++) {
+            room.add(new FakeSession("s" + i, writeCost));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        outbound.shutdown();
+    }
+
+    @Benchmark
+    public void broadcast() {
+        outbound.broadcast(room, Frame.of(message));
+    }
+}
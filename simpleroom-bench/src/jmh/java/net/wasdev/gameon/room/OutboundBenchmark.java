@@ -0,0 +1,97 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Building (and journalling) the room's outbound events and chat, for a room with one
+ * session in it, so the cost is dominated by the message rather than the fan-out.
+ *
+ * The benchmark thread stands in for the room loop, which is fine as it is the only one
+ * touching the room.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class OutboundBenchmark {
+
+    VerySimpleRoom endpoint;
+    RoomState room;
+    FakeSession session;
+    File journalDir;
+
+    @Setup
+    public void setup() throws Exception {
+        journalDir = Files.createTempDirectory("bench-journal").toFile();
+        endpoint = new VerySimpleRoom();
+        room = new RoomState("BenchRoom", "A Bench Room.", "Somewhere to measure things.", journalDir);
+        session = new FakeSession("s0");
+        room.addSession(session);
+    }
+
+    @TearDown
+    public void tearDown() {
+        room.journal.close();
+        deleteAll(journalDir);
+    }
+
+    @Benchmark
+    public long chat() {
+        endpoint.sendChatMessage(room, session, "Hello everyone, how is it going?", "github:1234", "bob");
+        return session.messages;
+    }
+
+    @Benchmark
+    public long eventToRoom() {
+        endpoint.sendMessageToRoom(room, session, "Player bob has entered the room", "You have entered the room",
+                "github:1234");
+        return session.messages;
+    }
+
+    @Benchmark
+    public long eventToUser() {
+        endpoint.sendMessageToRoom(room, session, null, "Unrecognised command - sorry :-(", "github:1234");
+        return session.messages;
+    }
+
+    @Benchmark
+    public long look() {
+        endpoint.processCommand(room, session, "github:1234", "bob", "/look");
+        return session.messages;
+    }
+
+    static void deleteAll(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) {
+                deleteAll(c);
+            }
+        }
+        f.delete();
+    }
+}
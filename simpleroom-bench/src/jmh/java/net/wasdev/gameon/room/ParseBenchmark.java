@@ -0,0 +1,114 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Inbound parsing: routing prefix plus the fields the room reads, for the common message types.
+ * {@link #jsonReaderChat} is the full JsonObject tree the room used to build, kept as a baseline,
+ * and the binary ones are the same messages in the {@link BinaryProtocol}'s framing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ParseBenchmark {
+
+    String chat = "room,VerySimpleRoom,{\"username\":\"bob\",\"userId\":\"github:1234\",\"content\":\"Hello everyone, how is it going?\"}";
+    String look = "room,VerySimpleRoom,{\"username\":\"bob\",\"userId\":\"github:1234\",\"content\":\"/look\"}";
+    String hello = "roomHello,VerySimpleRoom,{\"username\":\"bob\",\"userId\":\"github:1234\",\"version\":1,\"bookmark\":\"1234\"}";
+    String escaped = "room,VerySimpleRoom,{\"username\":\"bob\",\"userId\":\"github:1234\",\"content\":\"she said \\\"hi\\\" \\u00e9\"}";
+
+    ByteBuffer binaryChat = binary(BinaryProtocol.ROOM, "github:1234", "bob", "Hello everyone, how is it going?", null);
+    ByteBuffer binaryHello = binary(BinaryProtocol.ROOM_HELLO, "github:1234", "bob", null, "1234");
+
+    @Benchmark
+    public void chat(Blackhole bh) {
+        RoomMessage msg = RoomMessage.parse(chat);
+        bh.consume(msg.content);
+    }
+
+    @Benchmark
+    public void command(Blackhole bh) {
+        RoomMessage msg = RoomMessage.parse(look);
+        bh.consume(msg.content);
+    }
+
+    @Benchmark
+    public void hello(Blackhole bh) {
+        RoomMessage msg = RoomMessage.parse(hello);
+        bh.consume(msg.userId);
+    }
+
+    @Benchmark
+    public void escapedChat(Blackhole bh) {
+        RoomMessage msg = RoomMessage.parse(escaped);
+        bh.consume(msg.content);
+    }
+
+    @Benchmark
+    public void binaryChat(Blackhole bh) {
+        RoomMessage msg = RoomMessage.parse(binaryChat);
+        bh.consume(msg.content);
+    }
+
+    @Benchmark
+    public void binaryHello(Blackhole bh) {
+        RoomMessage msg = RoomMessage.parse(binaryHello);
+        bh.consume(msg.userId);
+    }
+
+    @Benchmark
+    public void jsonReaderChat(Blackhole bh) {
+        String json = chat.substring(chat.indexOf('{'));
+        JsonObject msg = Json.createReader(new StringReader(json)).readObject();
+        bh.consume(msg.getString("content"));
+    }
+
+    private static ByteBuffer binary(byte routing, String userId, String username, String content, String bookmark) {
+        ByteBuffer out = ByteBuffer.allocate(256);
+        out.put(routing);
+        field(out, BinaryProtocol.USER_ID, userId);
+        field(out, BinaryProtocol.USERNAME, username);
+        field(out, BinaryProtocol.CONTENT, content);
+        field(out, BinaryProtocol.BOOKMARK, bookmark);
+        out.flip();
+        return out;
+    }
+
+    private static void field(ByteBuffer out, byte tag, String value) {
+        if (value != null) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.put(tag);
+            BinaryProtocol.writeVarint(out, bytes.length);
+            out.put(bytes);
+        }
+    }
+}
@@ -0,0 +1,245 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room.loadgen;
+
+import java.net.URI;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.websocket.ClientEndpointConfig;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.glassfish.tyrus.client.ClientManager;
+import org.glassfish.tyrus.server.Server;
+
+import net.wasdev.gameon.room.VerySimpleRoom;
+
+/**
+ * Load generator for the room.
+ *
+ * Starts {@link VerySimpleRoom} in an embedded WebSocket container on localhost (or points at a
+ * room that is already running, with --url), connects a number of simulated mediators, and
+ * drives them through a series of rate steps. Each step reports the rate that was achieved and
+ * the latency percentiles for chat (to the sender's own copy, and to every copy), /look and /go.
+ * The run stops at the first step the room can't sustain: where it falls short of the target
+ * rate, or its chat p99 goes over the SLO. The last step it did sustain is its saturation point.
+ *
+ * Options, all --name=value:
+ * <pre>
+ *   url          room to load, default: start one here
+ *   port         port for the embedded room, default 9085
+ *   room         room id, default VerySimpleRoom
+ *   connections  simulated mediators, default 10
+ *   players      players per mediator, default 5
+ *   rate         messages per second across all mediators, comma separated for a ramp, default 1000
+ *   duration     seconds per step, default 10
+ *   warmup       seconds of warmup at the first rate, default 5
+ *   mix          chat,look,go,churn weights, default 80,10,5,5
+ *   slo          chat p99 in milliseconds a step has to meet, default 100
+ *   rateLimits   true to keep the embedded room's per-user and per-session rate limits, default false
+ *   coalesceMicros  the embedded room's outbound coalescing window, default 0 (off)
+ *   threads      platform or virtual (Java 21 or later) threads for the embedded room, default platform
+ *   binary       true for mediators that use the room's binary framing, default false
+ * </pre>
+ */
+public class LoadGenerator {
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+                System.out.println("Ignoring argument " + arg + ", expected --name=value");
+                continue;
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+
+        String roomId = options.getOrDefault("room", "VerySimpleRoom");
+        int connections = Integer.parseInt(options.getOrDefault("connections", "10"));
+        int players = Integer.parseInt(options.getOrDefault("players", "5"));
+        int duration = Integer.parseInt(options.getOrDefault("duration", "10"));
+        int warmup = Integer.parseInt(options.getOrDefault("warmup", "5"));
+        double slo = Double.parseDouble(options.getOrDefault("slo", "100"));
+        String[] rates = options.getOrDefault("rate", "1000").split(",");
+        boolean binary = options.getOrDefault("binary", "false").equals("true");
+        String[] weights = options.getOrDefault("mix", "80,10,5,5").split(",");
+        int[] mix = new int[4];
+        for (int i = 0; i < mix.length && i < weights.length; i++) {
+            mix[i] = Integer.parseInt(weights[i].trim());
+        }
+
+        Server server = null;
+        URI target;
+        if (options.containsKey("url")) {
+            target = URI.create(options.get("url"));
+        } else {
+            int port = Integer.parseInt(options.getOrDefault("port", "9085"));
+            // keep the room's journal away from anything real.
+            System.setProperty("room.ids", roomId);
+            System.setProperty("room.journal.dir", Files.createTempDirectory("loadgen-journal").toString());
+            // we're here to find the room's limits, not its rate limits, unless they're asked for.
+            if (!options.getOrDefault("rateLimits", "false").equals("true")) {
+                for (String scope : new String[] { "user", "session" }) {
+                    for (String category : new String[] { "chat", "command", "hello" }) {
+                        System.setProperty("room.limit." + scope + "." + category + ".perMinute", "0");
+                    }
+                }
+            }
+            System.setProperty("room.outbound.coalesceMicros", options.getOrDefault("coalesceMicros", "0"));
+            String threads = options.getOrDefault("threads", "platform");
+            // the room falls back to platform threads on older JVMs, quietly as far as a
+            // benchmark is concerned, so don't let a virtual thread run measure the wrong thing.
+            if ("virtual".equalsIgnoreCase(threads) && !hasVirtualThreads()) {
+                throw new IllegalArgumentException("--threads=virtual needs Java 21 or later, this is "
+                        + System.getProperty("java.version"));
+            }
+            System.setProperty("room.threads", threads);
+            System.out.println("Embedded room threads: " + threads + ", Java " + System.getProperty("java.version"));
+            server = new Server("localhost", port, "/rooms", null, VerySimpleRoom.class);
+            server.start();
+            target = URI.create("ws://localhost:" + port + "/rooms/room/" + roomId);
+        }
+
+        try {
+            SimulatedMediator.Stats stats = new SimulatedMediator.Stats();
+            List<SimulatedMediator> mediators = new ArrayList<>();
+            ClientManager client = ClientManager.createClient();
+            for (int i = 0; i < connections; i++) {
+                SimulatedMediator mediator = new SimulatedMediator(i, roomId, players, stats, mix, binary);
+                client.connectToServer(mediator, ClientEndpointConfig.Builder.create().build(), target);
+                if (!mediator.join(10, TimeUnit.SECONDS)) {
+                    throw new IllegalStateException("Mediator " + i + " was never acknowledged by " + target);
+                }
+                mediators.add(mediator);
+            }
+            System.out.println("Connected " + connections + " mediators with " + players + " players each to " + target);
+
+            if (warmup > 0) {
+                runStep(mediators, stats, Double.parseDouble(rates[0]), warmup);
+                System.out.println("Warmed up for " + warmup + "s");
+            }
+
+            System.out.println(String.format("%10s %10s %10s %10s | %-34s | %-34s | %-22s | %-22s | %s",
+                    "target/s", "sent/s", "done/s", "recv/s",
+                    "chat p50/p99/p99.9/max (ms)", "fanout p50/p99/p99.9/max (ms)", "look p50/p99 (ms)", "go p50/p99 (ms)",
+                    "bytes/msg out/in"));
+            double sustained = 0;
+            for (String r : rates) {
+                double rate = Double.parseDouble(r.trim());
+                Step step = runStep(mediators, stats, rate, duration);
+                System.out.println(String.format("%10.0f %10.0f %10.0f %10.0f | %-34s | %-34s | %-22s | %-22s | %.0f/%.0f",
+                        rate, step.sent, step.completed, step.received,
+                        percentiles(step.chat, true), percentiles(step.fanout, true),
+                        percentiles(step.look, false), percentiles(step.go, false),
+                        step.bytesOut, step.bytesIn));
+                double chatP99 = step.chat.getValueAtPercentile(99) / 1000.0;
+                if (step.sent < rate * 0.95 || chatP99 > slo) {
+                    System.out.println("Saturated at a target of " + rate + " msgs/s (chat p99 " + chatP99 + "ms)");
+                    break;
+                }
+                sustained = rate;
+            }
+            System.out.println("Highest sustained rate: " + (sustained > 0 ? sustained + " msgs/s" : "none of the steps"));
+
+            for (SimulatedMediator mediator : mediators) {
+                mediator.close();
+            }
+        } finally {
+            if (server != null) {
+                server.stop();
+            }
+        }
+        System.exit(0);
+    }
+
+    private static Step runStep(List<SimulatedMediator> mediators, SimulatedMediator.Stats stats, double rate,
+            int seconds) throws InterruptedException {
+        // reset everything, so the step only sees its own traffic.
+        stats.sent.reset();
+        stats.received.reset();
+        stats.completed.reset();
+        stats.bytesSent.reset();
+        stats.bytesReceived.reset();
+        for (Recorder r : new Recorder[] { stats.chat, stats.fanout, stats.look, stats.go }) {
+            r.reset();
+        }
+
+        long start = System.nanoTime();
+        for (SimulatedMediator m : mediators) {
+            m.start(rate / mediators.size());
+        }
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+        for (SimulatedMediator m : mediators) {
+            m.stop();
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        // give replies still in flight a moment to arrive.
+        Thread.sleep(500);
+
+        Step step = new Step();
+        step.sent = stats.sent.sum() / elapsed;
+        step.received = stats.received.sum() / elapsed;
+        step.completed = stats.completed.sum() / elapsed;
+        step.bytesOut = (double) stats.bytesSent.sum() / Math.max(1, stats.sent.sum());
+        step.bytesIn = (double) stats.bytesReceived.sum() / Math.max(1, stats.received.sum());
+        step.chat = stats.chat.getIntervalHistogram();
+        step.fanout = stats.fanout.getIntervalHistogram();
+        step.look = stats.look.getIntervalHistogram();
+        step.go = stats.go.getIntervalHistogram();
+        return step;
+    }
+
+    private static String percentiles(Histogram h, boolean tail) {
+        if (h.getTotalCount() == 0) {
+            return "-";
+        }
+        if (!tail) {
+            return String.format("%.2f/%.2f", h.getValueAtPercentile(50) / 1000.0, h.getValueAtPercentile(99) / 1000.0);
+        }
+        return String.format("%.2f/%.2f/%.2f/%.2f", h.getValueAtPercentile(50) / 1000.0,
+                h.getValueAtPercentile(99) / 1000.0, h.getValueAtPercentile(99.9) / 1000.0, h.getMaxValue() / 1000.0);
+    }
+
+    private static boolean hasVirtualThreads() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * What one rate step achieved. Rates are per second, latencies in microseconds.
+     */
+    private static final class Step {
+        double sent;
+        double received;
+        double completed;
+        /** Average bytes per message, sent and received. */
+        double bytesOut;
+        double bytesIn;
+        Histogram chat;
+        Histogram fanout;
+        Histogram look;
+        Histogram go;
+    }
+}
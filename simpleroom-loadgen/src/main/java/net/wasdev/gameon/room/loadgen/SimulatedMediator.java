@@ -0,0 +1,327 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room.loadgen;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.websocket.CloseReason;
+import javax.websocket.Endpoint;
+import javax.websocket.EndpointConfig;
+import javax.websocket.MessageHandler;
+import javax.websocket.Session;
+
+import org.HdrHistogram.Recorder;
+
+/**
+ * One mediator connection to the room, carrying a handful of players.
+ *
+ * While a step is running it sends a mix of chat, /look, /go and hello/goodbye churn at a fixed
+ * rate. Sends are paced against an intended schedule, and latency is measured from the intended
+ * send time rather than the actual one, so a room that stalls the sender is still charged for
+ * the messages that should have gone out while it was stalled.
+ *
+ * Chat carries its intended send time in its content, so every receiver can time it. Replies to
+ * /look and /go come back to this connection in the order the commands were sent, so they are
+ * matched against a queue of send times.
+ *
+ * A binary mediator sends the room's binary framing (version 2 of the protocol) rather than
+ * text, which switches the room to sending it binary in return.
+ */
+final class SimulatedMediator extends Endpoint implements MessageHandler.Whole<String> {
+
+    private static final String CHAT_MARK = "lg:";
+
+    private final int id;
+    private final String roomId;
+    private final List<String> players = new ArrayList<>();
+    private final Stats stats;
+    private final int[] mix;
+    private final boolean binary;
+
+    private final CountDownLatch ready = new CountDownLatch(1);
+    private final Queue<Long> pendingLooks = new ConcurrentLinkedQueue<>();
+    private final Queue<Long> pendingGoes = new ConcurrentLinkedQueue<>();
+
+    private volatile Session session;
+    private volatile Thread sender;
+    private volatile boolean running;
+
+    /**
+     * @param mix
+     *            Relative weights of chat, /look, /go and churn
+     */
+    SimulatedMediator(int id, String roomId, int playerCount, Stats stats, int[] mix, boolean binary) {
+        this.id = id;
+        this.roomId = roomId;
+        this.stats = stats;
+        this.mix = mix;
+        this.binary = binary;
+        for (int i = 0; i < playerCount; i++) {
+            players.add("loadgen:" + id + "-" + i);
+        }
+    }
+
+    @Override
+    public void onOpen(Session session, EndpointConfig config) {
+        this.session = session;
+        session.addMessageHandler(this);
+        session.addMessageHandler(ByteBuffer.class, this::onBinary);
+    }
+
+    @Override
+    public void onClose(Session session, CloseReason closeReason) {
+        running = false;
+    }
+
+    @Override
+    public void onError(Session session, Throwable t) {
+        System.out.println("Mediator " + id + " failed: " + t);
+    }
+
+    /**
+     * Wait for the room's ack, then bring all our players into the room.
+     */
+    boolean join(long timeout, TimeUnit unit) throws InterruptedException, IOException {
+        if (!ready.await(timeout, unit)) {
+            return false;
+        }
+        for (String player : players) {
+            send(hello(player));
+        }
+        return true;
+    }
+
+    /**
+     * Start sending at the given rate, in messages per second.
+     */
+    void start(double rate) {
+        running = true;
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        sender = new Thread(() -> sendLoop(interval), "mediator-" + id);
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    void stop() throws InterruptedException {
+        running = false;
+        Thread t = sender;
+        if (t != null) {
+            t.join();
+        }
+        // replies still on the way at the end of a step would be matched against the next one.
+        pendingLooks.clear();
+        pendingGoes.clear();
+    }
+
+    void close() throws IOException {
+        for (String player : players) {
+            send(goodbye(player));
+        }
+        session.close();
+    }
+
+    private void sendLoop(long interval) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int total = mix[0] + mix[1] + mix[2] + mix[3];
+        long next = System.nanoTime();
+        try {
+            while (running) {
+                long now = System.nanoTime();
+                if (now < next) {
+                    LockSupport.parkNanos(next - now);
+                    continue;
+                }
+                String player = players.get(random.nextInt(players.size()));
+                int pick = random.nextInt(total);
+                if ((pick -= mix[0]) < 0) {
+                    send(command(player, CHAT_MARK + id + ":" + next));
+                } else if ((pick -= mix[1]) < 0) {
+                    pendingLooks.add(next);
+                    send(command(player, "/look"));
+                } else if ((pick -= mix[2]) < 0) {
+                    pendingGoes.add(next);
+                    send(command(player, "/go n"));
+                } else {
+                    send(goodbye(player));
+                    send(hello(player));
+                }
+                next += interval;
+            }
+        } catch (IOException e) {
+            System.out.println("Mediator " + id + " stopped sending: " + e);
+        }
+    }
+
+    private void send(String message) throws IOException {
+        if (binary) {
+            ByteBuffer encoded = encode(message);
+            stats.bytesSent.add(encoded.remaining());
+            session.getBasicRemote().sendBinary(encoded);
+        } else {
+            stats.bytesSent.add(message.getBytes(StandardCharsets.UTF_8).length);
+            session.getBasicRemote().sendText(message);
+        }
+        stats.sent.increment();
+    }
+
+    @Override
+    public void onMessage(String message) {
+        stats.bytesReceived.add(message.getBytes(StandardCharsets.UTF_8).length);
+        received(message);
+    }
+
+    // turn the room's binary message back into text, which is all we need to time it.
+    private void onBinary(ByteBuffer message) {
+        stats.bytesReceived.add(message.remaining());
+        byte kind = message.get();
+        byte[] target = new byte[readVarint(message)];
+        message.get(target);
+        readVarint(message); // the bookmark
+        byte[] payload = new byte[message.remaining()];
+        message.get(payload);
+        received((kind == 2 ? "playerLocation," : "player,") + new String(target, StandardCharsets.UTF_8) + ","
+                + new String(payload, StandardCharsets.UTF_8));
+    }
+
+    private void received(String message) {
+        long now = System.nanoTime();
+        stats.received.increment();
+        if (message.startsWith("ack,")) {
+            ready.countDown();
+        } else if (message.startsWith("player,*,")) {
+            if (message.contains("\"type\":\"chat\"")) {
+                int mark = message.indexOf(CHAT_MARK);
+                if (mark > 0) {
+                    int colon = message.indexOf(':', mark + CHAT_MARK.length());
+                    int end = message.indexOf('"', colon);
+                    int origin = Integer.parseInt(message.substring(mark + CHAT_MARK.length(), colon));
+                    long sent = Long.parseLong(message.substring(colon + 1, end));
+                    stats.fanout.recordValue(micros(now - sent));
+                    if (origin == id) {
+                        stats.chat.recordValue(micros(now - sent));
+                        stats.completed.increment();
+                    }
+                }
+            }
+        } else if (message.startsWith("playerLocation,")) {
+            record(pendingGoes, stats.go, now);
+        } else if (message.startsWith("player,") && message.contains("\"type\":\"location\"")
+                && !message.contains("\"fullName\"")) {
+            // the location sent after a hello carries the full name, the reply to /look doesn't.
+            record(pendingLooks, stats.look, now);
+        }
+    }
+
+    private void record(Queue<Long> pending, Recorder recorder, long now) {
+        Long sent = pending.poll();
+        if (sent != null) {
+            recorder.recordValue(micros(now - sent));
+            stats.completed.increment();
+        }
+    }
+
+    // the text message in the binary framing: routing, then each of its fields, tagged.
+    private static ByteBuffer encode(String message) {
+        byte routing = message.startsWith("roomHello,") ? (byte) 1 : message.startsWith("room,") ? (byte) 2 : (byte) 3;
+        ByteBuffer out = ByteBuffer.allocate(message.length() * 3);
+        out.put(routing);
+        String json = message.substring(message.indexOf('{'));
+        field(out, 1, value(json, "userId"));
+        field(out, 2, value(json, "username"));
+        field(out, 3, value(json, "content"));
+        out.flip();
+        return out;
+    }
+
+    // our own messages never have escapes or nested objects, so this is all the parsing needed.
+    private static String value(String json, String key) {
+        int at = json.indexOf("\"" + key + "\":\"");
+        if (at < 0) {
+            return null;
+        }
+        int start = at + key.length() + 4;
+        return json.substring(start, json.indexOf('"', start));
+    }
+
+    private static void field(ByteBuffer out, int tag, String value) {
+        if (value == null) {
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.put((byte) tag);
+        int length = bytes.length;
+        while ((length & ~0x7f) != 0) {
+            out.put((byte) ((length & 0x7f) | 0x80));
+            length >>>= 7;
+        }
+        out.put((byte) length);
+        out.put(bytes);
+    }
+
+    private static int readVarint(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0;; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    private static long micros(long nanos) {
+        return Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    private String hello(String player) {
+        return "roomHello," + roomId + ",{\"username\":\"" + player + "\",\"userId\":\"" + player + "\",\"version\":1}";
+    }
+
+    private String goodbye(String player) {
+        return "roomGoodbye," + roomId + ",{\"username\":\"" + player + "\",\"userId\":\"" + player + "\"}";
+    }
+
+    private String command(String player, String content) {
+        return "room," + roomId + ",{\"username\":\"" + player + "\",\"userId\":\"" + player + "\",\"content\":\""
+                + content + "\"}";
+    }
+
+    /**
+     * What the mediators measured, shared by all of them.
+     */
+    static final class Stats {
+        final Recorder chat = new Recorder(3);
+        final Recorder fanout = new Recorder(3);
+        final Recorder look = new Recorder(3);
+        final Recorder go = new Recorder(3);
+        final LongAdder sent = new LongAdder();
+        final LongAdder received = new LongAdder();
+        final LongAdder completed = new LongAdder();
+        final LongAdder bytesSent = new LongAdder();
+        final LongAdder bytesReceived = new LongAdder();
+    }
+}
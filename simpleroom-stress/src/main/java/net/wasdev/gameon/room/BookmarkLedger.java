@@ -0,0 +1,94 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Every bookmark the stress tests have seen, with the message it came on, shared by all of
+ * their sessions. A bookmark turning up on two different messages means the room handed the
+ * same one out twice.
+ *
+ * Only a hash of each message is kept, so a long soak doesn't need the room's whole output in
+ * memory; two different messages with the same bookmark and the same hash would get past it.
+ */
+final class BookmarkLedger {
+
+    /** Violations kept in full, beyond which they are only counted. */
+    private static final int KEPT = 20;
+
+    private final ConcurrentMap<Long, Integer> seen = new ConcurrentHashMap<>();
+    private final AtomicLong highest = new AtomicLong(-1);
+    private final AtomicLong violations = new AtomicLong();
+    private final List<String> examples = new ArrayList<>();
+
+    /**
+     * Note a bookmark arriving on a message.
+     *
+     * @param body
+     *            The message, without its routing prefix, so copies addressed to different
+     *            players still match
+     * @param text
+     *            The whole message, to report
+     */
+    void record(long bookmark, String body, String text) {
+        int hash = body.hashCode();
+        Integer first = seen.putIfAbsent(bookmark, hash);
+        if (first != null && first != hash) {
+            violation("Bookmark " + bookmark + " was used for two different messages, one of them " + text);
+        }
+        highest.accumulateAndGet(bookmark, Math::max);
+    }
+
+    void violation(String what) {
+        if (violations.incrementAndGet() <= KEPT) {
+            synchronized (examples) {
+                examples.add(what);
+            }
+        }
+    }
+
+    /**
+     * @return how many different bookmarks have been seen
+     */
+    long distinct() {
+        return seen.size();
+    }
+
+    /**
+     * @return the highest bookmark seen, or -1 if there haven't been any
+     */
+    long highest() {
+        return highest.get();
+    }
+
+    long violationCount() {
+        return violations.get();
+    }
+
+    /**
+     * @return the first few violations, in full
+     */
+    List<String> examples() {
+        synchronized (examples) {
+            return new ArrayList<>(examples);
+        }
+    }
+}
@@ -0,0 +1,387 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+
+/**
+ * Small races over the room, in the style of jcstress: each case sets up some players, has two
+ * actors do something to the room at the same moment, then looks at what the room made of it
+ * (on the room's loop, like everything else that reads its state). That is repeated many times,
+ * with fresh players each time, and every outcome is counted. Outcomes the case doesn't list as
+ * acceptable are failures.
+ *
+ * The actors are released together by a barrier, so they overlap to within a few microseconds;
+ * over enough iterations that covers both orders, and some of the interleavings in between.
+ */
+final class Contention {
+
+    /**
+     * One race.
+     */
+    abstract static class Case {
+        final String name;
+        final String description;
+        final Set<String> acceptable;
+
+        Case(String name, String description, String... acceptable) {
+            this.name = name;
+            this.description = description;
+            this.acceptable = new HashSet<>(Arrays.asList(acceptable));
+        }
+
+        /**
+         * Set up for one iteration, with names starting with the prefix. What it sets up has
+         * reached the room before the actors start.
+         */
+        abstract void setUp(String prefix);
+
+        abstract void actor1();
+
+        abstract void actor2();
+
+        /**
+         * @return what happened, looked at on the room's loop once the actors are done and the
+         *         room has caught up with them
+         */
+        abstract String observe(RoomState room);
+
+        /**
+         * Close everything the iteration opened.
+         */
+        abstract void tearDown();
+    }
+
+    private final String roomId;
+    private final BookmarkLedger ledger;
+    private final RoomState room;
+
+    Contention(String roomId, BookmarkLedger ledger, RoomState room) {
+        this.roomId = roomId;
+        this.ledger = ledger;
+        this.room = room;
+    }
+
+    /**
+     * The races the stress tests run.
+     */
+    List<Case> cases() {
+        List<Case> cases = new ArrayList<>();
+        cases.add(new HelloVersusError());
+        cases.add(new Reconnect());
+        cases.add(new ChatVersusChat());
+        cases.add(new GoodbyeVersusChat());
+        return cases;
+    }
+
+    /**
+     * Run a case over and over, and count its outcomes.
+     *
+     * @return the outcomes, with how many times each happened
+     */
+    Map<String, Integer> run(Case c, int iterations) throws InterruptedException {
+        Map<String, Integer> outcomes = new TreeMap<>();
+        CyclicBarrier barrier = new CyclicBarrier(3);
+        Thread one = actor(c.name + "-1", barrier, iterations, c::actor1);
+        Thread two = actor(c.name + "-2", barrier, iterations, c::actor2);
+        try {
+            for (int i = 0; i < iterations; i++) {
+                c.setUp(c.name + "-" + i);
+                RoomStress.settle(room);
+                await(barrier); // go
+                await(barrier); // both done
+                outcomes.merge(RoomStress.onLoop(room, () -> c.observe(room)), 1, Integer::sum);
+                c.tearDown();
+                RoomStress.settle(room);
+            }
+        } finally {
+            one.interrupt();
+            two.interrupt();
+        }
+        return outcomes;
+    }
+
+    private static Thread actor(String name, CyclicBarrier barrier, int iterations, Runnable action) {
+        Thread t = new Thread(() -> {
+            for (int i = 0; i < iterations; i++) {
+                if (!await(barrier)) {
+                    return;
+                }
+                action.run();
+                if (!await(barrier)) {
+                    return;
+                }
+            }
+        }, "stress-" + name);
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    private static boolean await(CyclicBarrier barrier) {
+        try {
+            barrier.await();
+            return true;
+        } catch (InterruptedException | BrokenBarrierException e) {
+            return false;
+        }
+    }
+
+    private StressSession open(boolean keep) {
+        return new StressSession(roomId, ledger, keep);
+    }
+
+    /**
+     * A player says hello as their connection breaks. Whichever goes first, the room must not be
+     * left holding the dead session, or the player on it.
+     */
+    final class HelloVersusError extends Case {
+        private StressSession session;
+        private String player;
+
+        HelloVersusError() {
+            super("hello-error", "A player says hello as their connection breaks", "joined, then removed",
+                    "never joined");
+        }
+
+        @Override
+        void setUp(String prefix) {
+            session = open(true);
+            player = prefix + "-player";
+        }
+
+        @Override
+        void actor1() {
+            session.hello(player);
+        }
+
+        @Override
+        void actor2() {
+            session.fail();
+        }
+
+        @Override
+        String observe(RoomState room) {
+            if (room.sessions.contains(session) || room.presence.contains(player)) {
+                return "left in the room on a closed session";
+            }
+            for (String m : session.messages()) {
+                if (m.contains("\"type\":\"location\"")) {
+                    return "joined, then removed";
+                }
+            }
+            return "never joined";
+        }
+
+        @Override
+        void tearDown() {
+            session.close();
+        }
+    }
+
+    /**
+     * A player's mediator reconnects: they say hello on a new session just as the old one is
+     * found to be broken. However the two land, they must end up on the new session.
+     */
+    final class Reconnect extends Case {
+        private StressSession old;
+        private StressSession fresh;
+        private String player;
+
+        Reconnect() {
+            super("reconnect", "A player says hello on a new session as their old one breaks",
+                    "on the new session");
+        }
+
+        @Override
+        void setUp(String prefix) {
+            player = prefix + "-player";
+            old = open(false);
+            old.hello(player);
+            fresh = open(false);
+        }
+
+        @Override
+        void actor1() {
+            fresh.hello(player);
+        }
+
+        @Override
+        void actor2() {
+            old.fail();
+        }
+
+        @Override
+        String observe(RoomState room) {
+            Object on = room.presence.sessionOf(player);
+            if (on == null) {
+                return "gone from the room";
+            }
+            if (on == old) {
+                return "on the broken session";
+            }
+            return room.sessions.contains(fresh) ? "on the new session" : "on a session the room isn't sending to";
+        }
+
+        @Override
+        void tearDown() {
+            old.close();
+            fresh.close();
+        }
+    }
+
+    /**
+     * Two players chat at once. Every session in the room must see both messages, in the same
+     * order, with rising bookmarks.
+     */
+    final class ChatVersusChat extends Case {
+        private StressSession a;
+        private StressSession b;
+        private String alice;
+        private String bob;
+
+        ChatVersusChat() {
+            super("chat-chat", "Two players chat at the same time", "alice first", "bob first");
+        }
+
+        @Override
+        void setUp(String prefix) {
+            alice = prefix + "-alice";
+            bob = prefix + "-bob";
+            a = open(true);
+            b = open(true);
+            a.hello(alice);
+            b.hello(bob);
+        }
+
+        @Override
+        void actor1() {
+            a.say(alice, "hi from " + alice);
+        }
+
+        @Override
+        void actor2() {
+            b.say(bob, "hi from " + bob);
+        }
+
+        @Override
+        String observe(RoomState room) {
+            String seenByA = order(a.messages());
+            String seenByB = order(b.messages());
+            return seenByA.equals(seenByB) ? seenByA : "seen in different orders: " + seenByA + " / " + seenByB;
+        }
+
+        private String order(List<String> messages) {
+            List<String> chat = new ArrayList<>();
+            long last = -1;
+            for (String m : messages) {
+                if (m.contains("\"content\":\"hi from ")) {
+                    long bookmark = StressSession.bookmark(m);
+                    if (bookmark <= last) {
+                        return "bookmarks out of order";
+                    }
+                    last = bookmark;
+                    chat.add(m.contains(alice) ? "alice" : "bob");
+                }
+            }
+            if (chat.size() != 2 || chat.get(0).equals(chat.get(1))) {
+                return "missing chat: " + chat;
+            }
+            return chat.get(0) + " first";
+        }
+
+        @Override
+        void tearDown() {
+            a.close();
+            b.close();
+        }
+    }
+
+    /**
+     * Two players share a mediator connection, and one says goodbye as the other chats. The one
+     * staying must still be in the room, and still be sent what's said there.
+     */
+    final class GoodbyeVersusChat extends Case {
+        private StressSession shared;
+        private String leaving;
+        private String staying;
+
+        GoodbyeVersusChat() {
+            super("goodbye-chat", "One player on a shared session leaves as the other chats",
+                    "chat delivered, then goodbye", "goodbye, then chat delivered");
+        }
+
+        @Override
+        void setUp(String prefix) {
+            leaving = prefix + "-leaving";
+            staying = prefix + "-staying";
+            shared = open(true);
+            shared.hello(leaving);
+            shared.hello(staying);
+        }
+
+        @Override
+        void actor1() {
+            shared.goodbye(leaving);
+        }
+
+        @Override
+        void actor2() {
+            shared.say(staying, "still here " + staying);
+        }
+
+        @Override
+        String observe(RoomState room) {
+            if (room.presence.sessionOf(staying) != shared) {
+                return "the player staying was taken out of the room";
+            }
+            if (!room.sessions.contains(shared)) {
+                return "the room stopped sending to the shared session";
+            }
+            int chat = -1;
+            int left = -1;
+            List<String> messages = shared.messages();
+            for (int i = 0; i < messages.size(); i++) {
+                String m = messages.get(i);
+                if (m.contains("still here " + staying)) {
+                    chat = i;
+                } else if (m.contains("Player " + leaving + " has left")) {
+                    left = i;
+                }
+            }
+            if (chat < 0) {
+                return "chat not delivered";
+            }
+            if (left < 0) {
+                return "chat delivered, goodbye not announced";
+            }
+            return chat < left ? "chat delivered, then goodbye" : "goodbye, then chat delivered";
+        }
+
+        @Override
+        void tearDown() {
+            shared.close();
+        }
+    }
+}
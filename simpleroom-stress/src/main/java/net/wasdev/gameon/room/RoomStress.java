@@ -0,0 +1,441 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Concurrency stress tests for the room.
+ *
+ * Runs {@link VerySimpleRoom} in this JVM, with in-memory {@link StressSession}s standing in for
+ * the container and the mediators, in two parts:
+ * <ul>
+ * <li>the {@link Contention} cases, small races repeated many times, with every outcome counted
+ * and the ones that should never happen reported as failures;</li>
+ * <li>a soak, where workers hammer the room with hellos, chat, commands, goodbyes, broken
+ * connections and closes for a while, alongside a chaos thread breaking random connections out
+ * from under them.</li>
+ * </ul>
+ * All along, every message the room sends is checked for bookmarks that go backwards on a
+ * session, or mean different messages on different sessions. At the end of the soak the room has
+ * to agree with the workers about who is in it, and once everything is closed it has to have let
+ * go of every session and player.
+ *
+ * Prints throughput for both parts, and exits with 1 if anything failed.
+ *
+ * Options, all --name=value:
+ * <pre>
+ *   room         room id, default VerySimpleRoom
+ *   iterations   times to run each contention case, default 2000
+ *   duration     seconds to soak for, default 10
+ *   workers      soak threads, default 8
+ *   sessions     mediator connections per worker, default 4
+ *   players      players per connection, default 2
+ *   chaos        microseconds between connections broken by the chaos thread, 0 for none, default 2000
+ *   threads      platform or virtual (Java 21 or later) threads for the room, default platform
+ * </pre>
+ */
+public class RoomStress {
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+                System.out.println("Ignoring argument " + arg + ", expected --name=value");
+                continue;
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        String roomId = options.getOrDefault("room", "VerySimpleRoom");
+        int iterations = Integer.parseInt(options.getOrDefault("iterations", "2000"));
+        int duration = Integer.parseInt(options.getOrDefault("duration", "10"));
+        int workers = Integer.parseInt(options.getOrDefault("workers", "8"));
+        int sessions = Integer.parseInt(options.getOrDefault("sessions", "4"));
+        int players = Integer.parseInt(options.getOrDefault("players", "2"));
+        long chaosMicros = Long.parseLong(options.getOrDefault("chaos", "2000"));
+        String threads = options.getOrDefault("threads", System.getProperty("room.threads", "platform"));
+
+        // before the room reads its configuration: just the one room, somewhere to journal it,
+        // no rate limits (the workers are meant to be relentless), and quiet about the
+        // connections the chaos thread breaks.
+        System.setProperty("room.ids", roomId);
+        System.setProperty("room.journal.dir", Files.createTempDirectory("stress-journal").toString());
+        for (String scope : new String[] { "user", "session" }) {
+            for (String category : new String[] { "chat", "command", "hello" }) {
+                System.setProperty("room.limit." + scope + "." + category + ".perMinute", "0");
+            }
+        }
+        if (System.getProperty("room.log.level") == null) {
+            System.setProperty("room.log.level", "error");
+        }
+        System.setProperty("room.threads", threads);
+        // the room quietly falls back to platform threads on older JVMs, which would pass the
+        // virtual thread run without ever having made one.
+        if ("virtual".equalsIgnoreCase(threads) && !RoomThreads.isVirtual()) {
+            System.out.println("--threads=virtual needs Java 21 or later, this is " + System.getProperty("java.version"));
+            System.exit(1);
+        }
+        System.out.println("Room threads: " + (RoomThreads.isVirtual() ? "virtual" : "platform")
+                + ", Java " + System.getProperty("java.version"));
+
+        BookmarkLedger ledger = new BookmarkLedger();
+        List<String> failures = new ArrayList<>();
+
+        // someone to keep the room alive between the tests.
+        StressSession keeper = new StressSession(roomId, ledger, false);
+        keeper.hello("stress-keeper");
+        RoomState room = VerySimpleRoom.liveRoom(roomId);
+        if (room == null) {
+            System.out.println("Room " + roomId + " didn't come to life");
+            System.exit(1);
+        }
+        settle(room);
+
+        Contention contention = new Contention(roomId, ledger, room);
+        System.out.println("Contention, " + iterations + " iterations of each case");
+        for (Contention.Case c : contention.cases()) {
+            long start = System.nanoTime();
+            Map<String, Integer> outcomes = contention.run(c, iterations);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.println(String.format("  %-14s %s (%.0f iterations/s)", c.name, c.description,
+                    iterations / seconds));
+            for (Map.Entry<String, Integer> outcome : outcomes.entrySet()) {
+                boolean ok = c.acceptable.contains(outcome.getKey());
+                System.out.println(String.format("    %10d  %-10s  %s", outcome.getValue(),
+                        ok ? "ACCEPTABLE" : "FORBIDDEN", outcome.getKey()));
+                if (!ok) {
+                    failures.add(c.name + ": " + outcome.getKey() + " (" + outcome.getValue() + " times)");
+                }
+            }
+        }
+
+        System.out.println();
+        System.out.println(String.format("Soak, %ds: %d workers, %d connections each with %d players, chaos %s",
+                duration, workers, sessions, players, chaosMicros > 0 ? "every " + chaosMicros + "us" : "off"));
+        Soak soak = new Soak(roomId, ledger, room, workers, sessions, players);
+        long start = System.nanoTime();
+        long firstBookmark = onLoop(room, room.loop::peekBookmark);
+        soak.run(TimeUnit.SECONDS.toNanos(duration), chaosMicros);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        settle(room);
+        long bookmarks = onLoop(room, room.loop::peekBookmark) - firstBookmark;
+        System.out.println(String.format("  %-12s %12d  %10.0f/s", "inbound", soak.inbound.sum(),
+                soak.inbound.sum() / seconds));
+        System.out.println(String.format("  %-12s %12d  %10.0f/s", "delivered", soak.delivered(),
+                soak.delivered() / seconds));
+        System.out.println(String.format("  %-12s %12d  %10.0f/s", "bookmarks", bookmarks, bookmarks / seconds));
+        System.out.println(String.format("  %-12s %12d  %10.0f/s (%d broken, %d by chaos)", "connections",
+                soak.opened.sum(), soak.opened.sum() / seconds, soak.broken.sum(), soak.chaos.sum()));
+
+        failures.addAll(onLoop(room, () -> soak.check(room)));
+        failures.addAll(onLoop(room, () -> consistency(room)));
+
+        // everybody goes home: nothing should be left behind.
+        soak.closeAll();
+        keeper.close();
+        settle(room);
+        failures.addAll(onLoop(room, () -> {
+            List<String> left = new ArrayList<>();
+            if (!room.sessions.isEmpty()) {
+                left.add(room.sessions.size() + " sessions still in the room after every connection closed");
+            }
+            if (room.presence.size() != 0 || room.playerCount != 0) {
+                left.add(room.presence.size() + " players still in the room after every connection closed");
+            }
+            return left;
+        }));
+        if (VerySimpleRoom.openSessionCount() != 0) {
+            failures.add(VerySimpleRoom.openSessionCount() + " connections still counted as open");
+        }
+        if (VerySimpleRoom.outboundSessionCount() != 0) {
+            failures.add(VerySimpleRoom.outboundSessionCount() + " sessions still have an outbound queue");
+        }
+
+        System.out.println(String.format("  %-12s %12d  highest %d", "ledger", ledger.distinct(), ledger.highest()));
+        if (ledger.violationCount() > 0) {
+            failures.add(ledger.violationCount() + " bookmark violations");
+            for (String v : ledger.examples()) {
+                failures.add("  " + v);
+            }
+        }
+
+        System.out.println();
+        if (failures.isEmpty()) {
+            System.out.println("PASSED");
+            System.exit(0);
+        }
+        System.out.println("FAILED");
+        for (String f : failures) {
+            System.out.println("  " + f);
+        }
+        System.exit(1);
+    }
+
+    // what has to be true of the room whatever has been going on. Run on the loop.
+    private static List<String> consistency(RoomState room) {
+        List<String> problems = new ArrayList<>();
+        if (room.presence.size() != room.playerCount) {
+            problems.add("The room counts " + room.playerCount + " players, but has " + room.presence.size());
+        }
+        if (room.sessions.size() != room.sessionCount) {
+            problems.add("The room counts " + room.sessionCount + " sessions, but has " + room.sessions.size());
+        }
+        for (javax.websocket.Session s : room.sessions) {
+            if (!s.isOpen()) {
+                problems.add("The room is still sending to closed session " + s.getId());
+            }
+        }
+        room.presence.forEach(player -> {
+            javax.websocket.Session s = room.presence.sessionOf(player);
+            if (!room.sessions.contains(s)) {
+                problems.add("Player " + player + " is on session " + s.getId() + ", which the room isn't sending to");
+            }
+        });
+        return problems;
+    }
+
+    /**
+     * Wait for the room's loop to get through everything queued for it so far.
+     */
+    static void settle(RoomState room) {
+        onLoop(room, () -> null);
+    }
+
+    /**
+     * Look at the room, on its loop.
+     */
+    static <T> T onLoop(RoomState room, Supplier<T> look) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        room.loop.execute(() -> {
+            try {
+                result.complete(look.get());
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        });
+        try {
+            return result.get(30, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Looking at the room failed", e.getCause());
+        } catch (InterruptedException | TimeoutException e) {
+            throw new IllegalStateException("The room's loop didn't get round to us", e);
+        }
+    }
+
+    /** Messages a worker sends before waiting for the room to catch up with it. */
+    private static final int AHEAD = 128;
+
+    /**
+     * The workers, and the chaos thread.
+     *
+     * Like a mediator waiting on the replies to what it sent, each worker only gets so far ahead
+     * of the room; otherwise the room's loop would be working through a backlog of messages for
+     * connections that went long ago, and the soak would be measuring that.
+     */
+    private static final class Soak {
+        private final String roomId;
+        private final BookmarkLedger ledger;
+        private final RoomState room;
+        private final Worker[] workers;
+        /** Every worker's current connections, for the chaos thread to pick from. */
+        private final AtomicReferenceArray<StressSession> current;
+        private volatile boolean stopping;
+
+        final LongAdder inbound = new LongAdder();
+        final LongAdder opened = new LongAdder();
+        final LongAdder broken = new LongAdder();
+        final LongAdder chaos = new LongAdder();
+
+        Soak(String roomId, BookmarkLedger ledger, RoomState room, int workers, int sessions, int players) {
+            this.roomId = roomId;
+            this.ledger = ledger;
+            this.room = room;
+            this.workers = new Worker[workers];
+            this.current = new AtomicReferenceArray<>(workers * sessions);
+            for (int w = 0; w < workers; w++) {
+                this.workers[w] = new Worker(w, sessions, players);
+            }
+        }
+
+        void run(long nanos, long chaosMicros) throws InterruptedException {
+            List<Thread> threads = new ArrayList<>();
+            for (Worker w : workers) {
+                threads.add(new Thread(w, "stress-worker-" + w.index));
+            }
+            if (chaosMicros > 0) {
+                threads.add(new Thread(() -> chaos(chaosMicros), "stress-chaos"));
+            }
+            for (Thread t : threads) {
+                t.start();
+            }
+            Thread.sleep(TimeUnit.NANOSECONDS.toMillis(nanos));
+            stopping = true;
+            for (Thread t : threads) {
+                t.join();
+            }
+        }
+
+        // break a random connection every so often, whatever its worker is doing with it.
+        private void chaos(long micros) {
+            while (!stopping) {
+                LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(micros));
+                StressSession victim = current.get(ThreadLocalRandom.current().nextInt(current.length()));
+                if (victim != null && victim.isOpen()) {
+                    chaos.increment();
+                    victim.fail();
+                }
+            }
+        }
+
+        long delivered() {
+            long total = 0;
+            for (Worker w : workers) {
+                for (StressSession s : w.all) {
+                    total += s.received;
+                }
+            }
+            return total;
+        }
+
+        // the room has to agree with each worker about who is on its connections that are still
+        // open. Run on the loop.
+        List<String> check(RoomState room) {
+            List<String> problems = new ArrayList<>();
+            for (Worker w : workers) {
+                for (int i = 0; i < w.sessions.length; i++) {
+                    StressSession s = w.sessions[i];
+                    if (!s.isOpen()) {
+                        continue;
+                    }
+                    Set<String> onSession = new HashSet<>();
+                    room.presence.forEachOn(s, onSession::add);
+                    if (!onSession.equals(w.present.get(i))) {
+                        problems.add("Session " + s.getId() + " should have " + w.present.get(i) + " in the room, but has "
+                                + onSession);
+                    }
+                    if (room.sessions.contains(s) == w.present.get(i).isEmpty()) {
+                        problems.add("Session " + s.getId() + " has " + w.present.get(i).size()
+                                + " players in the room, but the room " + (room.sessions.contains(s) ? "is" : "isn't")
+                                + " sending to it");
+                    }
+                }
+            }
+            return problems;
+        }
+
+        void closeAll() {
+            for (Worker w : workers) {
+                for (StressSession s : w.all) {
+                    s.close();
+                }
+            }
+        }
+
+        /**
+         * One mediator's worth of connections, each carrying a few players, driven by one thread.
+         */
+        private final class Worker implements Runnable {
+            final int index;
+            final StressSession[] sessions;
+            /** For each connection, which of its players have said hello and not goodbye. */
+            final List<Set<String>> present = new ArrayList<>();
+            final String[][] players;
+            /** Every connection the worker has opened. */
+            final List<StressSession> all = new ArrayList<>();
+            private long said;
+            private long sent;
+
+            Worker(int index, int sessions, int players) {
+                this.index = index;
+                this.sessions = new StressSession[sessions];
+                this.players = new String[sessions][players];
+                for (int i = 0; i < sessions; i++) {
+                    present.add(new HashSet<>());
+                    for (int p = 0; p < players; p++) {
+                        this.players[i][p] = "stress:" + index + "-" + i + "-" + p;
+                    }
+                    connect(i);
+                }
+            }
+
+            private void connect(int i) {
+                StressSession s = new StressSession(roomId, ledger, false);
+                sessions[i] = s;
+                all.add(s);
+                present.get(i).clear();
+                current.set(index * sessions.length + i, s);
+                opened.increment();
+            }
+
+            @Override
+            public void run() {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (!stopping) {
+                    int i = random.nextInt(sessions.length);
+                    StressSession s = sessions[i];
+                    if (!s.isOpen()) {
+                        // broken by the chaos thread: the mediator reconnects.
+                        connect(i);
+                        continue;
+                    }
+                    String player = players[i][random.nextInt(players[i].length)];
+                    Set<String> here = present.get(i);
+                    // mostly chat, with the odd connection going away; in thousandths.
+                    int roll = random.nextInt(1000);
+                    if (!here.contains(player)) {
+                        s.hello(player);
+                        here.add(player);
+                    } else if (roll < 50) {
+                        s.goodbye(player);
+                        here.remove(player);
+                    } else if (roll < 850) {
+                        s.say(player, "chat " + (said++));
+                    } else if (roll < 995) {
+                        s.say(player, COMMANDS[random.nextInt(COMMANDS.length)]);
+                    } else if (roll < 998) {
+                        broken.increment();
+                        s.fail();
+                        connect(i);
+                    } else {
+                        s.close();
+                        connect(i);
+                    }
+                    inbound.increment();
+                    if (++sent % AHEAD == 0) {
+                        settle(room);
+                    }
+                }
+            }
+        }
+    }
+
+    private static final String[] COMMANDS = { "/look", "/go N", "/go nowhere", "/history 5", "/examine" };
+}
@@ -0,0 +1,378 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.websocket.CloseReason;
+import javax.websocket.Extension;
+import javax.websocket.MessageHandler;
+import javax.websocket.MessageHandler.Partial;
+import javax.websocket.MessageHandler.Whole;
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+import javax.websocket.WebSocketContainer;
+
+/**
+ * An in-memory mediator connection for the stress tests, standing in for both the container's
+ * session and the mediator at the other end of it.
+ *
+ * It drives its own {@link VerySimpleRoom} endpoint the way the container would: opening it,
+ * handing it messages, and telling it when the connection breaks or closes (once, however many
+ * times it is closed). Sends complete straight away, on the calling thread.
+ *
+ * Everything the room sends is checked as it arrives, against the {@link BookmarkLedger} shared
+ * by every session: bookmarks have to keep rising on each session, and each one has to mean the
+ * same message on every session it turns up on. Replays of the room's history are old messages
+ * by design, so they are only held to the second.
+ */
+final class StressSession implements Session {
+
+    private static final SendResult OK = new SendResult();
+    private static final AtomicInteger ids = new AtomicInteger();
+
+    private final String id = "stress-" + ids.incrementAndGet();
+    private final String roomId;
+    private final VerySimpleRoom endpoint = new VerySimpleRoom();
+    private final BookmarkLedger ledger;
+    private final Map<String, Object> userProperties = new ConcurrentHashMap<>();
+    private final AtomicBoolean open = new AtomicBoolean(true);
+
+    // written by whoever is sending to the session, which the room's outbound queue makes one
+    // thread at a time.
+    private long lastBookmark = -1;
+    /** Messages received, if the session was asked to keep them. */
+    private final List<String> kept;
+    /** Messages received. */
+    volatile long received;
+
+    private final RemoteEndpoint.Async async = new RemoteEndpoint.Async() {
+        @Override
+        public void sendText(String text, SendHandler handler) {
+            receive(text);
+            handler.onResult(OK);
+        }
+
+        @Override
+        public void sendBinary(ByteBuffer data, SendHandler handler) {
+            receive(StandardCharsets.UTF_8.decode(data).toString());
+            handler.onResult(OK);
+        }
+
+        @Override
+        public Future<Void> sendText(String text) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Future<Void> sendBinary(ByteBuffer data) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Future<Void> sendObject(Object data) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void sendObject(Object data, SendHandler handler) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long getSendTimeout() {
+            return 0;
+        }
+
+        @Override
+        public void setSendTimeout(long timeoutmillis) {
+        }
+
+        @Override
+        public void setBatchingAllowed(boolean allowed) {
+        }
+
+        @Override
+        public boolean getBatchingAllowed() {
+            return false;
+        }
+
+        @Override
+        public void flushBatch() {
+        }
+
+        @Override
+        public void sendPing(ByteBuffer applicationData) {
+        }
+
+        @Override
+        public void sendPong(ByteBuffer applicationData) {
+        }
+    };
+
+    /**
+     * Open a connection to a room.
+     *
+     * @param keep
+     *            true to keep every message received, for {@link #messages()}
+     */
+    StressSession(String roomId, BookmarkLedger ledger, boolean keep) {
+        this.roomId = roomId;
+        this.ledger = ledger;
+        this.kept = keep ? new ArrayList<>() : null;
+        endpoint.onOpen(this, null, roomId);
+    }
+
+    void hello(String userid) {
+        send("roomHello," + roomId + ",{\"username\":\"" + userid + "\",\"userId\":\"" + userid + "\",\"version\":1}");
+    }
+
+    void say(String userid, String content) {
+        send("room," + roomId + ",{\"username\":\"" + userid + "\",\"userId\":\"" + userid + "\",\"content\":\"" + content
+                + "\"}");
+    }
+
+    void goodbye(String userid) {
+        send("roomGoodbye," + roomId + ",{\"username\":\"" + userid + "\",\"userId\":\"" + userid + "\"}");
+    }
+
+    /**
+     * The connection has broken: the container reports the error, then closes the session.
+     */
+    void fail() {
+        endpoint.onError(this, new IOException("Connection reset by stress test"));
+        close(new CloseReason(CloseReason.CloseCodes.CLOSED_ABNORMALLY, "Connection reset"));
+    }
+
+    private void send(String message) {
+        if (!open.get()) {
+            return;
+        }
+        try {
+            endpoint.receiveMessage(message, this, roomId);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void receive(String text) {
+        received++;
+        if (kept != null) {
+            synchronized (kept) {
+                kept.add(text);
+            }
+        }
+        long bookmark = bookmark(text);
+        if (bookmark < 0) {
+            return;
+        }
+        int target = text.indexOf(',') + 1;
+        int payload = text.indexOf(',', target) + 1;
+        String body = text.substring(payload);
+        ledger.record(bookmark, body, text);
+        if (isReplay(text, target, body)) {
+            return;
+        }
+        if (bookmark <= lastBookmark) {
+            ledger.violation("Session " + id + " was sent bookmark " + bookmark + " after " + lastBookmark + ": " + text);
+        }
+        lastBookmark = bookmark;
+    }
+
+    // the history only holds what went to the whole room, so one of those addressed to a single
+    // player is a replay.
+    private static boolean isReplay(String text, int target, String body) {
+        return text.charAt(target) != '*' && (body.startsWith("{\"type\":\"chat\"") || body.contains("{\"*\":"));
+    }
+
+    // the bookmark the room puts at the end of what it sends, or -1 if there isn't one.
+    static long bookmark(String text) {
+        int at = text.lastIndexOf("\"bookmark\":");
+        if (at < 0 || text.charAt(text.length() - 1) != '}') {
+            return -1;
+        }
+        try {
+            return Long.parseLong(text.substring(at + 11, text.length() - 1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the messages received so far, if the session keeps them
+     */
+    List<String> messages() {
+        synchronized (kept) {
+            return new ArrayList<>(kept);
+        }
+    }
+
+    @Override
+    public RemoteEndpoint.Async getAsyncRemote() {
+        return async;
+    }
+
+    @Override
+    public RemoteEndpoint.Basic getBasicRemote() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open.get();
+    }
+
+    @Override
+    public String getId() {
+        return id;
+    }
+
+    @Override
+    public Map<String, Object> getUserProperties() {
+        return userProperties;
+    }
+
+    @Override
+    public void close() {
+        close(new CloseReason(CloseReason.CloseCodes.NORMAL_CLOSURE, null));
+    }
+
+    @Override
+    public void close(CloseReason closeReason) {
+        // the container tells the endpoint once, whoever closed it.
+        if (open.compareAndSet(true, false)) {
+            endpoint.onClose(this, closeReason);
+        }
+    }
+
+    @Override
+    public WebSocketContainer getContainer() {
+        return null;
+    }
+
+    @Override
+    public void addMessageHandler(MessageHandler handler) {
+    }
+
+    @Override
+    public <T> void addMessageHandler(Class<T> clazz, Whole<T> handler) {
+    }
+
+    @Override
+    public <T> void addMessageHandler(Class<T> clazz, Partial<T> handler) {
+    }
+
+    @Override
+    public Set<MessageHandler> getMessageHandlers() {
+        return Collections.emptySet();
+    }
+
+    @Override
+    public void removeMessageHandler(MessageHandler handler) {
+    }
+
+    @Override
+    public String getProtocolVersion() {
+        return "13";
+    }
+
+    @Override
+    public String getNegotiatedSubprotocol() {
+        return null;
+    }
+
+    @Override
+    public List<Extension> getNegotiatedExtensions() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public boolean isSecure() {
+        return false;
+    }
+
+    @Override
+    public long getMaxIdleTimeout() {
+        return 0;
+    }
+
+    @Override
+    public void setMaxIdleTimeout(long milliseconds) {
+    }
+
+    @Override
+    public void setMaxBinaryMessageBufferSize(int length) {
+    }
+
+    @Override
+    public int getMaxBinaryMessageBufferSize() {
+        return 0;
+    }
+
+    @Override
+    public void setMaxTextMessageBufferSize(int length) {
+    }
+
+    @Override
+    public int getMaxTextMessageBufferSize() {
+        return 0;
+    }
+
+    @Override
+    public URI getRequestURI() {
+        return null;
+    }
+
+    @Override
+    public Map<String, List<String>> getRequestParameterMap() {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public String getQueryString() {
+        return null;
+    }
+
+    @Override
+    public Map<String, String> getPathParameters() {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public Principal getUserPrincipal() {
+        return null;
+    }
+
+    @Override
+    public Set<Session> getOpenSessions() {
+        return Collections.emptySet();
+    }
+}